@@ -0,0 +1,71 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.benchmark.Shape;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.DivideFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.LetFunction;
+import com.mflintoff.calculator.function.MultiplyFunction;
+import com.mflintoff.calculator.function.SubtractFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks parsing each {@link Shape} of expression into a tree, separately from optimizing, compiling and
+ * evaluating it, both from a String and in place from bytes as mapped input files are. It's in the calculator's
+ * package since the parser isn't public.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param
+    public Shape shape;
+
+    private final Map<String, Function> functions = new HashMap<String, Function>();
+    private String expression;
+    private ByteLine bytes;
+
+    @Setup
+    public void setUp() {
+        for (Function function : new Function[] {new AddFunction(), new SubtractFunction(), new MultiplyFunction(),
+                new DivideFunction(), new LetFunction()}) {
+            functions.put(function.getName(), function);
+        }
+        expression = shape.expression();
+        byte[] text = expression.getBytes(StandardCharsets.US_ASCII);
+        bytes = new ByteLine(ByteBuffer.allocateDirect(text.length).put(text)).set(0, text.length);
+    }
+
+    @Benchmark
+    public Node parseString() throws ExpressionParseException {
+        return new ExpressionParser(expression, functions, EvaluatorConfig.DEFAULT_MAX_DEPTH).parse();
+    }
+
+    @Benchmark
+    public Node parseBytes() throws ExpressionParseException {
+        return new ExpressionParser(bytes, functions, EvaluatorConfig.DEFAULT_MAX_DEPTH).parse();
+    }
+}
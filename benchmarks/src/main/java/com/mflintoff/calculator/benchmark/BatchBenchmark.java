@@ -0,0 +1,118 @@
+package com.mflintoff.calculator.benchmark;
+
+import com.mflintoff.calculator.BatchEvaluator;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks evaluating a file of small expressions, one per line, by reading it with a cache of compiled
+ * expressions, and by mapping it and parsing each line in place, on one or more threads. The output is discarded.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchBenchmark {
+
+    private static final int LINES = 100000;
+    private static final int CACHE_SIZE = 1024;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path file;
+    private BatchEvaluator cached;
+    private BatchEvaluator uncached;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            switch (i % 4) {
+                case 0:
+                    input.append("add(").append(i).append(", mult(").append(i % 97).append(", 3))");
+                    break;
+                case 1:
+                    input.append("let(a, ").append(i).append(", let(b, mult(a, 10), add(b, a)))");
+                    break;
+                case 2:
+                    input.append("div(").append(i).append(", 7)");
+                    break;
+                default:
+                    // recurs, so it's served from the cache
+                    input.append("sub(mult(6, 7), 0.5)");
+                    break;
+            }
+            input.append('\n');
+        }
+        file = Files.createTempFile("calculator-benchmark", ".txt");
+        Files.write(file, input.toString().getBytes(StandardCharsets.UTF_8));
+
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(CACHE_SIZE);
+        cached = new BatchEvaluator(new ExpressionEvaluator(config), threads);
+        uncached = new BatchEvaluator(new ExpressionEvaluator(), threads);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long evaluateReader() throws IOException {
+        BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        try {
+            return cached.evaluate(reader, new NullWriter());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public long evaluateMapped() throws IOException {
+        return uncached.evaluate(file, new NullWriter());
+    }
+
+    /**
+     * A Writer which discards its output.
+     */
+    private static class NullWriter extends Writer {
+        public void write(char[] chars, int offset, int length) {
+        }
+
+        public Writer append(CharSequence chars) {
+            return this;
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mflintoff.calculator.benchmark;
+
+import com.mflintoff.calculator.Column;
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks evaluating an expression over long columns, row by row, by the scalar columnar path and by the SIMD
+ * kernel. The kernel is only used when the calculator was built with the vector profile and the benchmark JVM is
+ * given --add-modules jdk.incubator.vector, otherwise the vectorized benchmark measures the scalar path.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnBenchmark {
+
+    private static final String EXPRESSION = "let(a, mult(x, 3), add(a, sub(y, x), mult(a, 7)))";
+
+    @Param({"1024", "65536"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean vectorized;
+
+    private CompiledExpression compiled;
+    private Map<String, Column> columns;
+    private String[] xs;
+    private String[] ys;
+    private String[] results;
+
+    @Setup
+    public void setUp() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setVectorizeColumns(vectorized);
+        compiled = new ExpressionEvaluator(config).compile(EXPRESSION);
+
+        long[] x = new long[rows];
+        long[] y = new long[rows];
+        xs = new String[rows];
+        ys = new String[rows];
+        for (int row = 0; row < rows; row++) {
+            x[row] = row * 31L - 1000;
+            y[row] = row ^ 0x5555;
+            xs[row] = Long.toString(x[row]);
+            ys[row] = Long.toString(y[row]);
+        }
+        columns = new HashMap<String, Column>();
+        columns.put("x", Column.of(x));
+        columns.put("y", Column.of(y));
+        results = new String[rows];
+    }
+
+    /**
+     * Evaluates the columns a column at a time.
+     */
+    @Benchmark
+    public String[] evaluateColumns() throws EvaluationException {
+        compiled.evaluate(columns, results);
+        return results;
+    }
+
+    /**
+     * Evaluates the same values a row at a time, with String bindings.
+     */
+    @Benchmark
+    public String[] evaluateRows() throws EvaluationException {
+        Map<String, String> bindings = new HashMap<String, String>();
+        for (int row = 0; row < rows; row++) {
+            bindings.put("x", xs[row]);
+            bindings.put("y", ys[row]);
+            results[row] = compiled.evaluate(bindings);
+        }
+        return results;
+    }
+}
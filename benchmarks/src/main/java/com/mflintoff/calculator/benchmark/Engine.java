@@ -0,0 +1,62 @@
+package com.mflintoff.calculator.benchmark;
+
+import com.mflintoff.calculator.EvaluatorConfig;
+
+/**
+ * <p>The ways the calculator can evaluate a compiled expression.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public enum Engine {
+
+    /**
+     * The Program compiled straight from the parsed tree.
+     */
+    PROGRAM {
+        void configure(EvaluatorConfig config) {
+            config.setOptimize(false);
+        }
+    },
+
+    /**
+     * The Program compiled from the tree after optimization, which is the default.
+     */
+    OPTIMIZED {
+        void configure(EvaluatorConfig config) {
+        }
+    },
+
+    /**
+     * A MethodHandleProgram where possible, compiled from the optimized tree, falling back to the Program.
+     */
+    METHOD_HANDLES {
+        void configure(EvaluatorConfig config) {
+            config.setCompileToMethodHandles(true);
+        }
+    },
+
+    /**
+     * A ParallelProgram for wide calls of add or mult, compiled from the optimized tree, falling back to the Program.
+     * The thresholds are low enough for {@link Shape#WIDE_ADD} and {@link Shape#DIVISION_MIX} to be evaluated in
+     * parallel.
+     */
+    PARALLEL {
+        void configure(EvaluatorConfig config) {
+            config.setParallelWidth(100);
+            config.setParallelCost(1000);
+        }
+    };
+
+    abstract void configure(EvaluatorConfig config);
+
+    /**
+     * Returns the settings which select the engine.
+     *
+     * @return the settings.
+     */
+    public EvaluatorConfig config() {
+        EvaluatorConfig config = new EvaluatorConfig();
+        configure(config);
+        return config;
+    }
+}
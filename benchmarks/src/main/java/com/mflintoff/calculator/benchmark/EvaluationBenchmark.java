@@ -0,0 +1,79 @@
+package com.mflintoff.calculator.benchmark;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks evaluating each {@link Shape} of expression with each {@link Engine}, both compiling the expression
+ * every time as {@link ExpressionEvaluator#evaluate(String)} does without a cache, and evaluating an expression
+ * compiled once.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+
+    @Param
+    public Shape shape;
+
+    @Param
+    public Engine engine;
+
+    private String expression;
+    private ExpressionEvaluator evaluator;
+    private CompiledExpression compiled;
+    private Map<String, String> bindings;
+
+    @Setup
+    public void setUp() throws EvaluationException {
+        expression = shape.expression();
+        evaluator = new ExpressionEvaluator(engine.config());
+        compiled = evaluator.compile(expression);
+        bindings = Collections.singletonMap("x", Shape.X);
+    }
+
+    /**
+     * Parses, optimizes and compiles the expression, as every evaluation does without a cache.
+     */
+    @Benchmark
+    public CompiledExpression compile() throws EvaluationException {
+        return evaluator.compile(expression);
+    }
+
+    /**
+     * Evaluates the expression compiled once.
+     */
+    @Benchmark
+    public String evaluateCompiled() throws EvaluationException {
+        return compiled.evaluate(bindings);
+    }
+
+    /**
+     * Compiles and evaluates the expression.
+     */
+    @Benchmark
+    public String compileAndEvaluate() throws EvaluationException {
+        return evaluator.compile(expression).evaluate(bindings);
+    }
+}
@@ -0,0 +1,85 @@
+package com.mflintoff.calculator.benchmark;
+
+import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.DivideFunction;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.MultiplyFunction;
+import com.mflintoff.calculator.function.Value;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks the functions on their own, through both the String API which custom functions implement and the
+ * Value API which the built-in functions are evaluated with.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FunctionBenchmark {
+
+    @Param({"2", "100"})
+    public int arguments;
+
+    private final AddFunction add = new AddFunction();
+    private final MultiplyFunction multiply = new MultiplyFunction();
+    private final DivideFunction divide = new DivideFunction();
+    private List<String> longTexts;
+    private Value[] longValues;
+    private Value[] decimalValues;
+
+    @Setup
+    public void setUp() {
+        longTexts = new ArrayList<String>();
+        longValues = new Value[arguments];
+        decimalValues = new Value[arguments];
+        for (int i = 0; i < arguments; i++) {
+            // small enough that the product of 100 doesn't overflow
+            longTexts.add(Integer.toString(i % 2 + 1));
+            longValues[i] = Value.of(i % 2 + 1);
+            decimalValues[i] = Value.parse((i + 1) + ".25");
+        }
+    }
+
+    @Benchmark
+    public String addStrings() throws FunctionExecutionException {
+        return add.execute(longTexts);
+    }
+
+    @Benchmark
+    public Value addLongs() throws FunctionExecutionException {
+        return add.execute(longValues);
+    }
+
+    @Benchmark
+    public Value multiplyLongs() throws FunctionExecutionException {
+        return multiply.execute(longValues);
+    }
+
+    @Benchmark
+    public Value addDecimals() throws FunctionExecutionException {
+        return add.execute(decimalValues);
+    }
+
+    @Benchmark
+    public Value divideDecimals() throws FunctionExecutionException {
+        return divide.execute(decimalValues);
+    }
+}
@@ -0,0 +1,111 @@
+package com.mflintoff.calculator.benchmark;
+
+/**
+ * <p>The shapes of expression benchmarked. Each uses the free variable x, bound to {@link #X}, so that the optimizer
+ * can't fold the whole expression into a constant. Only {@link #SMALL} is shallow enough to be compiled to method
+ * handles, and only {@link #WIDE_ADD} and {@link #DIVISION_MIX} are wide enough to be evaluated by
+ * {@link Engine#PARALLEL}: the other shapes are evaluated by the Program whichever engine is chosen.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public enum Shape {
+
+    /**
+     * A small integer expression, typical of a single request, which every engine can evaluate.
+     */
+    SMALL {
+        public String expression() {
+            return "let(a, mult(x, 3), add(a, sub(x, 2), mult(a, a)))";
+        }
+    },
+
+    /**
+     * A single add with 10000 arguments.
+     */
+    WIDE_ADD {
+        public String expression() {
+            StringBuilder expression = new StringBuilder("add(x");
+            for (int i = 1; i < 10000; i++) {
+                expression.append(", ").append(i);
+            }
+            return expression.append(')').toString();
+        }
+    },
+
+    /**
+     * Calls nested 1000 deep, alternating between add, mult and sub.
+     */
+    DEEP_NESTING {
+        public String expression() {
+            StringBuilder expression = new StringBuilder();
+            String[] functions = {"add", "mult", "sub"};
+            for (int i = 0; i < 1000; i++) {
+                expression.append(functions[i % 3]).append("(1, ");
+            }
+            expression.append('x');
+            for (int i = 0; i < 1000; i++) {
+                expression.append(')');
+            }
+            return expression.toString();
+        }
+    },
+
+    /**
+     * 1000 lets, each of whose values uses the variable of the let before.
+     */
+    LET_CHAIN {
+        public String expression() {
+            StringBuilder expression = new StringBuilder("let(v0, x, ");
+            for (int i = 1; i < 1000; i++) {
+                expression.append("let(v").append(i).append(", add(v").append(i - 1).append(", ").append(i)
+                        .append("), ");
+            }
+            expression.append("v999");
+            for (int i = 0; i < 1000; i++) {
+                expression.append(')');
+            }
+            return expression.toString();
+        }
+    },
+
+    /**
+     * An add of 1000 divisions, most of which have fractional results.
+     */
+    DIVISION_MIX {
+        public String expression() {
+            StringBuilder expression = new StringBuilder("add(");
+            for (int i = 0; i < 1000; i++) {
+                if (i > 0) {
+                    expression.append(", ");
+                }
+                switch (i % 4) {
+                    case 0:
+                        expression.append("div(x, ").append(i + 3).append(')');
+                        break;
+                    case 1:
+                        expression.append("div(mult(x, ").append(i).append("), 8)");
+                        break;
+                    case 2:
+                        expression.append("div(sub(x, ").append(i).append("), 2.5)");
+                        break;
+                    default:
+                        expression.append("mult(div(").append(i).append(", x), 3)");
+                        break;
+                }
+            }
+            return expression.append(')').toString();
+        }
+    };
+
+    /**
+     * The value x is bound to.
+     */
+    public static final String X = "7";
+
+    /**
+     * Builds the expression text.
+     *
+     * @return the expression.
+     */
+    public abstract String expression();
+}
@@ -0,0 +1,92 @@
+package com.mflintoff.calculator.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Benchmarks the wall-clock time of a whole invocation of the calculator jar to evaluate one expression, as a
+ * caller which runs "java -jar calculator-1.0.jar -e ..." for each expression sees it. Each operation starts a new
+ * JVM, with or without the class data sharing archive built by the cds profile, and logging at ERROR, when nothing is
+ * logged, or INFO, when the expression and result are.</p>
+ *
+ * <p>The jar and archive are looked for in ../target, where they're built when benchmarking from the benchmarks
+ * directory, or in the directory given by the calculator.target system property, eg.
+ * -jvmArgsAppend -Dcalculator.target=/path/to/target.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final String JAR = "calculator-1.0.jar";
+    private static final String ARCHIVE = "calculator-1.0.jsa";
+
+    @Param({"false", "true"})
+    public boolean archive;
+
+    @Param({"ERROR", "INFO"})
+    public String logLevel;
+
+    private List<String> command;
+    private final byte[] buffer = new byte[8192];
+
+    @Setup
+    public void setUp() {
+        File target = new File(System.getProperty("calculator.target", "../target"));
+        File jar = new File(target, JAR);
+        if (!jar.isFile()) {
+            throw new IllegalStateException("calculator jar not found, build it first: " + jar.getAbsolutePath());
+        }
+        command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath());
+        if (archive) {
+            File archiveFile = new File(target, ARCHIVE);
+            if (!archiveFile.isFile()) {
+                throw new IllegalStateException("class data sharing archive not found, build the calculator with "
+                        + "-Pcds first: " + archiveFile.getAbsolutePath());
+            }
+            command.add("-XX:SharedArchiveFile=" + archiveFile.getPath());
+        }
+        command.add("-jar");
+        command.add(jar.getPath());
+        command.add("-l");
+        command.add(logLevel);
+        command.add("-e");
+        command.add("let(a, 5, div(add(a, 1.5), 3))");
+    }
+
+    @Benchmark
+    public int evaluate() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        InputStream output = process.getInputStream();
+        int length = 0;
+        for (int read; (read = output.read(buffer)) >= 0; ) {
+            length += read;
+        }
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("calculator exited with " + process.exitValue() + ": " + command);
+        }
+        return length;
+    }
+}
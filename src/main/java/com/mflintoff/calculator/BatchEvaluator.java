@@ -0,0 +1,457 @@
+package com.mflintoff.calculator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Evaluates a stream of expressions, one per line, writing one line of output per line of input in the same order.
+ * Each line is evaluated independently: if it can't be evaluated, its output line is the error message prefixed with
+ * {@link #ERROR_PREFIX}, and evaluation continues with the next line. Blank lines produce blank output lines, so that
+ * the output always lines up with the input.</p>
+ *
+ * <p>With more than one thread, the input is read in chunks of {@link #CHUNK_SIZE} lines which are evaluated by a
+ * pool of worker threads sharing the one {@link ExpressionEvaluator}. Results are written in input order as each
+ * chunk completes. At most {@link #CHUNKS_PER_THREAD} chunks per thread are in flight: once that many are waiting,
+ * reading stops until the oldest has been written, so memory use is bounded however long the input is.</p>
+ *
+ * <p>A file can instead be evaluated with {@link #evaluate(Path, Writer)}, which maps it into memory in regions of up
+ * to {@link #MAP_SIZE} bytes rather than reading it. Each region is split at newlines into chunks of about
+ * {@link #CHUNK_BYTES} bytes, and each worker thread finds the lines of its own chunk and parses them in place from
+ * the mapped bytes, so no String is created for a line. Lines end with \n or \r\n, and are assumed to be UTF-8.</p>
+ *
+ * <p>The output is not flushed until the end of the input, so it should be buffered.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class BatchEvaluator {
+    private static final Logger log = LoggerFactory.getLogger(BatchEvaluator.class);
+
+    /**
+     * The prefix of the output line for an expression which could not be evaluated.
+     */
+    public static final String ERROR_PREFIX = "error: ";
+
+    /**
+     * The number of lines evaluated together by a worker thread.
+     */
+    static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The number of chunks per thread which may be read ahead of the output.
+     */
+    static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The largest region of a file which is mapped at once, unless a single line is longer.
+     */
+    static final int MAP_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The approximate number of bytes of a mapped file evaluated together by a worker thread.
+     */
+    static final int CHUNK_BYTES = 32 * 1024;
+
+    private final ExpressionEvaluator evaluator;
+    private final int threads;
+
+    /**
+     * Constructs a BatchEvaluator which evaluates the lines on the calling thread.
+     *
+     * @param evaluator the evaluator used for each expression.
+     */
+    public BatchEvaluator(ExpressionEvaluator evaluator) {
+        this(evaluator, 1);
+    }
+
+    /**
+     * Constructs a BatchEvaluator.
+     *
+     * @param evaluator the evaluator used for each expression.
+     * @param threads the number of threads to evaluate the lines with. 1 evaluates them on the calling thread.
+     */
+    public BatchEvaluator(ExpressionEvaluator evaluator, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.evaluator = evaluator;
+        this.threads = threads;
+    }
+
+    /**
+     * Evaluates each line of the input, writing the results to the output.
+     *
+     * @param input the expressions, one per line.
+     * @param output where the results are written, one per line.
+     * @return the number of lines which could not be evaluated.
+     * @throws IOException if an error occurs reading the input or writing the output.
+     */
+    public long evaluate(BufferedReader input, Writer output) throws IOException {
+        long errors = threads == 1 ? evaluateSequentially(input, output) : evaluateInParallel(input, output);
+        output.flush();
+        return errors;
+    }
+
+    /**
+     * Evaluates each line of a file by mapping it into memory, writing the results to the output. This gives the
+     * same output as {@link #evaluate(BufferedReader, Writer)}, but expressions aren't cached, so it suits large files
+     * whose lines rarely recur.
+     *
+     * @param file the expressions, one per line.
+     * @param output where the results are written, one per line.
+     * @return the number of lines which could not be evaluated.
+     * @throws IOException if an error occurs reading the file or writing the output.
+     */
+    public long evaluate(Path file, Writer output) throws IOException {
+        return evaluate(file, output, MAP_SIZE);
+    }
+
+    /**
+     * Evaluates each line of a file by mapping it into memory in regions of the given size.
+     *
+     * @param file the expressions, one per line.
+     * @param output where the results are written, one per line.
+     * @param mapSize the largest region to map, unless a single line is longer.
+     * @return the number of lines which could not be evaluated.
+     * @throws IOException if an error occurs reading the file or writing the output.
+     */
+    long evaluate(Path file, Writer output, int mapSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        ExecutorService executor = threads == 1 ? null : Executors.newFixedThreadPool(threads);
+        Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        int maxPending = threads * CHUNKS_PER_THREAD;
+        long errors = 0;
+        long size;
+        try {
+            size = channel.size();
+            long position = 0;
+            while (position < size) {
+                // map a region ending at a newline, growing it if a line is longer than the region
+                long regionSize = Math.min(mapSize, size - position);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                int end = lastLineEnd(region, position + regionSize == size);
+                while (end == 0) {
+                    if (regionSize == Integer.MAX_VALUE) {
+                        throw new IOException("line at byte " + position + " is longer than " + regionSize + " bytes");
+                    }
+                    regionSize = Math.min(Math.min(regionSize * 2, Integer.MAX_VALUE), size - position);
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+                    end = lastLineEnd(region, position + regionSize == size);
+                }
+
+                for (int chunkStart = 0; chunkStart < end; ) {
+                    int chunkEnd = nextLineEnd(region, chunkStart + CHUNK_BYTES, end);
+                    MappedChunkTask task = new MappedChunkTask(region, chunkStart, chunkEnd, position);
+                    if (executor == null) {
+                        Chunk chunk = task.call();
+                        output.append(chunk.output);
+                        errors += chunk.errors;
+                    } else {
+                        if (pending.size() == maxPending) {
+                            errors += writeChunk(pending.removeFirst(), output);
+                        }
+                        pending.addLast(executor.submit(task));
+                    }
+                    chunkStart = chunkEnd;
+                }
+                position += end;
+            }
+            while (!pending.isEmpty()) {
+                errors += writeChunk(pending.removeFirst(), output);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            channel.close();
+        }
+        output.flush();
+        log.info("evaluated {} bytes on {} threads, {} errors", size, threads, errors);
+        return errors;
+    }
+
+    /**
+     * Finds the end of the last complete line in a region.
+     *
+     * @param region the region.
+     * @param endOfFile true if the region ends at the end of the file, which also ends the last line.
+     * @return the index after the last newline, or 0 if there is none.
+     */
+    private static int lastLineEnd(ByteBuffer region, boolean endOfFile) {
+        if (endOfFile) {
+            return region.limit();
+        }
+        for (int i = region.limit() - 1; i >= 0; i--) {
+            if (region.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Finds the end of the line containing a byte.
+     *
+     * @param region the region.
+     * @param from the index of the byte.
+     * @param end the end of the last line in the region.
+     * @return the index after the next newline, or end if there is none.
+     */
+    private static int nextLineEnd(ByteBuffer region, int from, int end) {
+        for (int i = Math.max(from, 0); i < end; i++) {
+            if (region.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private long evaluateSequentially(BufferedReader input, Writer output) throws IOException {
+        String lineSeparator = System.getProperty("line.separator");
+        StringBuilder result = new StringBuilder();
+        long lineNumber = 0;
+        long errors = 0;
+        String line;
+        while ((line = input.readLine()) != null) {
+            lineNumber++;
+            result.setLength(0);
+            if (!evaluateLine(line, lineNumber, result)) {
+                errors++;
+            }
+            output.append(result).write(lineSeparator);
+        }
+        log.info("evaluated {} lines, {} errors", lineNumber, errors);
+        return errors;
+    }
+
+    private long evaluateInParallel(BufferedReader input, Writer output) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+        int maxPending = threads * CHUNKS_PER_THREAD;
+        long lineNumber = 0;
+        long errors = 0;
+        try {
+            String[] lines = readChunk(input);
+            while (lines.length > 0) {
+                if (pending.size() == maxPending) {
+                    errors += writeChunk(pending.removeFirst(), output);
+                }
+                pending.addLast(executor.submit(new ChunkTask(lines, lineNumber + 1)));
+                lineNumber += lines.length;
+                lines = readChunk(input);
+            }
+            while (!pending.isEmpty()) {
+                errors += writeChunk(pending.removeFirst(), output);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("evaluated {} lines on {} threads, {} errors", lineNumber, threads, errors);
+        return errors;
+    }
+
+    private static String[] readChunk(BufferedReader input) throws IOException {
+        String[] lines = new String[CHUNK_SIZE];
+        int count = 0;
+        String line;
+        while (count < CHUNK_SIZE && (line = input.readLine()) != null) {
+            lines[count++] = line;
+        }
+        return count == CHUNK_SIZE ? lines : Arrays.copyOf(lines, count);
+    }
+
+    /**
+     * Waits for a chunk to be evaluated, then writes its results.
+     *
+     * @param future the chunk.
+     * @param output where the results are written.
+     * @return the number of lines in the chunk which could not be evaluated.
+     * @throws IOException if an error occurs writing the output, or the thread is interrupted.
+     */
+    private static long writeChunk(Future<Chunk> future, Writer output) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while evaluating input");
+        } catch (ExecutionException e) {
+            // lines which can't be evaluated are reported in the output, so this is unexpected
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("unexpected error evaluating input", e.getCause());
+        }
+        output.append(chunk.output);
+        return chunk.errors;
+    }
+
+    /**
+     * Evaluates a line, appending its output line, without the line separator.
+     *
+     * @param line the line.
+     * @param lineNumber the one-based number of the line, for logging.
+     * @param result where the output line is appended.
+     * @return false if the line could not be evaluated.
+     */
+    private boolean evaluateLine(String line, long lineNumber, StringBuilder result) {
+        if (line.trim().length() == 0) {
+            return true;
+        }
+        try {
+            String value = evaluator.compile(line).evaluate();
+            if (log.isDebugEnabled()) {
+                // guarded, since three arguments are boxed into an array before the level is checked
+                log.debug("line {}: {} = {}", lineNumber, line, value);
+            }
+            result.append(value);
+            return true;
+        } catch (EvaluationException e) {
+            log.error("line {}: {}", lineNumber, e.getMessage());
+            result.append(ERROR_PREFIX).append(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates a line of a mapped file, appending its output line, without the line separator.
+     *
+     * @param line the line, which may be a view of the mapped bytes.
+     * @param offset the offset of the line in the file, for logging.
+     * @param result where the output line is appended.
+     * @return false if the line could not be evaluated.
+     */
+    private boolean evaluateMappedLine(CharSequence line, long offset, StringBuilder result) {
+        try {
+            String value = evaluator.evaluateOnce(line);
+            if (log.isDebugEnabled()) {
+                log.debug("byte {}: {} = {}", offset, line, value);
+            }
+            result.append(value);
+            return true;
+        } catch (EvaluationException e) {
+            log.error("byte {}: {}", offset, e.getMessage());
+            result.append(ERROR_PREFIX).append(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The output of an evaluated chunk.
+     */
+    private static class Chunk {
+        final CharSequence output;
+        final long errors;
+
+        Chunk(CharSequence output, long errors) {
+            this.output = output;
+            this.errors = errors;
+        }
+    }
+
+    /**
+     * Evaluates a chunk of lines on a worker thread.
+     */
+    private class ChunkTask implements Callable<Chunk> {
+        private final String[] lines;
+        private final long firstLineNumber;
+
+        ChunkTask(String[] lines, long firstLineNumber) {
+            this.lines = lines;
+            this.firstLineNumber = firstLineNumber;
+        }
+
+        public Chunk call() {
+            String lineSeparator = System.getProperty("line.separator");
+            StringBuilder output = new StringBuilder(lines.length * 16);
+            long errors = 0;
+            for (int i = 0; i < lines.length; i++) {
+                if (!evaluateLine(lines[i], firstLineNumber + i, output)) {
+                    errors++;
+                }
+                output.append(lineSeparator);
+            }
+            return new Chunk(output, errors);
+        }
+    }
+
+    /**
+     * Evaluates a chunk of a mapped file, which starts at the start of a line and ends at the end of one.
+     */
+    private class MappedChunkTask implements Callable<Chunk> {
+        private final ByteBuffer region;
+        private final int start;
+        private final int end;
+        private final long regionOffset;
+
+        MappedChunkTask(ByteBuffer region, int start, int end, long regionOffset) {
+            this.region = region;
+            this.start = start;
+            this.end = end;
+            this.regionOffset = regionOffset;
+        }
+
+        public Chunk call() {
+            String lineSeparator = System.getProperty("line.separator");
+            StringBuilder output = new StringBuilder((end - start) / 2);
+            ByteLine line = new ByteLine(region);
+            long errors = 0;
+            int lineStart = start;
+            while (lineStart < end) {
+                int lineEnd = lineStart;
+                boolean ascii = true;
+                boolean blank = true;
+                byte b;
+                while (lineEnd < end && (b = region.get(lineEnd)) != '\n') {
+                    if (b < 0) {
+                        ascii = false;
+                        blank = false;
+                    } else if (b > ' ') {
+                        blank = false;
+                    }
+                    lineEnd++;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && region.get(lineEnd - 1) == '\r') {
+                    lineEnd--;
+                }
+
+                if (!blank) {
+                    CharSequence text = ascii ? line.set(lineStart, lineEnd) : decode(lineStart, lineEnd);
+                    if (!evaluateMappedLine(text, regionOffset + lineStart, output)) {
+                        errors++;
+                    }
+                }
+                output.append(lineSeparator);
+                lineStart = next;
+            }
+            return new Chunk(output, errors);
+        }
+
+        private String decode(int lineStart, int lineEnd) {
+            byte[] bytes = new byte[lineEnd - lineStart];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = region.get(lineStart + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
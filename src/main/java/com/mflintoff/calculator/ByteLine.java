@@ -0,0 +1,61 @@
+package com.mflintoff.calculator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A view of a line of ASCII text in a ByteBuffer as a CharSequence, so that it can be parsed in place without
+ * being copied into a String. The view is moved from line to line with {@link #set(int, int)}, so one instance is
+ * reused for every line a thread reads. Only absolute gets are used, so threads may share the buffer.</p>
+ *
+ * <p>Sub-sequences are returned as Strings, since the parser only takes them for the names and values it keeps.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class ByteLine implements CharSequence {
+
+    private final ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Constructs a ByteLine.
+     *
+     * @param buffer the buffer holding the text.
+     */
+    ByteLine(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Moves the view to a line.
+     *
+     * @param start the index of the first byte of the line.
+     * @param end the index after the last byte of the line.
+     * @return this view.
+     */
+    ByteLine set(int start, int end) {
+        this.start = start;
+        this.end = end;
+        return this;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        return (char) buffer.get(start + index);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) buffer.get(start + from + i);
+        }
+        return new String(chars);
+    }
+
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.mflintoff.calculator;
+
+/**
+ * A snapshot of the counters of an {@link ExpressionEvaluator}'s compiled expression cache.
+ *
+ * @author Malcolm Flintoff
+ */
+public class CacheStatistics {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final int size;
+
+    /**
+     * Constructs a CacheStatistics snapshot.
+     *
+     * @param hitCount the number of lookups that found a compiled expression.
+     * @param missCount the number of lookups that had to compile the expression.
+     * @param evictionCount the number of compiled expressions evicted to make room for others.
+     * @param size the number of compiled expressions currently cached.
+     */
+    public CacheStatistics(long hitCount, long missCount, long evictionCount, int size) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+    }
+
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String toString() {
+        return "hits=" + hitCount + ", misses=" + missCount + ", evictions=" + evictionCount + ", size=" + size;
+    }
+}
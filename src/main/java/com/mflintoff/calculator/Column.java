@@ -0,0 +1,154 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.function.Value;
+
+import java.math.BigDecimal;
+
+/**
+ * <p>The values of a variable for each row, for evaluating a {@link CompiledExpression} over many rows at once via
+ * {@link CompiledExpression#evaluate(java.util.Map, String[])}. A column wraps a primitive or BigDecimal array without
+ * copying it, so changes to the array are seen by later evaluations.</p>
+ *
+ * <p>Long columns are passed to the expression without conversion, so they're the fastest to evaluate. Double values
+ * are converted with {@link BigDecimal#valueOf(double)}, so eg. 2.5 is exactly 2.5 rather than its binary
+ * approximation.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public abstract class Column {
+
+    private Column() {
+    }
+
+    /**
+     * Creates a column of long values.
+     *
+     * @param values the values, one per row.
+     * @return the column.
+     */
+    public static Column of(long[] values) {
+        return new LongColumn(values);
+    }
+
+    /**
+     * Creates a column of double values.
+     *
+     * @param values the values, one per row.
+     * @return the column.
+     */
+    public static Column of(double[] values) {
+        return new DoubleColumn(values);
+    }
+
+    /**
+     * Creates a column of BigDecimal values.
+     *
+     * @param values the values, one per row. A null value leaves the variable unbound for that row.
+     * @return the column.
+     */
+    public static Column of(BigDecimal[] values) {
+        return new DecimalColumn(values);
+    }
+
+    /**
+     * Returns the number of rows in the column.
+     *
+     * @return the number of rows.
+     */
+    public abstract int size();
+
+    /**
+     * Returns whether the column holds longs, and so {@link #longArray()} may be read instead of calling
+     * {@link #value(int)}.
+     *
+     * @return true if the column holds longs.
+     */
+    abstract boolean isLong();
+
+    /**
+     * Returns the array of a long column.
+     *
+     * @return the array, or null if this isn't a long column.
+     */
+    long[] longArray() {
+        return null;
+    }
+
+    /**
+     * Returns the value of a row.
+     *
+     * @param row the row.
+     * @return the value, or null if the variable is unbound for the row.
+     */
+    abstract Value value(int row);
+
+    private static class LongColumn extends Column {
+        private final long[] values;
+
+        LongColumn(long[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        boolean isLong() {
+            return true;
+        }
+
+        long[] longArray() {
+            return values;
+        }
+
+        Value value(int row) {
+            return Value.of(values[row]);
+        }
+    }
+
+    private static class DoubleColumn extends Column {
+        private final double[] values;
+
+        DoubleColumn(double[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        boolean isLong() {
+            return false;
+        }
+
+        Value value(int row) {
+            double value = values[row];
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                // not a number, so reported as an invalid argument if it's used
+                return Value.parse(Double.toString(value));
+            }
+            return Value.of(BigDecimal.valueOf(value));
+        }
+    }
+
+    private static class DecimalColumn extends Column {
+        private final BigDecimal[] values;
+
+        DecimalColumn(BigDecimal[] values) {
+            this.values = values;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        boolean isLong() {
+            return false;
+        }
+
+        Value value(int row) {
+            BigDecimal value = values[row];
+            return value != null ? Value.of(value) : null;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.ColumnKernel;
+import com.mflintoff.calculator.expression.ColumnKernels;
+import com.mflintoff.calculator.expression.MethodHandleProgram;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.ParallelProgram;
+import com.mflintoff.calculator.expression.Program;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An expression that has been parsed into a tree of {@link Node}s by {@link ExpressionEvaluator#compile(String)}.
+ * The function arguments have already been validated, so the expression can be evaluated repeatedly without parsing
+ * the expression text again. The tree is compiled into a {@link Program} for evaluation, which uses a constant
+ * amount of Java stack however deeply the expression is nested.</p>
+ *
+ * <p>If enabled by {@link EvaluatorConfig#setCompileToMethodHandles(boolean)}, the tree is also compiled into a
+ * {@link MethodHandleProgram} where possible, which evaluates integer arithmetic without interpretive overhead. The
+ * Program is used whenever the MethodHandleProgram can't produce an exact result, and the MethodHandleProgram is
+ * abandoned if that happens repeatedly.</p>
+ *
+ * <p>If enabled by {@link EvaluatorConfig#setVectorizeColumns(boolean)}, integer columns are evaluated with SIMD
+ * instructions where the JVM supports them, see {@link ColumnKernels}.</p>
+ *
+ * <p>If enabled by {@link EvaluatorConfig#setParallelWidth(int)}, an expression which is a wide and costly call of add
+ * or mult is evaluated in parallel by a {@link ParallelProgram}. If that fails, the Program evaluates it again, so
+ * that the error reported is the same as sequential evaluation's, and only the Program's calls are recorded in the
+ * metrics.</p>
+ *
+ * <p>If tracing is enabled by {@link EvaluatorConfig#setTracing(boolean)}, every evaluation uses the Program, which
+ * logs each function call.</p>
+ *
+ * <p>A CompiledExpression is immutable and may be shared between threads.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class CompiledExpression {
+
+    /**
+     * The number of evaluations that may fall back from the MethodHandleProgram to the Program before the
+     * MethodHandleProgram is abandoned.
+     */
+    static final int MAX_FALLBACKS = 1000;
+
+    private final String expression;
+    private final Node root;
+    private final int numLocals;
+    private final String[] freeVariableNames;
+    private final Value[] unboundValues;
+    private final Program program;
+    private volatile MethodHandleProgram methodHandleProgram;
+    private final ParallelProgram parallelProgram;
+    private final ColumnKernel columnKernel;
+    private final EvaluationMetrics metrics;
+    private final boolean trace;
+    private final AtomicInteger fallbacks = new AtomicInteger();
+
+    /**
+     * Constructs a CompiledExpression.
+     *
+     * @param expression the original expression text.
+     * @param root the root node of the parsed expression.
+     * @param numLocals the number of let slots needed to evaluate the expression.
+     * @param freeVariableNames the names of the variables not introduced by a let, in the order of their indexes.
+     * @param compileToMethodHandles true to also compile the expression into a MethodHandleProgram, if possible.
+     * @param vectorizeColumns true to evaluate integer columns with a SIMD ColumnKernel, if possible.
+     * @param parallelWidth the minimum number of arguments of a call evaluated by a ParallelProgram, or 0 to never
+     *                      evaluate in parallel.
+     * @param parallelCost the minimum number of nodes in the arguments of a call evaluated by a ParallelProgram.
+     * @param metrics where evaluations and function calls are recorded, or null to not record them.
+     * @param trace true to log each function call.
+     */
+    CompiledExpression(String expression, Node root, int numLocals, String[] freeVariableNames,
+                       boolean compileToMethodHandles, boolean vectorizeColumns, int parallelWidth, int parallelCost,
+                       EvaluationMetrics metrics, boolean trace) {
+        this.expression = expression;
+        this.root = root;
+        this.numLocals = numLocals;
+        this.freeVariableNames = freeVariableNames;
+        // an unbound variable evaluates to its name, which is reported as an invalid argument if it's used
+        this.unboundValues = new Value[freeVariableNames.length];
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            unboundValues[i] = Value.parse(freeVariableNames[i]);
+        }
+        this.program = Program.compile(root, numLocals, freeVariableNames.length, metrics, trace);
+        this.methodHandleProgram = compileToMethodHandles ? MethodHandleProgram.compile(root, numLocals) : null;
+        this.columnKernel = vectorizeColumns ? ColumnKernels.create(root) : null;
+        // calls would be logged in a nondeterministic order when tracing
+        this.parallelProgram = parallelWidth > 0 && !trace ? ParallelProgram.compile(root, numLocals,
+                freeVariableNames.length, parallelWidth, parallelCost) : null;
+        this.metrics = metrics;
+        this.trace = trace;
+    }
+
+    /**
+     * Returns the original expression text.
+     *
+     * @return the expression text.
+     */
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * Returns the root node of the parsed expression.
+     *
+     * @return the root node.
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the number of let slots needed to evaluate the expression.
+     *
+     * @return the number of let slots.
+     */
+    int getNumLocals() {
+        return numLocals;
+    }
+
+    /**
+     * Returns the names of the variables used by the expression which aren't introduced by a let, and so can be bound
+     * by the caller.
+     *
+     * @return the free variable names, in order of first use.
+     */
+    public String[] getFreeVariableNames() {
+        return freeVariableNames.clone();
+    }
+
+    /**
+     * Returns whether the expression is currently evaluated with a MethodHandleProgram when possible.
+     *
+     * @return true if a MethodHandleProgram is in use.
+     */
+    public boolean isCompiledToMethodHandles() {
+        return methodHandleProgram != null;
+    }
+
+    /**
+     * Returns whether the expression is evaluated in parallel.
+     *
+     * @return true if a ParallelProgram is in use.
+     */
+    public boolean isParallel() {
+        return parallelProgram != null;
+    }
+
+    /**
+     * Returns whether integer columns are evaluated with a SIMD kernel by {@link #evaluate(Map, String[])}.
+     *
+     * @return true if a kernel is in use.
+     */
+    public boolean isVectorized() {
+        return columnKernel != null;
+    }
+
+    /**
+     * Evaluates the expression.
+     *
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    public String evaluate() throws EvaluationException {
+        return evaluate(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Evaluates the expression with the given variable bindings. Any variables introduced by let take precedence over
+     * bindings with the same name.
+     *
+     * @param bindings the variables to substitute into the expression, keyed by name.
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    public String evaluate(Map<String, String> bindings) throws EvaluationException {
+        Value[] freeValues = new Value[freeVariableNames.length];
+        long[] freeLongs = new long[freeVariableNames.length];
+        boolean allLongs = true;
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            String binding = bindings.get(freeVariableNames[i]);
+            freeValues[i] = binding != null ? Value.parse(binding) : unboundValues[i];
+            if (freeValues[i].isLong()) {
+                freeLongs[i] = freeValues[i].longValue();
+            } else {
+                allLongs = false;
+            }
+        }
+        if (metrics == null) {
+            return execute(freeValues, freeLongs, allLongs);
+        }
+
+        long start = metrics.startEvaluation();
+        String result;
+        try {
+            result = execute(freeValues, freeLongs, allLongs);
+        } catch (EvaluationException e) {
+            metrics.failed(start);
+            throw e;
+        }
+        metrics.evaluated(start);
+        return result;
+    }
+
+    /**
+     * Evaluates the expression once for each row of the given columns, writing the results to the results column.
+     * Any variables introduced by let take precedence over columns with the same name. This is equivalent to calling
+     * {@link #evaluate(Map)} for each row with the row's values as bindings, but the expression's variables are
+     * resolved to their columns once, and integer columns are evaluated without allocating.
+     *
+     * @param columns the values of the variables, keyed by name. Each column must have at least as many rows as the
+     *                results column.
+     * @param results where the result of each row is written. Its length is the number of rows evaluated.
+     * @throws EvaluationException if an error occurs evaluating a row. The message gives the zero-based row, and
+     *                             the results of earlier rows have been written.
+     */
+    public void evaluate(Map<String, Column> columns, String[] results) throws EvaluationException {
+        Column[] boundColumns = new Column[freeVariableNames.length];
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            boundColumns[i] = columns.get(freeVariableNames[i]);
+            if (boundColumns[i] != null && boundColumns[i].size() < results.length) {
+                throw new IllegalArgumentException("column " + freeVariableNames[i] + " has " + boundColumns[i].size()
+                        + " rows, but " + results.length + " results were requested");
+            }
+        }
+
+        // integer columns are evaluated a column at a time by the kernel, leaving only rows which overflowed
+        long[][] longColumns = columnKernel != null && !trace ? toLongArrays(boundColumns) : null;
+        boolean[] inexact = null;
+        if (longColumns != null) {
+            long[] longResults = new long[results.length];
+            inexact = new boolean[results.length];
+            columnKernel.evaluate(longColumns, 0, results.length, longResults, inexact);
+            for (int row = 0; row < results.length; row++) {
+                if (!inexact[row]) {
+                    results[row] = Long.toString(longResults[row]);
+                }
+            }
+        }
+
+        Value[] freeValues = new Value[freeVariableNames.length];
+        long[] freeLongs = new long[freeVariableNames.length];
+        for (int row = 0; row < results.length; row++) {
+            if (inexact != null && !inexact[row]) {
+                continue;
+            }
+            boolean allLongs = true;
+            for (int i = 0; i < boundColumns.length; i++) {
+                Column column = boundColumns[i];
+                if (column != null && column.isLong()) {
+                    freeValues[i] = null;
+                    freeLongs[i] = column.longArray()[row];
+                } else {
+                    Value value = column != null ? column.value(row) : null;
+                    freeValues[i] = value != null ? value : unboundValues[i];
+                    allLongs = false;
+                }
+            }
+            try {
+                results[row] = execute(freeValues, freeLongs, allLongs);
+            } catch (EvaluationException e) {
+                throw new EvaluationException("error evaluating row " + row + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the arrays of the given columns, if they are all long columns.
+     *
+     * @param columns the columns. A null column is an unbound variable.
+     * @return the arrays, or null if any column is missing or not a long column.
+     */
+    private static long[][] toLongArrays(Column[] columns) {
+        long[][] arrays = new long[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            arrays[i] = columns[i] != null ? columns[i].longArray() : null;
+            if (arrays[i] == null) {
+                return null;
+            }
+        }
+        return arrays;
+    }
+
+    /**
+     * Evaluates the expression with the ParallelProgram or MethodHandleProgram if possible, otherwise the Program.
+     *
+     * @param freeValues the Value of each free variable, or null if its value is in freeLongs.
+     * @param freeLongs the long value of each free variable which is a long.
+     * @param allLongs true if every free variable is a long.
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    private String execute(Value[] freeValues, long[] freeLongs, boolean allLongs) throws EvaluationException {
+        if (parallelProgram != null) {
+            try {
+                return parallelProgram.execute(freeValues, freeLongs).toString();
+            } catch (EvaluationException e) {
+                // fall through to the Program, which reports the first error in evaluation order
+            }
+        }
+
+        // the Program logs each function call when tracing, so use it then
+        MethodHandleProgram fastProgram = methodHandleProgram;
+        if (fastProgram != null && !trace) {
+            if (allLongs) {
+                try {
+                    return Long.toString(fastProgram.execute(freeLongs));
+                } catch (ArithmeticException ae) {
+                    // fall through to the Program, which handles the general case and reports any error
+                }
+            }
+            if (fallbacks.incrementAndGet() > MAX_FALLBACKS) {
+                methodHandleProgram = null;
+            }
+        }
+        return program.execute(freeValues, freeLongs).toString();
+    }
+
+    public String toString() {
+        return root.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.mflintoff.calculator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A size bounded cache of compiled expressions, keyed by the expression's tokens, so that expressions which differ
+ * only in insignificant whitespace share an entry. Entries are evicted in least recently used order.</p>
+ *
+ * <p>The cache is split into segments, each guarded by its own lock, so that threads looking up different expressions
+ * rarely contend with each other. Each segment applies LRU eviction to its share of the capacity; caches too small to
+ * be split usefully use a single segment, and so are exact LRU.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class CompiledExpressionCache {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private final Segment[] segments;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructs a CompiledExpressionCache.
+     *
+     * @param maximumSize the maximum number of compiled expressions to cache.
+     */
+    CompiledExpressionCache(int maximumSize) {
+        int numSegments = 1;
+        while (numSegments < MAX_SEGMENTS && maximumSize / (numSegments * 2) >= MIN_SEGMENT_SIZE) {
+            numSegments *= 2;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            // spread any remainder over the first segments so that the total capacity is exactly maximumSize
+            int segmentSize = maximumSize / numSegments + (i < maximumSize % numSegments ? 1 : 0);
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    /**
+     * Returns the compiled expression for the given key, or null if it isn't cached.
+     *
+     * @param key the expression's tokens, as returned by {@link ExpressionLexer#tokenKey(String)}.
+     * @return the compiled expression, or null.
+     */
+    CompiledExpression get(String key) {
+        Segment segment = segmentFor(key);
+        CompiledExpression compiled;
+        synchronized (segment) {
+            compiled = segment.get(key);
+        }
+        if (compiled != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return compiled;
+    }
+
+    /**
+     * Adds a compiled expression to the cache, evicting the least recently used expression if necessary.
+     *
+     * @param key the expression's tokens, as returned by {@link ExpressionLexer#tokenKey(String)}.
+     * @param compiled the compiled expression.
+     */
+    void put(String key, CompiledExpression compiled) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, compiled);
+        }
+    }
+
+    /**
+     * Removes all compiled expressions from the cache. The counters are not reset.
+     */
+    void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the cache counters.
+     *
+     * @return the cache statistics.
+     */
+    CacheStatistics getStatistics() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new CacheStatistics(hitCount.get(), missCount.get(), evictionCount.get(), size);
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        // mix the high bits in, since String hash codes of similar expressions often differ only in the high bits
+        hash ^= (hash >>> 16);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * A LinkedHashMap in access order, which evicts its eldest entry once it grows beyond its maximum size.
+     */
+    private class Segment extends LinkedHashMap<String, CompiledExpression> {
+        private final int maximumSize;
+
+        Segment(int maximumSize) {
+            super(16, 0.75f, true);
+            this.maximumSize = maximumSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+            if (size() > maximumSize) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
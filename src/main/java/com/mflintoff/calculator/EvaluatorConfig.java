@@ -0,0 +1,255 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.function.NumericMode;
+
+/**
+ * Settings used to construct an {@link ExpressionEvaluator}. The settings are copied when the evaluator is
+ * constructed, so changing them afterwards has no effect on existing evaluators.
+ *
+ * @author Malcolm Flintoff
+ */
+public class EvaluatorConfig {
+
+    /**
+     * The default maximum depth to which function calls may be nested.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 1000000;
+
+    /**
+     * The default minimum number of nodes in the arguments of a call evaluated in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_COST = 100000;
+
+    private int cacheSize = 0;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private boolean optimize = true;
+    private boolean compileToMethodHandles = false;
+    private boolean vectorizeColumns = false;
+    private boolean metricsEnabled = false;
+    private boolean tracing = false;
+    private NumericMode numericMode = NumericMode.DEFAULT;
+    private int parallelWidth = 0;
+    private int parallelCost = DEFAULT_PARALLEL_COST;
+
+    /**
+     * Returns the maximum number of compiled expressions to cache.
+     *
+     * @return the cache size. 0 means caching is disabled.
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum number of compiled expressions to cache. When the cache is full, the least recently used
+     * expression is evicted. Default value is 0, which disables caching.
+     *
+     * @param cacheSize the cache size.
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("cache size must not be negative: " + cacheSize);
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns the maximum depth to which function calls may be nested.
+     *
+     * @return the maximum depth.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Sets the maximum depth to which function calls may be nested. Expressions are parsed and evaluated without
+     * recursion, so the depth is limited only by the available heap; this limit guards against expressions which
+     * would exhaust it. Default value is {@link #DEFAULT_MAX_DEPTH}.
+     *
+     * @param maxDepth the maximum depth.
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 1) {
+            throw new IllegalArgumentException("max depth must be at least 1: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns whether compiled expressions are optimized.
+     *
+     * @return true if expressions are optimized.
+     */
+    public boolean isOptimize() {
+        return optimize;
+    }
+
+    /**
+     * Sets whether compiled expressions are optimized: constant subexpressions are folded, repeated subexpressions
+     * are evaluated once, and unused lets are removed. The result of an expression is the same either way. Default
+     * value is true.
+     *
+     * @param optimize true to optimize expressions.
+     */
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+
+    /**
+     * Returns whether compiled expressions are also compiled into method handles.
+     *
+     * @return true if expressions are compiled into method handles.
+     */
+    public boolean isCompileToMethodHandles() {
+        return compileToMethodHandles;
+    }
+
+    /**
+     * Sets whether compiled expressions are also compiled into method handles, which the JIT can inline into
+     * specialised machine code. This speeds up expressions that are evaluated many times on integers, at the cost of
+     * slower compilation; expressions using other functions, or which aren't exact integer arithmetic, are evaluated
+     * as usual. Default value is false.
+     *
+     * @param compileToMethodHandles true to compile expressions into method handles.
+     */
+    public void setCompileToMethodHandles(boolean compileToMethodHandles) {
+        this.compileToMethodHandles = compileToMethodHandles;
+    }
+
+    /**
+     * Returns whether integer columns are evaluated with SIMD instructions.
+     *
+     * @return true if columns are vectorized.
+     */
+    public boolean isVectorizeColumns() {
+        return vectorizeColumns;
+    }
+
+    /**
+     * Sets whether {@link CompiledExpression#evaluate(java.util.Map, String[])} evaluates expressions of add, sub and
+     * mult over long columns with SIMD instructions. This needs the kernels built by the vector profile, and a JVM
+     * started with --add-modules jdk.incubator.vector; otherwise, or for other expressions, columns are evaluated as
+     * usual. Default value is false.
+     *
+     * @param vectorizeColumns true to vectorize columns.
+     */
+    public void setVectorizeColumns(boolean vectorizeColumns) {
+        this.vectorizeColumns = vectorizeColumns;
+    }
+
+    /**
+     * Returns whether metrics are recorded.
+     *
+     * @return true if metrics are recorded.
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Sets whether the evaluator records metrics of parsing, evaluation and each function, which can be read via
+     * {@link ExpressionEvaluator#getMetrics()} and exposed over JMX. Calls are counted with striped counters and only
+     * a sample is timed, so the overhead is small enough to leave enabled. Calls evaluated by method handles, column
+     * kernels or in parallel, and calls of constants folded by the optimizer, aren't recorded per function. Default
+     * value is false.
+     *
+     * @param metricsEnabled true to record metrics.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Returns whether function calls are traced.
+     *
+     * @return true if function calls are traced.
+     */
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    /**
+     * Sets whether each function call is logged at DEBUG with its evaluated arguments, and each compiled expression
+     * with its optimized tree. Tracing evaluates every call with the general Program rather than method handles or
+     * column kernels, so that the arguments can be logged. When it's off, compiling and evaluating never call the
+     * logger, whatever its level, so logging isn't initialized until something else logs. Default value is false.
+     *
+     * @param tracing true to trace function calls.
+     */
+    public void setTracing(boolean tracing) {
+        this.tracing = tracing;
+    }
+
+    /**
+     * Returns the numeric mode of the default functions.
+     *
+     * @return the numeric mode.
+     */
+    public NumericMode getNumericMode() {
+        return numericMode;
+    }
+
+    /**
+     * Sets the numeric mode of the default functions, ie. whether numbers which aren't integers are calculated as exact
+     * decimals rounded to a scale or precision, or as doubles. A different mode can also be chosen per expression, see
+     * {@link ExpressionEvaluator#compile(String, NumericMode)}. Default value is {@link NumericMode#DEFAULT}.
+     *
+     * @param numericMode the numeric mode.
+     */
+    public void setNumericMode(NumericMode numericMode) {
+        if (numericMode == null) {
+            throw new IllegalArgumentException("numeric mode must not be null");
+        }
+        this.numericMode = numericMode;
+    }
+
+    /**
+     * Returns the minimum number of arguments of a call evaluated in parallel.
+     *
+     * @return the minimum width. 0 means calls are never evaluated in parallel.
+     */
+    public int getParallelWidth() {
+        return parallelWidth;
+    }
+
+    /**
+     * Sets the minimum number of arguments of a call evaluated in parallel. When an expression is a call of add or mult
+     * with at least this many arguments, which between them have at least {@link #getParallelCost()} nodes, the
+     * arguments are evaluated in chunks by the common fork join pool, and the results of the chunks added or
+     * multiplied in a tree. The result is identical to sequential evaluation; calls which might not be, such as those in
+     * {@link NumericMode#DOUBLE}, or whose arguments call functions which aren't pure, are evaluated sequentially.
+     * Default value is 0, which disables parallel evaluation.
+     *
+     * @param parallelWidth the minimum width.
+     */
+    public void setParallelWidth(int parallelWidth) {
+        if (parallelWidth < 0) {
+            throw new IllegalArgumentException("parallel width must not be negative: " + parallelWidth);
+        }
+        this.parallelWidth = parallelWidth;
+    }
+
+    /**
+     * Returns the minimum number of nodes in the arguments of a call evaluated in parallel.
+     *
+     * @return the minimum cost.
+     */
+    public int getParallelCost() {
+        return parallelCost;
+    }
+
+    /**
+     * Sets the minimum number of nodes in the arguments of a call evaluated in parallel, so that calls which are wide
+     * but cheap are evaluated sequentially, see {@link #setParallelWidth(int)}. Default value is
+     * {@link #DEFAULT_PARALLEL_COST}.
+     *
+     * @param parallelCost the minimum cost.
+     */
+    public void setParallelCost(int parallelCost) {
+        if (parallelCost < 0) {
+            throw new IllegalArgumentException("parallel cost must not be negative: " + parallelCost);
+        }
+        this.parallelCost = parallelCost;
+    }
+}
@@ -1,43 +1,107 @@
 package com.mflintoff.calculator;
 
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.Optimizer;
+import com.mflintoff.calculator.expression.Program;
 import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.ArithmeticFunction;
 import com.mflintoff.calculator.function.DivideFunction;
 import com.mflintoff.calculator.function.Function;
-import com.mflintoff.calculator.function.FunctionExecutionException;
 import com.mflintoff.calculator.function.LetFunction;
 import com.mflintoff.calculator.function.MultiplyFunction;
+import com.mflintoff.calculator.function.NumericMode;
 import com.mflintoff.calculator.function.SubtractFunction;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>Evaluates expressions based on registered functions. The following expressions are registered by default: add, sub,
  * mult, div and let. For a description of each function, see the javadoc in the associated function classes. Additional
- * functions can be registered via the {@link #registerFunction(Function)} method.</p>
+ * functions can be registered via the {@link #registerFunction(Function)} method. A function which implements
+ * {@link com.mflintoff.calculator.function.LazyFunction} receives its arguments unevaluated, and evaluates only those it
+ * needs.</p>
  *
  * <p>An example of an expression that uses add and mult functions: "add(2, mult(3, 5))"</p>
  *
+ * <p>Expressions that are evaluated repeatedly can be parsed once via {@link #compile(String)}, and the resulting
+ * {@link CompiledExpression} evaluated as many times as needed. Alternatively, an evaluator can be constructed with
+ * a cache of compiled expressions (see {@link EvaluatorConfig#setCacheSize(int)}), so that repeated calls to
+ * {@link #evaluate(String)} with the same expression skip parsing. An evaluator is safe to share between threads once
+ * its functions have been registered.</p>
+ *
+ * <p>The arithmetic functions calculate numbers which aren't integers in the evaluator's {@link NumericMode}, set by
+ * {@link EvaluatorConfig#setNumericMode(NumericMode)}: as exact decimals, rounded to a scale or precision, or as
+ * doubles. An expression can also be compiled or evaluated in another mode, eg. to use doubles for analytics and exact
+ * decimals for billing with one evaluator.</p>
+ *
+ * <p>A catalog of expressions can be compiled once and written to a file of plans by
+ * {@link #writePlans(java.util.Collection, java.nio.file.Path)}. Another evaluator which loads the file with
+ * {@link #loadPlans(java.nio.file.Path)} compiles those expressions without parsing or optimizing them again.</p>
+ *
+ * <p>If enabled by {@link EvaluatorConfig#setMetricsEnabled(boolean)}, the evaluator records how long expressions take
+ * to parse and evaluate, their depth and size, and the calls of each function, in its {@link #getMetrics()}.</p>
+ *
  * @author Malcolm Flintoff
  */
 public class ExpressionEvaluator {
-    private static final Logger log = LoggerFactory.getLogger(ExpressionEvaluator.class);
-
-    private final Map<String, Function> functions = new HashMap<String, Function>();
+    private final Map<String, Function> functions = new ConcurrentHashMap<String, Function>();
+    private final CompiledExpressionCache cache;
+    private final int maxDepth;
+    private final boolean optimize;
+    private final boolean compileToMethodHandles;
+    private final boolean vectorizeColumns;
+    private final EvaluationMetrics metrics;
+    private final boolean tracing;
+    private final NumericMode numericMode;
+    private final int parallelWidth;
+    private final int parallelCost;
+    private volatile PlanFile plans;
 
     /**
      * Constructs an ExpressionEvaluator with default functions registered.
      */
     public ExpressionEvaluator() {
-        registerFunction(new AddFunction());
-        registerFunction(new SubtractFunction());
-        registerFunction(new DivideFunction());
-        registerFunction(new MultiplyFunction());
+        this(new EvaluatorConfig());
+    }
+
+    /**
+     * Constructs an ExpressionEvaluator with default functions registered, using the given settings.
+     *
+     * @param config the settings to use.
+     */
+    public ExpressionEvaluator(EvaluatorConfig config) {
+        cache = config.getCacheSize() > 0 ? new CompiledExpressionCache(config.getCacheSize()) : null;
+        maxDepth = config.getMaxDepth();
+        optimize = config.isOptimize();
+        compileToMethodHandles = config.isCompileToMethodHandles();
+        vectorizeColumns = config.isVectorizeColumns();
+        metrics = config.isMetricsEnabled() ? new EvaluationMetrics() : null;
+        tracing = config.isTracing();
+        numericMode = config.getNumericMode();
+        parallelWidth = config.getParallelWidth();
+        parallelCost = config.getParallelCost();
+
+        registerFunction(new AddFunction(numericMode));
+        registerFunction(new SubtractFunction(numericMode));
+        registerFunction(new DivideFunction(numericMode));
+        registerFunction(new MultiplyFunction(numericMode));
         registerFunction(new LetFunction());
     }
 
@@ -48,150 +112,295 @@ public class ExpressionEvaluator {
      */
     public void registerFunction(Function function) {
         functions.put(function.getName().toLowerCase(), function);
+        if (cache != null) {
+            // cached expressions may refer to a function this one replaces
+            cache.clear();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the compiled expression cache counters. If caching is disabled, all counters are zero.
+     *
+     * @return the cache statistics.
+     */
+    public CacheStatistics getCacheStatistics() {
+        return cache != null ? cache.getStatistics() : new CacheStatistics(0, 0, 0, 0);
+    }
+
+    /**
+     * Returns the metrics of the expressions evaluated, if enabled by {@link EvaluatorConfig#setMetricsEnabled(boolean)}.
+     *
+     * @return the metrics, or null if they aren't enabled.
+     */
+    public EvaluationMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * Evaluates an expression. Any sub-expressions will be evaluated recursively, and a final result is returned.
+     * Evaluates an expression. Any sub-expressions will be evaluated first, and a final result is returned.
      *
      * @param expression expression to evaluate. eg "2, add(3, 5)".
      * @return the result of the expression.
      * @throws EvaluationException if an error occurs during the evaluation.
      */
     public String evaluate(String expression) throws EvaluationException {
-        log.info("evaluating expression: {}", expression);
-
-        String trimmedExpression = expression.replaceAll("\\s","");
-        String value = evaluate(trimmedExpression, Collections.<String,String> emptyMap());
-        log.info("{}: expression evaluates to final result of {}", expression, value);
-        return value;
+        return compile(expression).evaluate();
     }
 
     /**
-     * Evaluates an expression with variable substitution. Any sub-expressions will be evaluated recursively, and a
-     * final result is returned.
+     * Evaluates an expression in a numeric mode, which may differ from the evaluator's own.
      *
-     * @param expression expression to evaluate. eg "2, add(3, 5)".
-     * @param variables the variables to substitute into the expression.
+     * @param expression expression to evaluate. eg "div(1, 3)".
+     * @param numericMode the numeric mode of the arithmetic functions.
      * @return the result of the expression.
      * @throws EvaluationException if an error occurs during the evaluation.
      */
-    private String evaluate(String expression, Map<String, String> variables) throws EvaluationException {
-        log.debug("evaluating expression {} with variables {}", expression, variables);
-        if (!expression.contains("(")) {
-            // no bracket, so treat expression as a raw value as opposed to a function
-            String value = variables.containsKey(expression) ? variables.get(expression) : expression;
-            log.debug("{}: expression is a single value which evaluates to {}", expression, value);
-            return value;
-        }
+    public String evaluate(String expression, NumericMode numericMode) throws EvaluationException {
+        return compile(expression, numericMode).evaluate();
+    }
 
-        // expression is a function
-        int bracketIndex = expression.indexOf("(");
-        String functionName = expression.substring(0, bracketIndex).toLowerCase();
-        log.debug("{}: expression represents function '{}'", expression, functionName);
+    /**
+     * Parses an expression into a {@link CompiledExpression}, which can then be evaluated any number of times without
+     * parsing the expression text again. The functions are resolved and their arguments validated at this point, so
+     * unrecognized functions and invalid numbers of arguments are reported here rather than during evaluation.
+     * If caching is enabled, a previously compiled expression with the same text (ignoring whitespace, except
+     * between two names or values) is returned.
+     *
+     * @param expression expression to compile. eg "add(3, 5)".
+     * @return the compiled expression.
+     * @throws EvaluationException if the expression is not valid.
+     */
+    public CompiledExpression compile(String expression) throws EvaluationException {
+        return compile(expression, numericMode);
+    }
 
-        if (expression.charAt(expression.length() - 1) != ')') {
-            throw new EvaluationException(expression + ": missing end bracket for function: " + functionName);
+    /**
+     * Parses an expression into a {@link CompiledExpression}, as {@link #compile(String)}, whose arithmetic functions
+     * use a numeric mode which may differ from the evaluator's own. Registered subclasses of
+     * {@link ArithmeticFunction} are switched to the mode by {@link ArithmeticFunction#withNumericMode(NumericMode)},
+     * and other functions are used as they are.
+     *
+     * @param expression expression to compile. eg "div(1, 3)".
+     * @param numericMode the numeric mode of the arithmetic functions.
+     * @return the compiled expression.
+     * @throws EvaluationException if the expression is not valid.
+     */
+    public CompiledExpression compile(String expression, NumericMode numericMode) throws EvaluationException {
+        PlanFile planFile = numericMode.equals(this.numericMode) ? plans : null;
+        if (cache == null && planFile == null) {
+            return parse(expression, functionsFor(numericMode));
         }
 
-        // parse function arguments as raw string - we don't execute nested functions at this stage
-        String argumentsString = expression.substring(bracketIndex + 1, expression.length() - 1);
-        List<String> arguments = parseFunctionArguments(argumentsString);
-        log.debug("{}: parsed the following function arguments: {}", expression, arguments);
-
-        Function function = functions.get(functionName);
-        if (function == null) {
-            throw new EvaluationException(expression + ": unrecognized function: " + functionName);
+        String key = ExpressionLexer.tokenKey(expression);
+        if (cache == null) {
+            return load(expression, key, planFile);
+        }
+        if (!numericMode.equals(this.numericMode)) {
+            // the only whitespace a key keeps is a space, so this can't be mistaken for another expression
+            key = numericMode + "\t" + key;
         }
+        CompiledExpression compiled = cache.get(key);
+        if (compiled == null) {
+            // two threads may occasionally compile the same expression at once - both results are equivalent
+            compiled = planFile != null ? load(expression, key, planFile)
+                    : parse(expression, functionsFor(numericMode));
+            cache.put(key, compiled);
+        }
+        return compiled;
+    }
 
-        validateFunctionArguments(function, arguments);
-        log.debug("{}: confirmed that a valid number of arguments were provided", expression);
+    /**
+     * Compiles expressions in the evaluator's numeric mode, and writes their plans - the trees of nodes after
+     * optimization, with variables resolved and constants folded - to a file, replacing it if it exists. The file can
+     * be loaded by {@link #loadPlans(Path)} when another evaluator starts, so that it compiles the expressions without
+     * parsing them. Expressions which differ only in whitespace which doesn't
+     * separate two names or values are written once.
+     *
+     * @param expressions the expressions to write.
+     * @param file the file to write.
+     * @return the number of plans written.
+     * @throws EvaluationException if an expression is not valid.
+     * @throws IOException if an error occurs writing the file, or it would be larger than 2GB.
+     */
+    public int writePlans(Collection<String> expressions, Path file) throws EvaluationException, IOException {
+        Set<String> seen = new HashSet<String>();
+        List<String> keys = new ArrayList<String>();
+        List<CompiledExpression> compiled = new ArrayList<CompiledExpression>();
+        for (String expression : expressions) {
+            String key = ExpressionLexer.tokenKey(expression);
+            if (seen.add(key)) {
+                keys.add(key);
+                compiled.add(compile(expression));
+            }
+        }
+        PlanFile.write(file, keys, compiled, numericMode);
+        Log.log.debug("wrote {} plans to {}", keys.size(), file);
+        return keys.size();
+    }
 
-        // evaluate the arguments - "let" is a special case since it registers an additional variable
-        log.debug("{}: evaluating arguments", expression);
-        List<String> evaluatedArguments = new ArrayList<String>(arguments.size());
-        if (function instanceof LetFunction) {
-            String variableName = arguments.get(0);
+    /**
+     * Loads a file of plans written by {@link #writePlans(Collection, Path)}, replacing any loaded before. The file is
+     * memory mapped, and each plan is only decoded when its expression is compiled, so loading takes about the same
+     * time however many plans there are. Expressions without a plan, or compiled in another numeric mode, are parsed
+     * as usual. Functions are resolved by name when a plan is decoded, so the functions of the plans must be
+     * registered before the file is loaded.
+     *
+     * @param file the file to load.
+     * @return the number of plans in the file.
+     * @throws EvaluationException if the plans were written in another numeric mode, or refer to a function which is
+     *                             not registered.
+     * @throws IOException if an error occurs reading the file, or it isn't a plan file of a supported version.
+     */
+    public int loadPlans(Path file) throws EvaluationException, IOException {
+        PlanFile planFile = PlanFile.open(file, functions, numericMode);
+        plans = planFile;
+        Log.log.debug("loaded {} plans from {}", planFile.size(), file);
+        return planFile.size();
+    }
 
-            // recursively evaluate the second argument using existing variables
-            String variableValue = evaluate(arguments.get(1), variables);
-            log.debug("{}: variable {} evaluates to {}", expression, variableName, variableValue);
+    /**
+     * Compiles an expression from its plan, or by parsing it if it has no plan.
+     */
+    private CompiledExpression load(String expression, String key, PlanFile planFile)
+            throws EvaluationException {
+        PlanFile.Plan plan = planFile.find(key, functions);
+        if (plan == null) {
+            return parse(expression, functions);
+        }
+        return new CompiledExpression(expression, plan.root, plan.numLocals, plan.freeVariableNames,
+                compileToMethodHandles, vectorizeColumns, parallelWidth, parallelCost, metrics, tracing);
+    }
 
-            // evaluate the third argument - the expression - using newly calculated variables along with existing ones
-            // any sub-expressions of the third argument will also have access to the new variable
-            Map<String, String> newVariables = new HashMap<String, String>();
-            newVariables.putAll(variables);
-            newVariables.put(variableName, variableValue);
-            String letExpression = evaluate(arguments.get(2), newVariables);
+    /**
+     * Parses and evaluates an expression which is only evaluated once, such as a line read straight from a mapped
+     * file. The text is parsed in place, and isn't cached, so it's never copied into a String. Free variables are
+     * unbound.
+     *
+     * @param expression expression to evaluate.
+     * @return the result of the expression.
+     * @throws EvaluationException if the expression is not valid, or an error occurs during the evaluation.
+     */
+    String evaluateOnce(CharSequence expression) throws EvaluationException {
+        long parseStart = metrics != null ? System.nanoTime() : 0;
+        ExpressionParser parser = new ExpressionParser(expression, functions, maxDepth);
+        Node root = parser.parse();
+        if (optimize) {
+            root = Optimizer.optimize(root, parser.getNumLocals());
+        }
+        String[] freeVariableNames = parser.getFreeVariableNames();
+        Value[] freeValues = new Value[freeVariableNames.length];
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            // an unbound variable evaluates to its name, which is reported as an invalid argument if it's used
+            freeValues[i] = Value.parse(freeVariableNames[i]);
+        }
+        Program program = Program.compile(root, parser.getNumLocals(), freeValues.length, metrics, tracing);
+        if (metrics == null) {
+            return program.execute(freeValues, new long[freeValues.length]).toString();
+        }
 
-            evaluatedArguments.add(variableName);
-            evaluatedArguments.add(variableValue);
-            evaluatedArguments.add(letExpression);
+        metrics.parsed(System.nanoTime() - parseStart, parser.getDepth(), parser.getSize());
+        long start = metrics.startEvaluation();
+        String result;
+        try {
+            result = program.execute(freeValues, new long[freeValues.length]).toString();
+        } catch (EvaluationException e) {
+            metrics.failed(start);
+            throw e;
+        }
+        metrics.evaluated(start);
+        return result;
+    }
 
-        } else {
-            for (String argument : arguments) {
-                // recursively evaluate arguments using existing variables
-                evaluatedArguments.add(evaluate(argument, variables));
-            }
+    /**
+     * Evaluates an expression as it's read, rather than reading it all and parsing it into a tree first, so that an
+     * expression too large to hold in memory, such as an add with millions of arguments, can be evaluated in memory
+     * proportional to how deeply its function calls are nested. Calls of arithmetic functions combine their
+     * arguments as they're read, and let binds its variable for the body which follows it. Calls of other lazy
+     * functions are read whole, and parsed as usual. The result, and any error, are the same as
+     * {@link #evaluate(String)} with the whole expression, although calls which are combined as they're read aren't
+     * traced or recorded in function metrics. Free variables are unbound. The reader is not closed.
+     *
+     * @param reader the expression to evaluate.
+     * @return the result of the expression.
+     * @throws EvaluationException if the expression is not valid, or an error occurs during the evaluation.
+     * @throws IOException if an error occurs reading the expression.
+     */
+    public String evaluate(Reader reader) throws EvaluationException, IOException {
+        StreamingEvaluator evaluator = new StreamingEvaluator(reader, functions, maxDepth, optimize, metrics, tracing);
+        if (metrics == null) {
+            return evaluator.evaluate();
         }
 
-        // finally, execute the function with evaluated arguments and return the result
-        log.debug("{}: executing function {} with evaluated arguments {}", expression, functionName, evaluatedArguments);
-        String value = null;
+        long start = metrics.startEvaluation();
+        String result;
         try {
-            value = function.execute(evaluatedArguments);
-        } catch (FunctionExecutionException e) {
-            throw new EvaluationException("an error occurred executing function " + functionName + ":" + e.getMessage(), e);
-        }
-        log.debug("{}: expression evaluates to {}", expression, value);
-        return value;
-    }
-
-    /**
-     * Parse the function arguments. These could be raw values or functions themselves, but we parse them as raw
-     * strings -- we don't evaluate them at this point.
-     **
-     * @param argumentsString everything within the brackets of a function call.
-     * @return list of arguments.
-     */
-    private List<String> parseFunctionArguments(String argumentsString) {
-        int nestedBracketDepth = 0;
-        int charIndex = 0;
-        int argSplitStartIndex = 0;
-        List<String> arguments = new ArrayList<String>();
-        while (++charIndex < argumentsString.length()) {
-            char c = argumentsString.charAt(charIndex);
-            if (c == '(') {
-                nestedBracketDepth++;
-            } else if (c == ')') {
-                nestedBracketDepth--;
-            } else if (c == ',' && nestedBracketDepth == 0){
-                // top level comma (not nested in brackets)
-                arguments.add(argumentsString.substring(argSplitStartIndex, charIndex));
-                argSplitStartIndex = charIndex + 1;
-            }
+            result = evaluator.evaluate();
+        } catch (EvaluationException e) {
+            metrics.failed(start);
+            throw e;
+        }
+        metrics.evaluated(start);
+        return result;
+    }
+
+    /**
+     * Evaluates an expression as it's read from a channel, such as a pipe or a file channel, as
+     * {@link #evaluate(Reader)}. The expression is decoded as UTF-8. The channel is not closed.
+     *
+     * @param channel the expression to evaluate.
+     * @return the result of the expression.
+     * @throws EvaluationException if the expression is not valid, or an error occurs during the evaluation.
+     * @throws IOException if an error occurs reading the expression, or it isn't valid UTF-8.
+     */
+    public String evaluate(ReadableByteChannel channel) throws EvaluationException, IOException {
+        return evaluate(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+    }
+
+    private CompiledExpression parse(String expression, Map<String, Function> functions) throws EvaluationException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ExpressionParser parser = new ExpressionParser(expression, functions, maxDepth);
+        Node root = parser.parse();
+        if (optimize) {
+            root = Optimizer.optimize(root, parser.getNumLocals());
+        }
+        if (tracing) {
+            Log.log.debug("{}: compiled expression to {}", expression, root);
+        }
+        CompiledExpression compiled = new CompiledExpression(expression, root, parser.getNumLocals(),
+                parser.getFreeVariableNames(), compileToMethodHandles, vectorizeColumns, parallelWidth, parallelCost,
+                metrics, tracing);
+        if (metrics != null) {
+            metrics.parsed(System.nanoTime() - start, parser.getDepth(), parser.getSize());
         }
-        // parse the remaining argument, after the last comma
-        arguments.add(argumentsString.substring(argSplitStartIndex, argumentsString.length()));
-        return arguments;
+        return compiled;
     }
 
     /**
-     * Ensures that the function is provided with a valid number of arguments. If unsupported number of arguments are
-     * provided, an EvaluationException is thrown.
+     * Returns the registered functions, with the arithmetic functions switched to a numeric mode.
      *
-     * @param function the Function to validate.
-     * @param arguments the arguments that will be passed to the function.
-     * @throws EvaluationException if an invalid number of arguments are provided to the function.
+     * @param numericMode the numeric mode.
+     * @return the functions, keyed by lower case name.
      */
-    private void validateFunctionArguments(Function function, List<String> arguments) throws EvaluationException {
-        int numArgs = arguments.size();
-        int minNumArgsSupported = function.getMinNumberOfArgsSupported();
-        int maxNumArgsSupported = function.getMaxNumberOfArgsSupported();
-        if (numArgs < minNumArgsSupported) {
-            throw new EvaluationException("Function " + function.getName() + " requires at least " + minNumArgsSupported + " arguments but only " + numArgs + " provided");
-        } else if (numArgs > maxNumArgsSupported) {
-            throw new EvaluationException("Function " + function.getName() + " supports at most " + maxNumArgsSupported + " arguments but " + numArgs + " provided");
+    private Map<String, Function> functionsFor(NumericMode numericMode) {
+        if (numericMode.equals(this.numericMode)) {
+            return functions;
         }
+        Map<String, Function> modeFunctions = new HashMap<String, Function>();
+        for (Map.Entry<String, Function> entry : functions.entrySet()) {
+            Function function = entry.getValue();
+            if (function instanceof ArithmeticFunction) {
+                function = ((ArithmeticFunction) function).withNumericMode(numericMode);
+            }
+            modeFunctions.put(entry.getKey(), function);
+        }
+        return modeFunctions;
     }
 
+    /**
+     * Holds the logger, so that loading an evaluator doesn't initialize logging. Only tracing and loading or writing
+     * plans log.
+     */
+    private static class Log {
+        static final Logger log = LoggerFactory.getLogger(ExpressionEvaluator.class);
+    }
 }
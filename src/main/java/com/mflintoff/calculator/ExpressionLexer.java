@@ -0,0 +1,280 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.function.Function;
+
+import java.util.Map;
+
+/**
+ * <p>Reads the tokens of an expression - names and raw values, brackets and commas - and resolves and validates its
+ * function calls. It's the part of the grammar shared by {@link ExpressionParser}, which reads a CharSequence into a
+ * tree of nodes, and {@link StreamingEvaluator}, which evaluates a Reader as it goes, so that both accept the same
+ * expressions and report the same errors. Subclasses provide the characters.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+abstract class ExpressionLexer {
+
+    private final Map<String, Function> functions;
+    private final int maxDepth;
+
+    /**
+     * Constructs an ExpressionLexer.
+     *
+     * @param functions the registered functions, keyed by lower case name.
+     * @param maxDepth the maximum depth to which function calls may be nested.
+     */
+    ExpressionLexer(Map<String, Function> functions, int maxDepth) {
+        this.functions = functions;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns the registered functions.
+     *
+     * @return the functions, keyed by lower case name.
+     */
+    final Map<String, Function> getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Returns the maximum depth to which function calls may be nested.
+     *
+     * @return the maximum depth.
+     */
+    final int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the character at the current position.
+     *
+     * @return the character, or -1 at the end of the expression.
+     */
+    protected abstract int peek();
+
+    /**
+     * Moves past the character at the current position, which must have been peeked.
+     */
+    protected abstract void advance();
+
+    /**
+     * Returns the current position.
+     *
+     * @return the zero based index of the next character.
+     */
+    protected abstract long position();
+
+    /**
+     * Reads the run of characters which can be part of an atom, starting at the current position.
+     *
+     * @return the characters, which are empty if the current character can't be part of an atom.
+     */
+    protected abstract String scanAtom();
+
+    /**
+     * Returns whether a character can be part of a name or raw value.
+     *
+     * @param c the character.
+     * @return true unless the character is whitespace, '(', ')' or ','.
+     */
+    static boolean isAtomCharacter(char c) {
+        return c != '(' && c != ')' && c != ',' && !Character.isWhitespace(c);
+    }
+
+    /**
+     * Returns the tokens of an expression as text, keeping whitespace only where it separates two atoms, eg.
+     * " add( 1 2, 3 ) " becomes "add(1 2,3)". Two expressions with the same key are parsed in the same way, apart
+     * from the positions in any error, so the key can stand for the expression wherever its parsed form is reused.
+     *
+     * @param expression the expression.
+     * @return the key, which is the expression itself if it has no whitespace.
+     */
+    static String tokenKey(String expression) {
+        int length = expression.length();
+        StringBuilder key = null;
+        for (int i = 0; i < length; i++) {
+            char c = expression.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                if (key != null) {
+                    key.append(c);
+                }
+                continue;
+            }
+
+            if (key == null) {
+                key = new StringBuilder(length).append(expression, 0, i);
+            }
+            int end = i + 1;
+            while (end < length && Character.isWhitespace(expression.charAt(end))) {
+                end++;
+            }
+            // whitespace between two atoms splits them, where anywhere else it makes no difference
+            if (key.length() > 0 && end < length && isAtomCharacter(key.charAt(key.length() - 1))
+                    && isAtomCharacter(expression.charAt(end))) {
+                key.append(' ');
+            }
+            i = end - 1;
+        }
+        return key != null ? key.toString() : expression;
+    }
+
+    /**
+     * Reads a name or raw value starting at the current position.
+     *
+     * @return the atom.
+     * @throws ExpressionParseException if there is no atom at the current position.
+     */
+    final String readAtom() throws ExpressionParseException {
+        skipWhitespace();
+        String atom = scanAtom();
+        if (atom.isEmpty()) {
+            if (peek() < 0) {
+                throw parseException("unexpected end of expression", position());
+            }
+            throw parseException("unexpected character '" + (char) peek() + "'", position());
+        }
+        return atom;
+    }
+
+    /**
+     * Reads a bracket, if it's the next character other than whitespace.
+     *
+     * @param bracket '(' or ')'.
+     * @return true if the bracket was read.
+     */
+    final boolean readBracket(char bracket) {
+        skipWhitespace();
+        if (peek() == bracket) {
+            advance();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the character after a function argument.
+     *
+     * @param function the function whose arguments are being read.
+     * @return true if another argument follows, false if the closing bracket was read.
+     * @throws ExpressionParseException if neither a comma nor a closing bracket follows the argument.
+     */
+    final boolean readSeparator(Function function) throws ExpressionParseException {
+        skipWhitespace();
+        int c = peek();
+        if (c < 0) {
+            throw parseException("missing end bracket for function: " + function.getName(), position());
+        } else if (c == ',') {
+            advance();
+            return true;
+        } else if (c == ')') {
+            advance();
+            return false;
+        }
+        throw parseException("expected ',' or ')' but found '" + (char) c + "'", position());
+    }
+
+    /**
+     * Ensures that nothing but whitespace follows the expression.
+     *
+     * @throws ExpressionParseException if there are more characters.
+     */
+    final void readEnd() throws ExpressionParseException {
+        skipWhitespace();
+        if (peek() >= 0) {
+            throw parseException("unexpected character '" + (char) peek() + "'", position());
+        }
+    }
+
+    final void skipWhitespace() {
+        while (peek() >= 0 && Character.isWhitespace(peek())) {
+            advance();
+        }
+    }
+
+    /**
+     * Resolves the function of a call, once its opening bracket has been read.
+     *
+     * @param functionName the name of the function, as it appears in the expression.
+     * @param functionStart the position of the function name.
+     * @param depth the number of enclosing function calls.
+     * @return the function.
+     * @throws ExpressionParseException if the function is unrecognized or nested too deeply.
+     */
+    final Function resolveFunction(String functionName, long functionStart, int depth)
+            throws ExpressionParseException {
+        Function function = lookupFunction(functionName);
+        if (function == null) {
+            throw parseException("unrecognized function: " + functionName, functionStart);
+        } else if (depth >= maxDepth) {
+            throw parseException("expression exceeds the maximum depth of " + maxDepth, functionStart);
+        }
+        return function;
+    }
+
+    /**
+     * Looks up a function by name, ignoring case. Function names are almost always written in lower case, so the name
+     * is only converted to lower case if it isn't found as is.
+     *
+     * @param functionName the name of the function, as it appears in the expression.
+     * @return the function, or null if there is no such function.
+     */
+    final Function lookupFunction(String functionName) {
+        Function function = functions.get(functionName);
+        if (function == null) {
+            function = functions.get(functionName.toLowerCase());
+        }
+        return function;
+    }
+
+    /**
+     * Ensures that the function is provided with a valid number of arguments. If unsupported number of arguments are
+     * provided, an ExpressionParseException is thrown.
+     *
+     * @param function the Function to validate.
+     * @param numArgs the number of arguments that will be passed to the function.
+     * @param functionStart the position of the function name.
+     * @throws ExpressionParseException if an invalid number of arguments are provided to the function.
+     */
+    static void validateFunctionArguments(Function function, int numArgs, long functionStart)
+            throws ExpressionParseException {
+        int minNumArgsSupported = function.getMinNumberOfArgsSupported();
+        int maxNumArgsSupported = function.getMaxNumberOfArgsSupported();
+        if (numArgs < minNumArgsSupported) {
+            throw parseException("Function " + function.getName() + " requires at least " + minNumArgsSupported
+                    + " arguments but only " + numArgs + " provided", functionStart);
+        } else if (numArgs > maxNumArgsSupported) {
+            throw parseException("Function " + function.getName() + " supports at most " + maxNumArgsSupported
+                    + " arguments but " + numArgs + " provided", functionStart);
+        }
+    }
+
+    /**
+     * Ensures that a binding function, such as let, is provided with a variable, a value and an expression.
+     *
+     * @param function the binding function.
+     * @param numArgs the number of arguments, including the variable name.
+     * @param functionStart the position of the function name.
+     * @throws ExpressionParseException if an invalid number of arguments are provided to the function.
+     */
+    static void validateBindingArguments(Function function, int numArgs, long functionStart)
+            throws ExpressionParseException {
+        validateFunctionArguments(function, numArgs, functionStart);
+        if (numArgs != 3) {
+            throw parseException("Function " + function.getName() + " introduces a variable, so requires 3 arguments "
+                    + "but " + numArgs + " provided", functionStart);
+        }
+    }
+
+    /**
+     * Creates the exception for an error at a position. Positions beyond the range of an int, which only a streamed
+     * expression can reach, are reported as {@link Integer#MAX_VALUE}.
+     *
+     * @param message the error message.
+     * @param position the position of the error.
+     * @return the exception.
+     */
+    static ExpressionParseException parseException(String message, long position) {
+        return new ExpressionParseException(message, (int) Math.min(position, Integer.MAX_VALUE));
+    }
+}
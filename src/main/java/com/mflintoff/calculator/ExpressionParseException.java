@@ -0,0 +1,42 @@
+package com.mflintoff.calculator;
+
+/**
+ * Thrown when an expression can't be parsed, eg. because of a missing bracket or an unrecognized function.
+ *
+ * @author Malcolm Flintoff
+ */
+public class ExpressionParseException extends EvaluationException {
+
+    private final String reason;
+    private final int position;
+
+    /**
+     * Constructs an ExpressionParseException with the given error message and position.
+     *
+     * @param msg the error message.
+     * @param position the zero based index of the character in the expression where the error was detected.
+     */
+    public ExpressionParseException(String msg, int position) {
+        super(msg + " at position " + position);
+        this.reason = msg;
+        this.position = position;
+    }
+
+    /**
+     * Returns the error message without the position, as it was given to the constructor.
+     *
+     * @return the reason for the error.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns the zero based index of the character in the expression where the error was detected.
+     *
+     * @return the position of the error.
+     */
+    public int getPosition() {
+        return position;
+    }
+}
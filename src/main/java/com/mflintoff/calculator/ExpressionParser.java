@@ -0,0 +1,326 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.FreeVariableNode;
+import com.mflintoff.calculator.expression.FunctionCallNode;
+import com.mflintoff.calculator.expression.LetNode;
+import com.mflintoff.calculator.expression.LiteralNode;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.VariableNode;
+import com.mflintoff.calculator.function.BindingFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.Value;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A parser which turns expression text into a tree of {@link Node}s. The expression is read exactly once,
+ * character by character: whitespace is skipped as it's encountered, and the only strings created are the names and
+ * raw values in the expression. The text may be any CharSequence, so that it can be parsed in place from a buffer
+ * without first being copied into a String.</p>
+ *
+ * <p>The grammar is:</p>
+ * <pre>
+ * expression := atom | atom '(' [ expression { ',' expression } ] ')'
+ * atom       := any run of characters other than whitespace, '(', ')' and ','
+ * </pre>
+ *
+ * <p>Function calls which are still being parsed are kept on an explicit stack rather than the Java stack, so that
+ * expressions can be nested as deeply as the maximum depth allows without risk of a StackOverflowError. Tokens are read,
+ * and calls validated, by {@link ExpressionLexer}.</p>
+ *
+ * <p>A parser is used for a single expression, and is not thread safe.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class ExpressionParser extends ExpressionLexer {
+
+    private final CharSequence expression;
+    private final int enclosingDepth;
+    private final int length;
+    private int position = 0;
+
+    // slot of the innermost enclosing let which introduces each variable name
+    private final Map<String, Integer> letVariables = new HashMap<String, Integer>();
+    private int letDepth = 0;
+    private int numLocals = 0;
+
+    // the deepest nesting of calls, and the number of nodes, for metrics
+    private int depth = 0;
+    private int size = 0;
+
+    // index of each variable which isn't introduced by a let, in order of first use
+    private final Map<String, Integer> freeVariables = new HashMap<String, Integer>();
+    private final List<String> freeVariableNames = new ArrayList<String>();
+
+    /**
+     * A function call whose arguments are still being parsed.
+     */
+    private static class Call {
+        final Function function;
+        final int functionStart;
+        final List<Node> arguments = new ArrayList<Node>();
+        int numArgs = 0;
+
+        // only used for binding functions, such as let
+        String variableName;
+        int slot;
+        Integer shadowedSlot;
+
+        Call(Function function, int functionStart) {
+            this.function = function;
+            this.functionStart = functionStart;
+        }
+
+        boolean isLet() {
+            return variableName != null;
+        }
+    }
+
+    /**
+     * Constructs an ExpressionParser.
+     *
+     * @param expression the expression to parse.
+     * @param functions the registered functions, keyed by lower case name.
+     * @param maxDepth the maximum depth to which function calls may be nested.
+     */
+    ExpressionParser(CharSequence expression, Map<String, Function> functions, int maxDepth) {
+        this(expression, functions, maxDepth, 0);
+    }
+
+    /**
+     * Constructs an ExpressionParser for a subexpression, which is nested in calls that count towards the maximum
+     * depth.
+     *
+     * @param expression the expression to parse.
+     * @param functions the registered functions, keyed by lower case name.
+     * @param maxDepth the maximum depth to which function calls may be nested.
+     * @param enclosingDepth the number of calls the expression is nested in.
+     */
+    ExpressionParser(CharSequence expression, Map<String, Function> functions, int maxDepth, int enclosingDepth) {
+        super(functions, maxDepth);
+        this.expression = expression;
+        this.enclosingDepth = enclosingDepth;
+        this.length = expression.length();
+    }
+
+    /**
+     * Parses the whole expression.
+     *
+     * @return the root node of the expression.
+     * @throws ExpressionParseException if the expression is not valid.
+     */
+    Node parse() throws ExpressionParseException {
+        Deque<Call> calls = new ArrayDeque<Call>();
+        Node root = null;
+        while (root == null) {
+            // parse an expression starting at the current position: either a raw value or a function call
+            skipWhitespace();
+            int atomStart = position;
+            String atom = readAtom();
+
+            Node node;
+            if (readBracket('(')) {
+                Call call = startFunctionCall(atom, atomStart, enclosingDepth + calls.size());
+                depth = Math.max(depth, calls.size() + 1);
+                if (call != null) {
+                    // the call has arguments, so parse the first of them
+                    calls.push(call);
+                    continue;
+                }
+                node = new FunctionCallNode(lookupFunction(atom), new ArrayList<Node>());
+            } else {
+                node = createAtomNode(atom);
+            }
+            size++;
+
+            // add the node to the enclosing call. If that was the last argument, the call is complete and is itself
+            // added to its enclosing call, and so on
+            while (node != null) {
+                Call call = calls.peek();
+                if (call == null) {
+                    root = node;
+                    break;
+                }
+                addArgument(call, node);
+                if (readSeparator(call.function)) {
+                    node = null;
+                    if (call.isLet() && call.numArgs == 2) {
+                        bindLetVariable(call);
+                    }
+                } else {
+                    calls.pop();
+                    node = finishFunctionCall(call);
+                    size++;
+                }
+            }
+        }
+
+        readEnd();
+        return root;
+    }
+
+    /**
+     * Returns the number of let slots needed to evaluate the parsed expression.
+     *
+     * @return the number of slots.
+     */
+    int getNumLocals() {
+        return numLocals;
+    }
+
+    /**
+     * Returns the deepest nesting of function calls in the parsed expression.
+     *
+     * @return the depth, which is 0 if the expression has no calls.
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Returns the number of values, variables and function calls in the parsed expression.
+     *
+     * @return the size.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the names of the variables in the parsed expression which aren't introduced by a let, in the order of
+     * their indexes.
+     *
+     * @return the free variable names.
+     */
+    String[] getFreeVariableNames() {
+        return freeVariableNames.toArray(new String[freeVariableNames.size()]);
+    }
+
+    /**
+     * Starts parsing a function call, just after the opening bracket.
+     *
+     * @param functionName the name of the function, as it appears in the expression.
+     * @param functionStart the position of the function name.
+     * @param depth the number of enclosing function calls.
+     * @return the call, or null if the function has no arguments.
+     * @throws ExpressionParseException if the function is unrecognized or nested too deeply.
+     */
+    private Call startFunctionCall(String functionName, int functionStart, int depth) throws ExpressionParseException {
+        Function function = resolveFunction(functionName, functionStart, depth);
+        if (readBracket(')')) {
+            // no arguments
+            validateFunctionArguments(function, 0, functionStart);
+            return null;
+        }
+
+        Call call = new Call(function, functionStart);
+        if (function instanceof BindingFunction) {
+            // a binding function such as "let" registers an additional variable, which is only in scope for the
+            // third argument - the expression. The first argument is the variable name, rather than an expression
+            call.variableName = readAtom();
+            call.numArgs = 1;
+            if (!readSeparator(function)) {
+                validateFunctionArguments(function, 1, functionStart);
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Adds a parsed argument to a function call.
+     *
+     * @param call the function call.
+     * @param argument the argument.
+     */
+    private void addArgument(Call call, Node argument) {
+        call.arguments.add(argument);
+        call.numArgs++;
+        if (call.isLet() && call.numArgs == 3) {
+            // the body of the let has been parsed, so the variable is no longer in scope
+            if (call.shadowedSlot == null) {
+                letVariables.remove(call.variableName);
+            } else {
+                letVariables.put(call.variableName, call.shadowedSlot);
+            }
+            letDepth--;
+        }
+    }
+
+    /**
+     * Brings a let variable into scope, once the value of the let has been parsed.
+     *
+     * @param call the let.
+     */
+    private void bindLetVariable(Call call) {
+        // the variable shadows any outer variable with the same name
+        call.slot = letDepth++;
+        numLocals = Math.max(numLocals, letDepth);
+        call.shadowedSlot = letVariables.put(call.variableName, call.slot);
+    }
+
+    /**
+     * Creates the node for a function call, once its closing bracket has been read.
+     *
+     * @param call the function call.
+     * @return the node.
+     * @throws ExpressionParseException if the function is provided with an invalid number of arguments.
+     */
+    private Node finishFunctionCall(Call call) throws ExpressionParseException {
+        if (call.isLet()) {
+            validateBindingArguments(call.function, call.numArgs, call.functionStart);
+            return new LetNode((BindingFunction) call.function, call.variableName, call.slot, call.arguments.get(0), call.arguments.get(1));
+        }
+        validateFunctionArguments(call.function, call.numArgs, call.functionStart);
+        return new FunctionCallNode(call.function, call.arguments);
+    }
+
+    /**
+     * Creates the node for a raw value, as opposed to a function.
+     *
+     * @param atom the raw value.
+     * @return the node.
+     */
+    private Node createAtomNode(String atom) {
+        Integer slot = letVariables.get(atom);
+        if (slot != null) {
+            return new VariableNode(atom, slot);
+        }
+        Value value = Value.parse(atom);
+        if (value.isNumber()) {
+            return new LiteralNode(value);
+        }
+
+        Integer index = freeVariables.get(atom);
+        if (index == null) {
+            index = freeVariableNames.size();
+            freeVariables.put(atom, index);
+            freeVariableNames.add(atom);
+        }
+        return new FreeVariableNode(atom, index);
+    }
+
+    protected int peek() {
+        return position < length ? expression.charAt(position) : -1;
+    }
+
+    protected void advance() {
+        position++;
+    }
+
+    protected long position() {
+        return position;
+    }
+
+    protected String scanAtom() {
+        int start = position;
+        while (position < length && isAtomCharacter(expression.charAt(position))) {
+            position++;
+        }
+        return expression.subSequence(start, position).toString();
+    }
+}
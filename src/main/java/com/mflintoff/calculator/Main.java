@@ -1,5 +1,8 @@
 package com.mflintoff.calculator;
 
+import com.mflintoff.calculator.function.NumericMode;
+import com.mflintoff.calculator.server.EvaluationServer;
+import com.mflintoff.calculator.server.FrameServer;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -18,16 +21,90 @@ import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
 /**
  * This class contains logic to parse and validate the command line arguments, initialize the logging, and evaluate
- * the expression via the ExpressionEvaluator class. It's main method is the entry point into the application.
+ * the expression via the ExpressionEvaluator class, each line of an input file via the BatchEvaluator class, or
+ * requests to a server via the EvaluationServer or FrameServer classes. It's main method is the entry point into the application.
  *
  * @author Malcolm Flintoff
  */
 public class Main {
 
     private static final String APP_NAME = "calculator";
-    private static Logger log; // initialized in initializeLogging method below
+    private static final int BATCH_CACHE_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SERVER_CACHE_SIZE = 4096;
+    private static final int ASYNC_BUFFER_SIZE = 8192;
+    private static Logger log; // initialized in initializeLogging method below, on first use
+    private static Level logLevel = Level.INFO; // initialized in configureLogging method below
+    private static String logFile; // initialized in configureLogging method below
+    private static boolean asyncLogging; // initialized in configureLogging method below
+    private static boolean tracing; // initialized in configureLogging method below
+
+    /**
+     * Parse the command line arguments of the common case of evaluating a single expression, without loading
+     * commons-cli. Only separate options and values are recognized, eg. "-e add(1, 2) -l ERROR", not "-eadd(1, 2)" or
+     * "--expression=add(1, 2)". Anything else, including invalid values, is left to parseCommandLineOptions, which
+     * reports any error along with the usage instructions.
+     *
+     * @param args the raw arguments array passed to the main method.
+     * @return the parsed command line arguments, or null if they must be parsed by parseCommandLineOptions.
+     */
+    private static CommandLineArguments parseExpressionArguments(String[] args) {
+        String expression = null;
+        NumericMode numericMode = null;
+        Level logLevel = null;
+        String logFile = null;
+        boolean async = false;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-a") || arg.equals("--async")) {
+                async = true;
+                continue;
+            }
+            // a value which looks like an option is left to commons-cli to interpret
+            String value = i + 1 < args.length && !args[i + 1].startsWith("-") ? args[++i] : null;
+            if (value == null) {
+                return null;
+            } else if ((arg.equals("-e") || arg.equals("--expression")) && expression == null) {
+                expression = value;
+            } else if ((arg.equals("-p") || arg.equals("--precision")) && numericMode == null) {
+                try {
+                    numericMode = NumericMode.parse(value);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            } else if ((arg.equals("-l") || arg.equals("--loglevel")) && logLevel == null) {
+                logLevel = Level.getLevel(value.toUpperCase());
+                if (logLevel == null) {
+                    return null;
+                }
+            } else if ((arg.equals("-f") || arg.equals("--logfile")) && logFile == null) {
+                logFile = value;
+            } else {
+                return null;
+            }
+        }
+        if (expression == null) {
+            return null;
+        }
+        return new CommandLineArguments(expression, null, -1, null, Runtime.getRuntime().availableProcessors(),
+                numericMode != null ? numericMode : NumericMode.DEFAULT, logLevel != null ? logLevel : Level.INFO,
+                logFile, async);
+    }
 
     /**
      * Parse the command line options. If there was an error parsing the options, or if the -h parameter was present,
@@ -46,6 +123,42 @@ public class Main {
                 .build();
         options.addOption(expressionOpt);
 
+        Option inputOpt = Option.builder("i")
+                .argName("file")
+                .longOpt("input")
+                .desc("file of expressions to evaluate, one per line, or - to read from stdin. Results are written to " +
+                        "stdout, one per line in the same order")
+                .hasArg()
+                .build();
+        options.addOption(inputOpt);
+
+        Option threadsOpt = Option.builder("t")
+                .argName("threads")
+                .longOpt("threads")
+                .desc("number of threads to evaluate the input or serve requests with (optional). Default value is " +
+                        "the number of available processors")
+                .hasArg()
+                .build();
+        options.addOption(threadsOpt);
+
+        Option serveOpt = Option.builder("s")
+                .argName("port")
+                .longOpt("serve")
+                .desc("run a local server which evaluates expressions POSTed as JSON to " + EvaluationServer.PATH +
+                        " on the given port, until the process is stopped")
+                .hasArg()
+                .build();
+        options.addOption(serveOpt);
+
+        Option socketOpt = Option.builder("u")
+                .argName("path")
+                .longOpt("socket")
+                .desc("run a local server which evaluates binary framed requests on a Unix domain socket created at " +
+                        "the given path, until the process is stopped. Needs Java 16+")
+                .hasArg()
+                .build();
+        options.addOption(socketOpt);
+
         Option logLevelOpt = Option.builder("l")
                 .argName("loglevel")
                 .longOpt("loglevel")
@@ -63,6 +176,24 @@ public class Main {
                 .build();
         options.addOption(logFileOpt);
 
+        Option asyncOpt = Option.builder("a")
+                .argName("async")
+                .longOpt("async")
+                .desc("log asynchronously (optional) -- log events are queued and written by a background thread, so " +
+                        "evaluating threads don't wait for the console or log file")
+                .build();
+        options.addOption(asyncOpt);
+
+        Option precisionOpt = Option.builder("p")
+                .argName("mode")
+                .longOpt("precision")
+                .desc("how numbers other than integers are calculated (optional) -- double, scale=<places> or " +
+                        "precision=<digits>, optionally followed by a comma and a rounding mode, eg. " +
+                        "scale=2,HALF_EVEN. Default value is " + NumericMode.DEFAULT)
+                .hasArg()
+                .build();
+        options.addOption(precisionOpt);
+
         Option helpOpt = Option.builder("h")
                 .argName("help")
                 .longOpt("help")
@@ -88,15 +219,38 @@ public class Main {
             return null;
         }
 
-        // parse expression - if missing, print error message and usage instructions
-        String expression = null;
-        if (cmd.hasOption("expression")) {
-            expression = cmd.getOptionValue("expression").toString();
-        } else {
-            System.out.println("Missing required option: expression");
+        // parse expression, input file, server port or socket path - exactly one is required, otherwise print error message and
+        // usage instructions
+        int modes = (cmd.hasOption("expression") ? 1 : 0) + (cmd.hasOption("input") ? 1 : 0)
+                + (cmd.hasOption("serve") ? 1 : 0) + (cmd.hasOption("socket") ? 1 : 0);
+        if (modes > 1) {
+            System.out.println("Only one of the options expression, input, serve and socket can be given");
+            formatter.printHelp(APP_NAME, options);
+            return null;
+        } else if (modes == 0) {
+            System.out.println("Missing required option: expression, input, serve or socket");
             formatter.printHelp(APP_NAME, options);
             return null;
         }
+        String expression = cmd.hasOption("expression") ? cmd.getOptionValue("expression").toString() : null;
+        String input = cmd.hasOption("input") ? cmd.getOptionValue("input").toString() : null;
+        String socket = cmd.hasOption("socket") ? cmd.getOptionValue("socket").toString() : null;
+
+        // parse server port. If invalid value provided, print error message and usage instructions
+        int port = -1;
+        if (cmd.hasOption("serve")) {
+            String portStr = cmd.getOptionValue("serve").toString();
+            try {
+                port = Integer.parseInt(portStr);
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                System.out.println("invalid port: " + portStr);
+                formatter.printHelp(APP_NAME, options);
+                return null;
+            }
+        }
 
         // parse log level (optional parameter). Default is INFO. If invalid value provided, print error message and
         // usage instructions
@@ -111,13 +265,84 @@ public class Main {
             }
         }
 
+        // parse number of threads (optional parameter). Default is the number of processors. If invalid value
+        // provided, print error message and usage instructions
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmd.hasOption("threads")) {
+            String threadsStr = cmd.getOptionValue("threads").toString();
+            try {
+                threads = Integer.parseInt(threadsStr);
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                System.out.println("invalid number of threads: " + threadsStr);
+                formatter.printHelp(APP_NAME, options);
+                return null;
+            }
+        }
+
+        // parse numeric mode (optional parameter). Default is NumericMode.DEFAULT. If invalid value provided, print error
+        // message and usage instructions
+        NumericMode numericMode = NumericMode.DEFAULT;
+        if (cmd.hasOption("precision")) {
+            String precisionStr = cmd.getOptionValue("precision").toString();
+            try {
+                numericMode = NumericMode.parse(precisionStr);
+            } catch (IllegalArgumentException e) {
+                System.out.println("invalid precision: " + precisionStr);
+                formatter.printHelp(APP_NAME, options);
+                return null;
+            }
+        }
+
         // parse log file (optional parameters). If omitted, outputs to stdout instead.
         String logFile = null;
         if (cmd.hasOption("logfile")) {
             logFile = cmd.getOptionValue("logfile").toString();
         }
 
-        return new CommandLineArguments(expression, logLevel, logFile);
+        return new CommandLineArguments(expression, input, port, socket, threads, numericMode, logLevel, logFile,
+                cmd.hasOption("async"));
+    }
+
+    /**
+     * Records the logging settings, which are used to initialize logging when something is first logged at the log
+     * level. At DEBUG, evaluators trace each function call.
+     *
+     * @param level the log level. eg. DEBUG
+     * @param logFileLocation the log file location (optional).
+     * @param async true to queue log events for a background thread to write.
+     */
+    private static void configureLogging(Level level, String logFileLocation, boolean async) {
+        logLevel = level;
+        logFile = logFileLocation;
+        asyncLogging = async;
+        tracing = level.isLessSpecificThan(Level.DEBUG);
+    }
+
+    /**
+     * Returns whether messages are logged at a level.
+     *
+     * @param level the level of the messages. eg. INFO
+     * @return true if the log level includes the level.
+     */
+    private static boolean isLogged(Level level) {
+        return logLevel.isLessSpecificThan(level);
+    }
+
+    /**
+     * Returns the logger, initializing logging with the recorded settings if it's the first use. Building the log4j2
+     * configuration takes a significant part of the startup time, so this is only called when something is logged at
+     * the log level.
+     *
+     * @return the logger.
+     */
+    private static Logger log() {
+        if (log == null) {
+            initializeLogging(logLevel, logFile, asyncLogging);
+        }
+        return log;
     }
 
     /**
@@ -126,8 +351,10 @@ public class Main {
      *
      * @param logLevel the log level. eg. DEBUG
      * @param logFileLocation the log file location (optional).
+     * @param async true to queue log events for a background thread to write, rather than writing them on the
+     *              thread which logs them.
      */
-    private static synchronized void initializeLogging(Level logLevel, String logFileLocation) {
+    private static synchronized void initializeLogging(Level logLevel, String logFileLocation, boolean async) {
         if (log != null) {
             return;
         }
@@ -140,8 +367,10 @@ public class Main {
         if (logFileLocation != null) {
             // create a file appender
             appenderName = "fileAppender";
+            // when async, the file is flushed at the end of each batch of queued events rather than after each one
             AppenderComponentBuilder appenderBuilder = builder.newAppender(appenderName, "FILE")
                     .addAttribute("fileName", logFileLocation)
+                    .addAttribute("immediateFlush", !async)
                     .add(layoutBuilder);
             builder.add(appenderBuilder);
         } else {
@@ -153,6 +382,17 @@ public class Main {
             builder.add(appenderBuilder);
         }
 
+        if (async) {
+            // wrap the appender in one which queues events for a background thread. The queue blocks when full
+            // rather than dropping events
+            String syncAppenderName = appenderName;
+            appenderName = "async";
+            builder.add(builder.newAppender(appenderName, "Async")
+                    .addAttribute("bufferSize", ASYNC_BUFFER_SIZE)
+                    .addAttribute("blocking", true)
+                    .addComponent(builder.newAppenderRef(syncAppenderName)));
+        }
+
         // create root level logger
         builder.add(builder.newRootLogger(logLevel)
                 .add(builder.newAppenderRef(appenderName)));
@@ -161,36 +401,201 @@ public class Main {
         log = LoggerFactory.getLogger(Main.class);
     }
 
+    /**
+     * Creates the settings of an evaluator, which traces function calls if logging at DEBUG.
+     *
+     * @param numericMode the numeric mode of the arithmetic functions.
+     * @return the settings.
+     */
+    private static EvaluatorConfig createConfig(NumericMode numericMode) {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setTracing(tracing);
+        config.setNumericMode(numericMode);
+        return config;
+    }
+
     /**
      * Simple helper class to encapsulate parsed command line arguments.
      */
     private static class CommandLineArguments {
         public final String expression;
+        public final String input;
+        public final int port;
+        public final String socket;
+        public final int threads;
+        public final NumericMode numericMode;
         public final Level logLevel;
         public final String logFile;
+        public final boolean asyncLogging;
 
-        public CommandLineArguments(String expression, Level logLevel, String logFile) {
+        public CommandLineArguments(String expression, String input, int port, String socket, int threads,
+                                    NumericMode numericMode, Level logLevel, String logFile, boolean asyncLogging) {
             this.expression = expression;
+            this.input = input;
+            this.port = port;
+            this.socket = socket;
+            this.threads = threads;
+            this.numericMode = numericMode;
             this.logLevel = logLevel;
             this.logFile = logFile;
+            this.asyncLogging = asyncLogging;
+        }
+    }
+
+    /**
+     * Evaluate each line of the input file, or stdin if the file is "-", writing the results to stdout.
+     *
+     * @param input the input file location, or "-" for stdin.
+     * @param threads the number of threads to evaluate the input with.
+     * @param numericMode the numeric mode of the arithmetic functions.
+     */
+    private static void evaluateInput(String input, int threads, NumericMode numericMode) {
+        // the same expressions often recur within piped input, so cache them. Files are parsed in place instead
+        EvaluatorConfig config = createConfig(numericMode);
+        config.setCacheSize(BATCH_CACHE_SIZE);
+        BatchEvaluator batchEvaluator = new BatchEvaluator(new ExpressionEvaluator(config), threads);
+
+        // stdout isn't closed, since it isn't ours
+        Writer output = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            if ("-".equals(input)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                        BUFFER_SIZE);
+                batchEvaluator.evaluate(reader, output);
+            } else {
+                batchEvaluator.evaluate(Paths.get(input), output);
+            }
+        } catch (IOException e) {
+            log().error("could not evaluate input " + input + ": " + e);
+            System.out.println("Could not evaluate input due to previous error -- see error logs for details");
+        }
+    }
+
+    /**
+     * Start a server listening on the loopback interface, after warming it up. The server runs until the process is
+     * stopped.
+     *
+     * @param port the port to listen on.
+     * @param threads the number of threads to handle requests with.
+     * @param numericMode the numeric mode of the arithmetic functions.
+     */
+    private static void serve(int port, int threads, NumericMode numericMode) {
+        EvaluatorConfig config = createConfig(numericMode);
+        config.setCacheSize(SERVER_CACHE_SIZE);
+        config.setMetricsEnabled(true);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        final EvaluationServer server;
+        try {
+            server = new EvaluationServer(evaluator, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    threads);
+        } catch (IOException e) {
+            log().error("could not listen on port " + port + ": " + e);
+            System.out.println("Could not start server due to previous error -- see error logs for details");
+            return;
+        }
+        server.warmUp();
+        // the warm up requests aren't real traffic
+        evaluator.getMetrics().reset();
+        registerMetrics(evaluator, "port-" + port);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop(1);
+            }
+        });
+    }
+
+    /**
+     * Start a server listening on a Unix domain socket. The server runs until the process is stopped, when the socket
+     * file is deleted.
+     *
+     * @param socket the path of the socket file.
+     * @param threads the number of threads to evaluate requests with.
+     * @param numericMode the numeric mode of the arithmetic functions.
+     */
+    private static void serveSocket(String socket, int threads, NumericMode numericMode) {
+        EvaluatorConfig config = createConfig(numericMode);
+        config.setCacheSize(SERVER_CACHE_SIZE);
+        config.setMetricsEnabled(true);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        final FrameServer server;
+        try {
+            SocketAddress address = FrameServer.unixDomainSocketAddress(socket);
+            server = new FrameServer(evaluator, address, threads);
+        } catch (IOException | RuntimeException e) {
+            log().error("could not listen on socket " + socket + ": " + e);
+            System.out.println("Could not start server due to previous error -- see error logs for details");
+            return;
+        }
+        registerMetrics(evaluator, "socket");
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                server.stop();
+            }
+        });
+    }
+
+    /**
+     * Registers a server's evaluation metrics as MBeans, so they can be watched with eg. JConsole. The server runs
+     * without them if they can't be registered.
+     *
+     * @param evaluator the server's evaluator.
+     * @param name the name to register the metrics under.
+     */
+    private static void registerMetrics(ExpressionEvaluator evaluator, String name) {
+        try {
+            evaluator.getMetrics().register(name);
+        } catch (JMException e) {
+            log().warn("could not register evaluation metrics: " + e);
         }
     }
 
     public static void main(String[] args) {
-        CommandLineArguments commandLineArguments = parseCommandLineOptions(args);
+        CommandLineArguments commandLineArguments = parseExpressionArguments(args);
+        if (commandLineArguments == null) {
+            commandLineArguments = parseCommandLineOptions(args);
+        }
         if (commandLineArguments == null) {
             // parseCommandLineOptions method will have already logged error and usage instructions to stdout
             return;
         }
 
-        initializeLogging(commandLineArguments.logLevel, commandLineArguments.logFile);
+        configureLogging(commandLineArguments.logLevel, commandLineArguments.logFile,
+                commandLineArguments.asyncLogging);
+        if (commandLineArguments.expression == null) {
+            // the batch evaluator and servers have loggers of their own, so initialize logging before they're loaded
+            log();
+        }
 
-        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        if (commandLineArguments.input != null) {
+            evaluateInput(commandLineArguments.input, commandLineArguments.threads, commandLineArguments.numericMode);
+            return;
+        } else if (commandLineArguments.port >= 0) {
+            serve(commandLineArguments.port, commandLineArguments.threads, commandLineArguments.numericMode);
+            return;
+        } else if (commandLineArguments.socket != null) {
+            serveSocket(commandLineArguments.socket, commandLineArguments.threads,
+                    commandLineArguments.numericMode);
+            return;
+        }
+
+        // the expression is evaluated once, so it's parsed straight into a Program rather than a CompiledExpression.
+        // Logging is only initialized if something is logged, which at DEBUG is before any function call is traced
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(createConfig(commandLineArguments.numericMode));
         String result = null;
+        if (isLogged(Level.INFO)) {
+            log().info("evaluating expression: {}", commandLineArguments.expression);
+        }
         try {
-            result = evaluator.evaluate(commandLineArguments.expression);
+            result = evaluator.evaluateOnce(commandLineArguments.expression);
+            if (isLogged(Level.INFO)) {
+                log().info("{}: expression evaluates to final result of {}", commandLineArguments.expression, result);
+            }
         } catch (EvaluationException e) {
-            log.error(e.getMessage());
+            if (isLogged(Level.ERROR)) {
+                log().error(e.getMessage());
+            }
         }
 
         if (result == null) {
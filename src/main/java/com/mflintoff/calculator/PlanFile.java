@@ -0,0 +1,560 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.FreeVariableNode;
+import com.mflintoff.calculator.expression.FunctionCallNode;
+import com.mflintoff.calculator.expression.LetNode;
+import com.mflintoff.calculator.expression.LiteralNode;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.VariableNode;
+import com.mflintoff.calculator.function.BindingFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.NumericMode;
+import com.mflintoff.calculator.function.Value;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A file of compiled expressions - their trees after optimization, with let slots and free variables resolved and
+ * constants folded - which is memory mapped so that an evaluator can start without parsing its catalog of expressions
+ * again. Opening the file only reads its header, and each plan is decoded from the mapping when its expression is
+ * first compiled, so a file of any number of plans opens in about the same time.</p>
+ *
+ * <p>The file is big-endian. A string is an int length followed by that many bytes of UTF-8.</p>
+ *
+ * <pre>
+ * header:  int magic, "CPLN"
+ *          short version, 1
+ *          string numeric mode, eg. "scale=8,HALF_UP"
+ *          int number of functions, then the name of each function
+ *          int number of plans
+ * index:   per plan, int hash of the expression's token key, int offset of the plan in the file,
+ *          sorted by hash then offset
+ * plan:    string expression's token key
+ *          int number of let slots
+ *          int number of free variables, then the name of each variable
+ *          int number of nodes, then the nodes in postfix order:
+ *            byte 0 LONG, long value            - a literal which is a long with no other text
+ *            byte 1 DOUBLE, long bits            - a literal which is a double
+ *            byte 2 TEXT, string text            - any other literal, parsed by Value.parse
+ *            byte 3 FREE, int index              - a free variable
+ *            byte 4 LOCAL, int slot, string name - a variable introduced by a let
+ *            byte 5 CALL, int function, int number of arguments
+ *            byte 6 LET, int function, int slot, string name - after its value and body
+ *            byte 7 SHARED, int node             - a node which appeared earlier, numbering nodes from 0 in order of
+ *                                                  appearance, not counting SHARED entries
+ * </pre>
+ *
+ * <p>Plans depend on the numeric mode, since constants are folded in it, and refer to functions by name, so opening a
+ * file fails if its mode isn't the evaluator's, or it refers to a function which isn't registered. The mapping is
+ * only read with absolute gets, so threads may decode plans at once.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class PlanFile {
+
+    static final int MAGIC = 0x43504c4e;
+    static final short VERSION = 1;
+
+    private static final byte LONG = 0;
+    private static final byte DOUBLE = 1;
+    private static final byte TEXT = 2;
+    private static final byte FREE = 3;
+    private static final byte LOCAL = 4;
+    private static final byte CALL = 5;
+    private static final byte LET = 6;
+    private static final byte SHARED = 7;
+
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private final ByteBuffer buffer;
+    private final String[] functionNames;
+    private final int numPlans;
+    private final int indexStart;
+
+    private PlanFile(ByteBuffer buffer, String[] functionNames, int numPlans, int indexStart) {
+        this.buffer = buffer;
+        this.functionNames = functionNames;
+        this.numPlans = numPlans;
+        this.indexStart = indexStart;
+    }
+
+    /**
+     * A decoded plan.
+     */
+    static class Plan {
+        final Node root;
+        final int numLocals;
+        final String[] freeVariableNames;
+
+        Plan(Node root, int numLocals, String[] freeVariableNames) {
+            this.root = root;
+            this.numLocals = numLocals;
+            this.freeVariableNames = freeVariableNames;
+        }
+    }
+
+    /**
+     * Writes compiled expressions to a file, replacing it if it exists.
+     *
+     * @param file the file to write.
+     * @param keys the token key of each expression, by which it will be looked up.
+     * @param expressions the compiled expressions, in the same order as their keys.
+     * @param numericMode the numeric mode the expressions were compiled in.
+     * @throws IOException if an error occurs writing the file, or it would be larger than 2GB.
+     */
+    static void write(Path file, List<String> keys, List<CompiledExpression> expressions, NumericMode numericMode)
+            throws IOException {
+        Map<String, Integer> functionIndexes = new HashMap<String, Integer>();
+        List<String> functionNames = new ArrayList<String>();
+        for (CompiledExpression expression : expressions) {
+            collectFunctions(expression.getRoot(), functionIndexes, functionNames);
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(MAGIC);
+        header.writeShort(VERSION);
+        writeString(header, numericMode.toString());
+        header.writeInt(functionNames.size());
+        for (String name : functionNames) {
+            writeString(header, name);
+        }
+        header.writeInt(keys.size());
+        header.flush();
+
+        int indexStart = headerBytes.size();
+        long plansStart = indexStart + (long) keys.size() * INDEX_ENTRY_SIZE;
+        long[] index = new long[keys.size()];
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            channel.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+            channel.position(plansStart);
+            DataOutputStream plans = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (int i = 0; i < keys.size(); i++) {
+                long offset = plansStart + plans.size();
+                if (offset > Integer.MAX_VALUE) {
+                    throw new IOException("plan file would be larger than " + Integer.MAX_VALUE + " bytes");
+                }
+                // the offset is positive, so sorting on it breaks ties between equal hashes in file order
+                index[i] = ((long) keys.get(i).hashCode() << 32) | offset;
+                writePlan(plans, keys.get(i), expressions.get(i), functionIndexes);
+            }
+            plans.flush();
+
+            Arrays.sort(index);
+            ByteBuffer indexBuffer = ByteBuffer.allocate(index.length * INDEX_ENTRY_SIZE);
+            for (long entry : index) {
+                indexBuffer.putLong(entry);
+            }
+            indexBuffer.flip();
+            channel.position(indexStart);
+            while (indexBuffer.hasRemaining()) {
+                channel.write(indexBuffer);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a file of plans by mapping it into memory.
+     *
+     * @param file the file to open.
+     * @param functions the registered functions, keyed by lower case name.
+     * @param numericMode the numeric mode of the evaluator.
+     * @return the opened file.
+     * @throws IOException if an error occurs reading the file, or it isn't a plan file of a supported version.
+     * @throws EvaluationException if the plans were compiled in another numeric mode, or refer to a function which
+     *                             isn't registered.
+     */
+    static PlanFile open(Path file, Map<String, Function> functions, NumericMode numericMode)
+            throws IOException, EvaluationException {
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("plan file is larger than " + Integer.MAX_VALUE + " bytes: " + file);
+            }
+            // the mapping remains valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+
+        try {
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("not a plan file: " + file);
+            }
+            short version = buffer.getShort(4);
+            if (version != VERSION) {
+                throw new IOException("unsupported plan file version " + version + ": " + file);
+            }
+            Reader reader = new Reader(buffer, 6);
+            String mode = reader.readString();
+            if (!mode.equals(numericMode.toString())) {
+                throw new EvaluationException("plans were compiled in numeric mode " + mode + ", not " + numericMode);
+            }
+            String[] functionNames = new String[reader.readInt()];
+            for (int i = 0; i < functionNames.length; i++) {
+                functionNames[i] = reader.readString();
+                if (!functions.containsKey(functionNames[i])) {
+                    throw new EvaluationException("plans refer to unregistered function: " + functionNames[i]);
+                }
+            }
+            int numPlans = reader.readInt();
+            if (numPlans < 0 || reader.position + (long) numPlans * INDEX_ENTRY_SIZE > buffer.limit()) {
+                throw new IOException("plan file is truncated: " + file);
+            }
+            return new PlanFile(buffer, functionNames, numPlans, reader.position);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("plan file is truncated: " + file, e);
+        }
+    }
+
+    /**
+     * Returns the number of plans in the file.
+     *
+     * @return the number of plans.
+     */
+    int size() {
+        return numPlans;
+    }
+
+    /**
+     * Finds and decodes the plan of an expression.
+     *
+     * @param key the token key of the expression, as returned by {@link ExpressionLexer#tokenKey(String)}.
+     * @param functions the registered functions, keyed by lower case name.
+     * @return the plan, or null if the file has no plan of the expression.
+     * @throws EvaluationException if the plan is corrupt, or refers to a function which is no longer suitable.
+     */
+    Plan find(String key, Map<String, Function> functions) throws EvaluationException {
+        int hash = key.hashCode();
+        int low = 0;
+        int high = numPlans;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(indexStart + middle * INDEX_ENTRY_SIZE) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        byte[] keyBytes = null;
+        for (int i = low; i < numPlans && buffer.getInt(indexStart + i * INDEX_ENTRY_SIZE) == hash; i++) {
+            if (keyBytes == null) {
+                keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            }
+            Reader reader = new Reader(buffer, buffer.getInt(indexStart + i * INDEX_ENTRY_SIZE + 4));
+            try {
+                if (reader.matchString(keyBytes)) {
+                    return readPlan(reader, functions);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new EvaluationException("plan of " + key + " is corrupt", e);
+            } catch (RuntimeException e) {
+                // eg. a node popped from an empty stack
+                throw new EvaluationException("plan of " + key + " is corrupt: " + e, e);
+            }
+        }
+        return null;
+    }
+
+    private Plan readPlan(Reader reader, Map<String, Function> functions) throws EvaluationException {
+        int numLocals = reader.readInt();
+        String[] freeVariableNames = new String[reader.readInt()];
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            freeVariableNames[i] = reader.readString();
+        }
+
+        int numNodes = reader.readInt();
+        List<Node> nodes = new ArrayList<Node>(numNodes);
+        Deque<Node> stack = new ArrayDeque<Node>();
+        for (int i = 0; i < numNodes; i++) {
+            byte tag = reader.readByte();
+            Node node;
+            switch (tag) {
+                case LONG:
+                    node = new LiteralNode(Value.of(reader.readLong()));
+                    break;
+                case DOUBLE:
+                    node = new LiteralNode(Value.of(Double.longBitsToDouble(reader.readLong())));
+                    break;
+                case TEXT:
+                    node = new LiteralNode(Value.parse(reader.readString()));
+                    break;
+                case FREE:
+                    int index = reader.readInt();
+                    node = new FreeVariableNode(freeVariableNames[index], index);
+                    break;
+                case LOCAL:
+                    int slot = reader.readInt();
+                    node = new VariableNode(reader.readString(), slot);
+                    break;
+                case CALL:
+                    Function function = resolve(reader.readInt(), functions);
+                    int numArgs = reader.readInt();
+                    if (numArgs < function.getMinNumberOfArgsSupported()
+                            || numArgs > function.getMaxNumberOfArgsSupported()) {
+                        throw new EvaluationException("plan calls " + function.getName() + " with " + numArgs
+                                + " arguments, which it doesn't support");
+                    }
+                    Node[] arguments = new Node[numArgs];
+                    for (int j = numArgs - 1; j >= 0; j--) {
+                        arguments[j] = stack.pop();
+                    }
+                    node = new FunctionCallNode(function, Arrays.asList(arguments));
+                    break;
+                case LET:
+                    Function binding = resolve(reader.readInt(), functions);
+                    if (!(binding instanceof BindingFunction)) {
+                        throw new EvaluationException("plan binds a variable with " + binding.getName()
+                                + ", which is not a binding function");
+                    }
+                    int letSlot = reader.readInt();
+                    String name = reader.readString();
+                    Node body = stack.pop();
+                    Node value = stack.pop();
+                    node = new LetNode((BindingFunction) binding, name, letSlot, value, body);
+                    break;
+                case SHARED:
+                    stack.push(nodes.get(reader.readInt()));
+                    continue;
+                default:
+                    throw new EvaluationException("plan has unknown node type " + tag);
+            }
+            nodes.add(node);
+            stack.push(node);
+        }
+        if (stack.size() != 1) {
+            throw new EvaluationException("plan has " + stack.size() + " root nodes");
+        }
+        return new Plan(stack.pop(), numLocals, freeVariableNames);
+    }
+
+    private Function resolve(int index, Map<String, Function> functions) throws EvaluationException {
+        Function function = functions.get(functionNames[index]);
+        if (function == null) {
+            throw new EvaluationException("plan refers to unregistered function: " + functionNames[index]);
+        }
+        return function;
+    }
+
+    /**
+     * Adds the names of the functions called by an expression which haven't been seen yet.
+     */
+    private static void collectFunctions(Node root, Map<String, Integer> functionIndexes, List<String> functionNames) {
+        Deque<Node> pending = new ArrayDeque<Node>();
+        Map<Node, Boolean> visited = new IdentityHashMap<Node, Boolean>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (visited.put(node, Boolean.TRUE) != null) {
+                continue;
+            }
+            String name = null;
+            if (node instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) node;
+                name = call.getFunction().getName().toLowerCase();
+                for (Node argument : call.getArguments()) {
+                    pending.push(argument);
+                }
+            } else if (node instanceof LetNode) {
+                LetNode let = (LetNode) node;
+                name = let.getFunction().getName().toLowerCase();
+                pending.push(let.getValue());
+                pending.push(let.getBody());
+            }
+            if (name != null && !functionIndexes.containsKey(name)) {
+                functionIndexes.put(name, functionNames.size());
+                functionNames.add(name);
+            }
+        }
+    }
+
+    private static void writePlan(DataOutputStream out, String key, CompiledExpression expression,
+                                  Map<String, Integer> functionIndexes) throws IOException {
+        writeString(out, key);
+        out.writeInt(expression.getNumLocals());
+        String[] freeVariableNames = expression.getFreeVariableNames();
+        out.writeInt(freeVariableNames.length);
+        for (String name : freeVariableNames) {
+            writeString(out, name);
+        }
+
+        // the nodes are written to a buffer first, since their number, including SHARED entries, isn't known
+        ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+        DataOutputStream nodes = new DataOutputStream(nodeBytes);
+        Map<Node, Integer> ids = new IdentityHashMap<Node, Integer>();
+        int numEntries = 0;
+        // a node is pushed twice: first to push its children, and again, after them, to be written
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.push(expression.getRoot());
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+            if (item instanceof Node && ids.containsKey(item)) {
+                nodes.writeByte(SHARED);
+                nodes.writeInt(ids.get(item));
+                numEntries++;
+            } else if (item instanceof Node && hasChildren((Node) item)) {
+                Node node = (Node) item;
+                pending.push(new Written(node));
+                if (node instanceof LetNode) {
+                    pending.push(((LetNode) node).getBody());
+                    pending.push(((LetNode) node).getValue());
+                } else {
+                    List<Node> arguments = ((FunctionCallNode) node).getArguments();
+                    for (int i = arguments.size() - 1; i >= 0; i--) {
+                        pending.push(arguments.get(i));
+                    }
+                }
+            } else {
+                Node node = item instanceof Written ? ((Written) item).node : (Node) item;
+                writeNode(nodes, node, functionIndexes);
+                ids.put(node, ids.size());
+                numEntries++;
+            }
+        }
+        nodes.flush();
+        out.writeInt(numEntries);
+        nodeBytes.writeTo(out);
+    }
+
+    private static boolean hasChildren(Node node) {
+        return node instanceof FunctionCallNode || node instanceof LetNode;
+    }
+
+    private static void writeNode(DataOutputStream out, Node node, Map<String, Integer> functionIndexes)
+            throws IOException {
+        if (node instanceof LiteralNode) {
+            Value value = ((LiteralNode) node).getValue();
+            String text = value.toString();
+            if (value.isLong() && text.equals(Long.toString(value.longValue()))) {
+                out.writeByte(LONG);
+                out.writeLong(value.longValue());
+            } else if (value.isDouble()) {
+                out.writeByte(DOUBLE);
+                // the string form of a double is exact
+                out.writeLong(Double.doubleToRawLongBits(Double.parseDouble(text)));
+            } else {
+                out.writeByte(TEXT);
+                writeString(out, text);
+            }
+        } else if (node instanceof FreeVariableNode) {
+            out.writeByte(FREE);
+            out.writeInt(((FreeVariableNode) node).getIndex());
+        } else if (node instanceof VariableNode) {
+            VariableNode variable = (VariableNode) node;
+            out.writeByte(LOCAL);
+            out.writeInt(variable.getSlot());
+            writeString(out, variable.getName());
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            out.writeByte(CALL);
+            out.writeInt(functionIndexes.get(call.getFunction().getName().toLowerCase()));
+            out.writeInt(call.getArguments().size());
+        } else if (node instanceof LetNode) {
+            LetNode let = (LetNode) node;
+            out.writeByte(LET);
+            out.writeInt(functionIndexes.get(let.getFunction().getName().toLowerCase()));
+            out.writeInt(let.getSlot());
+            writeString(out, let.getVariableName());
+        } else {
+            throw new IllegalArgumentException("unknown node type: " + node.getClass().getName());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Marks a node whose children have been pushed, so that it's written when it's popped again.
+     */
+    private static class Written {
+        final Node node;
+
+        Written(Node node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Reads values from the mapping with absolute gets, from a position of its own.
+     */
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        Reader(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        byte readByte() {
+            return buffer.get(position++);
+        }
+
+        int readInt() {
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        long readLong() {
+            long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        String readString() {
+            int length = readInt();
+            if (length < 0 || position + length > buffer.limit()) {
+                throw new IndexOutOfBoundsException("string of " + length + " bytes at " + position);
+            }
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(position + i);
+            }
+            position += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads a string if it's equal to the given bytes, otherwise leaves the position after its length.
+         */
+        boolean matchString(byte[] bytes) {
+            if (readInt() != bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(position + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            position += bytes.length;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.FunctionCallNode;
+import com.mflintoff.calculator.expression.LiteralNode;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.Optimizer;
+import com.mflintoff.calculator.expression.Program;
+import com.mflintoff.calculator.function.AccumulatingFunction;
+import com.mflintoff.calculator.function.EagerBindingFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.LazyFunction;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Evaluates a single expression as it's read, so that an expression too large to hold in memory, such as an add
+ * with millions of arguments, can be evaluated in memory proportional to its depth rather than its length. The
+ * grammar, and the results and errors, are the same as {@link ExpressionParser} followed by {@link Program}, but
+ * no tree is built for most of the expression:</p>
+ *
+ * <ul>
+ * <li>A call of an {@link AccumulatingFunction}, such as add, combines each argument into an
+ * {@link AccumulatingFunction.Accumulator} as soon as it's evaluated.</li>
+ * <li>A call of an {@link EagerBindingFunction}, such as let, evaluates its value, and the body is evaluated with the
+ * variable bound to it.</li>
+ * <li>A call of any other function keeps the values of its arguments until it's called.</li>
+ * <li>A call of any other {@link LazyFunction} needs its arguments unevaluated, so its text is kept, and parsed and
+ * evaluated as usual once it ends.</li>
+ * </ul>
+ *
+ * <p>An expression is normally parsed completely before any of it is evaluated. To report the same error, once an
+ * evaluation error occurs the rest of the input is only parsed, and the evaluation error is reported if it parses.
+ * Functions may therefore be called before a syntax error later in the input is found, which is only observable for
+ * functions with side effects. Calls which are combined as they stream, or of eager binding functions, aren't
+ * traced or recorded in function metrics.</p>
+ *
+ * <p>Positions in parse errors are counted in characters from the start of the input, up to
+ * {@link Integer#MAX_VALUE}.</p>
+ *
+ * <p>An evaluator is used for a single expression, and is not thread safe.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class StreamingEvaluator extends ExpressionLexer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int ACCUMULATE = 0;
+    private static final int CALL = 1;
+    private static final int LET = 2;
+
+    private final Reader reader;
+    private final boolean optimize;
+    private final EvaluationMetrics metrics;
+    private final boolean tracing;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int index = 0;
+    private int limit = 0;
+    private long position = 0;
+    private final StringBuilder atom = new StringBuilder();
+
+    // the value of each let variable in scope, of the innermost let which introduces it
+    private final Map<String, Value> letValues = new HashMap<String, Value>();
+
+    // the first evaluation error, which is reported once the rest of the input has been parsed. Nothing more is
+    // evaluated once it's set
+    private EvaluationException error;
+
+    /**
+     * A function call whose arguments are still being read.
+     */
+    private static class Frame {
+        final Function function;
+        final long functionStart;
+        final int kind;
+        int numArgs = 0;
+
+        // only used for accumulating functions
+        AccumulatingFunction.Accumulator accumulator;
+        FunctionExecutionException accumulatorError;
+
+        // only used for other functions
+        List<Node> arguments;
+
+        // only used for let
+        String variableName;
+        boolean bound;
+        Value shadowedValue;
+        Value result;
+
+        Frame(Function function, long functionStart, int kind) {
+            this.function = function;
+            this.functionStart = functionStart;
+            this.kind = kind;
+        }
+    }
+
+    /**
+     * Constructs a StreamingEvaluator.
+     *
+     * @param reader the expression to evaluate.
+     * @param functions the registered functions, keyed by lower case name.
+     * @param maxDepth the maximum depth to which function calls may be nested.
+     * @param optimize true to optimize the parts of the expression which are parsed into a tree.
+     * @param metrics where function calls of those parts are recorded, or null to not record them.
+     * @param tracing true to log the function calls of those parts.
+     */
+    StreamingEvaluator(Reader reader, Map<String, Function> functions, int maxDepth, boolean optimize,
+                       EvaluationMetrics metrics, boolean tracing) {
+        super(functions, maxDepth);
+        this.reader = reader;
+        this.optimize = optimize;
+        this.metrics = metrics;
+        this.tracing = tracing;
+    }
+
+    /**
+     * Reads and evaluates the whole expression.
+     *
+     * @return the result of the expression.
+     * @throws EvaluationException if the expression is not valid, or an error occurs during the evaluation.
+     * @throws IOException if an error occurs reading the expression.
+     */
+    String evaluate() throws EvaluationException, IOException {
+        try {
+            return evaluateExpression();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private String evaluateExpression() throws EvaluationException {
+        Deque<Frame> frames = new ArrayDeque<Frame>();
+        Value root = null;
+        boolean complete = false;
+        while (!complete) {
+            // read an expression starting at the current position: either a raw value or a function call
+            skipWhitespace();
+            long atomStart = position;
+            String name = readAtom();
+            long atomEnd = position;
+
+            Value value;
+            if (readBracket('(')) {
+                Function function = resolveFunction(name, atomStart, frames.size());
+                if (function instanceof LazyFunction && !(function instanceof EagerBindingFunction)) {
+                    value = evaluateText(name, atomStart, (int) (position - 1 - atomEnd), frames.size());
+                } else if (readBracket(')')) {
+                    // no arguments
+                    validateFunctionArguments(function, 0, atomStart);
+                    value = call(function, Collections.<Node>emptyList());
+                } else {
+                    frames.push(startFunctionCall(function, atomStart));
+                    continue;
+                }
+            } else {
+                value = atomValue(name);
+            }
+
+            // add the value to the enclosing call. If that was the last argument, the call is complete and its result
+            // is added to its enclosing call, and so on
+            while (true) {
+                Frame frame = frames.peek();
+                if (frame == null) {
+                    root = value;
+                    complete = true;
+                    break;
+                }
+                addArgument(frame, value);
+                if (readSeparator(frame.function)) {
+                    if (frame.kind == LET && frame.numArgs == 2) {
+                        bindLetVariable(frame);
+                    }
+                    break;
+                }
+                frames.pop();
+                value = finishFunctionCall(frame);
+            }
+        }
+
+        readEnd();
+        if (error != null) {
+            throw error;
+        }
+        return root.toString();
+    }
+
+    /**
+     * Starts a function call with arguments, just after the opening bracket.
+     *
+     * @param function the function.
+     * @param functionStart the position of the function name.
+     * @return the call.
+     * @throws ExpressionParseException if the function is a binding function whose variable name is missing.
+     */
+    private Frame startFunctionCall(Function function, long functionStart) throws ExpressionParseException {
+        if (function instanceof EagerBindingFunction) {
+            // the first argument is the variable name, rather than an expression
+            Frame frame = new Frame(function, functionStart, LET);
+            frame.variableName = readAtom();
+            frame.numArgs = 1;
+            if (!readSeparator(function)) {
+                validateFunctionArguments(function, 1, functionStart);
+            }
+            return frame;
+        } else if (function instanceof AccumulatingFunction) {
+            Frame frame = new Frame(function, functionStart, ACCUMULATE);
+            frame.accumulator = ((AccumulatingFunction) function).newAccumulator();
+            return frame;
+        }
+        Frame frame = new Frame(function, functionStart, CALL);
+        frame.arguments = new ArrayList<Node>();
+        return frame;
+    }
+
+    /**
+     * Adds an evaluated argument to a function call.
+     *
+     * @param frame the function call.
+     * @param argument the argument, or null if evaluation has stopped.
+     */
+    private void addArgument(Frame frame, Value argument) {
+        frame.numArgs++;
+        if (frame.kind == LET) {
+            if (frame.numArgs == 3) {
+                // the body of the let has been evaluated, so the variable is no longer in scope
+                frame.result = argument;
+                unbindLetVariable(frame);
+            } else if (frame.numArgs == 2) {
+                frame.result = argument;
+            }
+        } else if (error == null) {
+            if (frame.kind == CALL) {
+                frame.arguments.add(new LiteralNode(argument));
+            } else if (frame.accumulatorError == null) {
+                try {
+                    frame.accumulator.add(argument);
+                } catch (FunctionExecutionException e) {
+                    // the function is only called once its arguments have been evaluated, so an error evaluating a
+                    // later argument takes precedence
+                    frame.accumulatorError = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings a let variable into scope, once the value of the let has been evaluated.
+     *
+     * @param frame the let.
+     */
+    private void bindLetVariable(Frame frame) {
+        if (error == null) {
+            // the variable shadows any outer variable with the same name
+            frame.shadowedValue = letValues.put(frame.variableName, frame.result);
+            frame.bound = true;
+        }
+    }
+
+    private void unbindLetVariable(Frame frame) {
+        if (!frame.bound) {
+            return;
+        } else if (frame.shadowedValue == null) {
+            letValues.remove(frame.variableName);
+        } else {
+            letValues.put(frame.variableName, frame.shadowedValue);
+        }
+        frame.bound = false;
+    }
+
+    /**
+     * Calls the function of a call, once its closing bracket has been read.
+     *
+     * @param frame the function call.
+     * @return the result, or null if evaluation has stopped.
+     * @throws ExpressionParseException if the function is provided with an invalid number of arguments.
+     */
+    private Value finishFunctionCall(Frame frame) throws ExpressionParseException {
+        if (frame.kind == LET) {
+            validateBindingArguments(frame.function, frame.numArgs, frame.functionStart);
+            return error == null ? frame.result : null;
+        }
+        validateFunctionArguments(frame.function, frame.numArgs, frame.functionStart);
+        if (error != null) {
+            return null;
+        } else if (frame.kind == CALL) {
+            return call(frame.function, frame.arguments);
+        }
+
+        try {
+            if (frame.accumulatorError != null) {
+                throw frame.accumulatorError;
+            }
+            return frame.accumulator.result();
+        } catch (FunctionExecutionException e) {
+            error = new EvaluationException("an error occurred executing function " + frame.function.getName() + ":"
+                    + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Calls a function with evaluated arguments, in the same way as a Program.
+     *
+     * @param function the function.
+     * @param arguments the arguments, as literals.
+     * @return the result, or null if evaluation has stopped.
+     */
+    private Value call(Function function, List<Node> arguments) {
+        if (error != null) {
+            return null;
+        }
+        Program program = Program.compile(new FunctionCallNode(function, arguments), 0, 0, metrics, tracing);
+        try {
+            return program.execute(new Value[0], new long[0]);
+        } catch (EvaluationException e) {
+            error = e;
+            return null;
+        }
+    }
+
+    /**
+     * Reads the rest of a function call whose arguments must not be evaluated before the function is called, and
+     * evaluates its text as an expression.
+     *
+     * @param name the name of the function, as it appears in the expression.
+     * @param functionStart the position of the function name.
+     * @param spaces the number of whitespace characters between the name and the opening bracket.
+     * @param depth the number of enclosing function calls.
+     * @return the result, or null if evaluation has stopped.
+     * @throws ExpressionParseException if the call is not valid.
+     */
+    private Value evaluateText(String name, long functionStart, int spaces, int depth)
+            throws ExpressionParseException {
+        StringBuilder text = new StringBuilder(name);
+        for (int i = 0; i < spaces; i++) {
+            text.append(' ');
+        }
+        text.append('(');
+        // brackets can't appear in atoms, so the call ends at the matching bracket, or the end of the input
+        int brackets = 1;
+        while (brackets > 0 && peek() >= 0) {
+            char c = (char) peek();
+            advance();
+            text.append(c);
+            if (c == '(') {
+                brackets++;
+            } else if (c == ')') {
+                brackets--;
+            }
+        }
+
+        ExpressionParser parser = new ExpressionParser(text, getFunctions(), getMaxDepth(), depth);
+        Node root;
+        try {
+            root = parser.parse();
+        } catch (ExpressionParseException e) {
+            throw parseException(e.getReason(), functionStart + e.getPosition());
+        }
+        if (error != null) {
+            return null;
+        }
+        if (optimize) {
+            root = Optimizer.optimize(root, parser.getNumLocals());
+        }
+
+        // variables which aren't introduced by a let in the text may be introduced by one enclosing it
+        String[] freeVariableNames = parser.getFreeVariableNames();
+        Value[] freeValues = new Value[freeVariableNames.length];
+        long[] freeLongs = new long[freeVariableNames.length];
+        for (int i = 0; i < freeVariableNames.length; i++) {
+            Value value = letValues.get(freeVariableNames[i]);
+            // an unbound variable evaluates to its name, which is reported as an invalid argument if it's used
+            freeValues[i] = value != null ? value : Value.parse(freeVariableNames[i]);
+            if (freeValues[i].isLong()) {
+                freeLongs[i] = freeValues[i].longValue();
+            }
+        }
+        Program program = Program.compile(root, parser.getNumLocals(), freeValues.length, metrics, tracing);
+        try {
+            return program.execute(freeValues, freeLongs);
+        } catch (EvaluationException e) {
+            error = e;
+            return null;
+        }
+    }
+
+    /**
+     * Returns the value of a raw value, as opposed to a function.
+     *
+     * @param atom the raw value.
+     * @return the value, or null if evaluation has stopped.
+     */
+    private Value atomValue(String atom) {
+        if (error != null) {
+            return null;
+        }
+        Value value = letValues.get(atom);
+        // a number, or a variable which isn't introduced by a let, which evaluates to its name
+        return value != null ? value : Value.parse(atom);
+    }
+
+    /**
+     * Returns the character at the current position, reading more of the input if needed.
+     *
+     * @return the character, or -1 at the end of the input.
+     * @throws UncheckedIOException if an error occurs reading the expression, which {@link #evaluate()} rethrows as
+     *                              the IOException.
+     */
+    protected int peek() {
+        if (index == limit) {
+            int read = 0;
+            try {
+                while (read == 0) {
+                    read = reader.read(buffer, 0, buffer.length);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (read < 0) {
+                return -1;
+            }
+            index = 0;
+            limit = read;
+        }
+        return buffer[index];
+    }
+
+    protected void advance() {
+        index++;
+        position++;
+    }
+
+    protected long position() {
+        return position;
+    }
+
+    protected String scanAtom() {
+        atom.setLength(0);
+        while (peek() >= 0 && isAtomCharacter((char) peek())) {
+            atom.append((char) peek());
+            advance();
+        }
+        return atom.toString();
+    }
+}
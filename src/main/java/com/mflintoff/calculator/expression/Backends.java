@@ -0,0 +1,42 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.Function;
+
+/**
+ * Checks shared by the backends which evaluate a tree other than with a {@link Program}: {@link MethodHandleProgram},
+ * {@link ColumnProgram} and {@link ParallelProgram}.
+ *
+ * @author Malcolm Flintoff
+ */
+final class Backends {
+
+    private Backends() {
+    }
+
+    /**
+     * Returns whether the result of an expression is produced by a function call, once any lets are unwrapped. Only
+     * then is the result a plain number - a literal or variable keeps its original text.
+     *
+     * @param root the root node of the expression.
+     * @return true if the result is produced by a call.
+     */
+    static boolean hasCallResult(Node root) {
+        Node result = root;
+        while (result instanceof LetNode) {
+            result = ((LetNode) result).getBody();
+        }
+        return result instanceof FunctionCallNode;
+    }
+
+    /**
+     * Returns whether a function is one of the built-in functions. Only the exact class counts, since a subclass may
+     * change the semantics.
+     *
+     * @param function the function.
+     * @param builtIn the class of the built-in function.
+     * @return true if the function is an instance of exactly that class.
+     */
+    static boolean isBuiltIn(Function function, Class<? extends Function> builtIn) {
+        return function.getClass() == builtIn;
+    }
+}
@@ -0,0 +1,40 @@
+package com.mflintoff.calculator.expression;
+
+/**
+ * <p>Evaluates a {@link ColumnProgram} over integer columns. Where a row's result may not be exact because an
+ * operation overflowed, the row is flagged as inexact and its result is undefined; such rows must be evaluated again
+ * by the {@link Program}. A kernel may flag rows conservatively.</p>
+ *
+ * <p>Kernels are created by {@link ColumnKernels#create(Node)}, which uses the SIMD kernels built by the vector
+ * profile when they're on the classpath and the JVM supports them. A ColumnKernel may be shared between threads.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface ColumnKernel {
+
+    /**
+     * Evaluates the program for a range of rows.
+     *
+     * @param columns the column of each free variable, indexed as resolved by the parser.
+     * @param offset the first row to evaluate.
+     * @param length the number of rows to evaluate.
+     * @param results where the result of each row is written, starting at index 0.
+     * @param inexact set to true for each row whose result may not be exact, starting at index 0. Other elements are
+     *                left unchanged.
+     */
+    void evaluate(long[][] columns, int offset, int length, long[] results, boolean[] inexact);
+
+    /**
+     * Creates ColumnKernels.
+     */
+    interface Factory {
+
+        /**
+         * Creates a kernel for the given program.
+         *
+         * @param program the program.
+         * @return the kernel.
+         */
+        ColumnKernel create(ColumnProgram program);
+    }
+}
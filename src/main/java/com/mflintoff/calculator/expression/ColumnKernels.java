@@ -0,0 +1,57 @@
+package com.mflintoff.calculator.expression;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Locates the optional SIMD {@link ColumnKernel} implementation, which is only built by the vector profile and needs
+ * a JVM started with the jdk.incubator.vector module.
+ *
+ * @author Malcolm Flintoff
+ */
+public class ColumnKernels {
+    private static final Logger log = LoggerFactory.getLogger(ColumnKernels.class);
+
+    static final String VECTOR_FACTORY_CLASS = "com.mflintoff.calculator.vector.VectorColumnKernelFactory";
+
+    private static final ColumnKernel.Factory FACTORY = loadFactory();
+
+    private ColumnKernels() {
+    }
+
+    private static ColumnKernel.Factory loadFactory() {
+        try {
+            return (ColumnKernel.Factory) Class.forName(VECTOR_FACTORY_CLASS).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            log.debug("SIMD column kernels are not available: {}", e.toString());
+        } catch (LinkageError e) {
+            // built, but the JVM is too old or wasn't started with the incubator module
+            log.debug("SIMD column kernels are not supported: {}", e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether SIMD column kernels are available.
+     *
+     * @return true if kernels are available.
+     */
+    public static boolean isAvailable() {
+        return FACTORY != null;
+    }
+
+    /**
+     * Creates a kernel for an expression, if possible.
+     *
+     * @param root the root node of the expression.
+     * @return the kernel, or null if kernels are unavailable or the expression can't be lowered into a
+     *         {@link ColumnProgram}.
+     */
+    public static ColumnKernel create(Node root) {
+        if (FACTORY == null) {
+            return null;
+        }
+        ColumnProgram program = ColumnProgram.compile(root);
+        return program != null ? FACTORY.create(program) : null;
+    }
+}
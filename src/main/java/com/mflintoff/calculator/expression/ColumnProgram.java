@@ -0,0 +1,247 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.ArithmeticFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.MultiplyFunction;
+import com.mflintoff.calculator.function.SubtractFunction;
+import com.mflintoff.calculator.function.Value;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An expression lowered for evaluation a column at a time over integer columns, by a {@link ColumnKernel}. Each
+ * instruction applies a binary operation to two operands for every row, writing the results to a register - a
+ * temporary column. An operand is a free variable's column, a constant or an earlier register, so lets and
+ * subexpressions shared by the {@link Optimizer} simply reuse the register holding their value. The result of the
+ * expression is the register written by the last instruction.</p>
+ *
+ * <p>Only add, sub and mult of long literals, variables and lets can be lowered: these are the operations whose long
+ * results match the exact results whenever they don't overflow, unless their numeric mode rounds results to a
+ * precision. Division usually has a fractional or rescaled
+ * result, so expressions using it are left to the {@link Program}.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class ColumnProgram {
+
+    public static final int ADD = 0;
+    public static final int SUB = 1;
+    public static final int MUL = 2;
+
+    public static final int COLUMN = 0;      // operand: free variable index
+    public static final int CONSTANT = 1;    // operand: constant index
+    public static final int REGISTER = 2;    // operand: register index, ie. the index of the instruction writing it
+
+    /**
+     * The maximum depth of an expression which can be lowered, which bounds the recursion used to lower it.
+     */
+    static final int MAX_DEPTH = 64;
+
+    /**
+     * The maximum number of instructions, each of which needs a register.
+     */
+    static final int MAX_INSTRUCTIONS = 256;
+
+    private final int[] operations;
+    private final int[] operandKinds;
+    private final int[] operands;
+    private final long[] constants;
+
+    private ColumnProgram(int[] operations, int[] operandKinds, int[] operands, long[] constants) {
+        this.operations = operations;
+        this.operandKinds = operandKinds;
+        this.operands = operands;
+        this.constants = constants;
+    }
+
+    /**
+     * Lowers a tree of nodes into a ColumnProgram, if possible.
+     *
+     * @param root the root node of the expression.
+     * @return the lowered program, or null if the expression uses anything other than add, sub, mult, long literals,
+     *         variables and lets, or is too large.
+     */
+    public static ColumnProgram compile(Node root) {
+        if (!Backends.hasCallResult(root)) {
+            return null;
+        }
+
+        Lowering lowering = new Lowering();
+        if (lowering.lower(root, 0) == null) {
+            return null;
+        }
+        int size = lowering.operations.size();
+        int[] operations = new int[size];
+        for (int i = 0; i < size; i++) {
+            operations[i] = lowering.operations.get(i);
+        }
+        int[] operandKinds = new int[size * 2];
+        int[] operands = new int[size * 2];
+        for (int i = 0; i < size * 2; i++) {
+            operandKinds[i] = lowering.operandKinds.get(i);
+            operands[i] = lowering.operands.get(i);
+        }
+        long[] constants = new long[lowering.constants.size()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = lowering.constants.get(i);
+        }
+        return new ColumnProgram(operations, operandKinds, operands, constants);
+    }
+
+    /**
+     * Returns the number of instructions, which is also the number of registers.
+     *
+     * @return the number of instructions.
+     */
+    public int size() {
+        return operations.length;
+    }
+
+    /**
+     * Returns the operation of an instruction.
+     *
+     * @param instruction the instruction index.
+     * @return {@link #ADD}, {@link #SUB} or {@link #MUL}.
+     */
+    public int getOperation(int instruction) {
+        return operations[instruction];
+    }
+
+    /**
+     * Returns the kind of an operand of an instruction.
+     *
+     * @param instruction the instruction index.
+     * @param operand 0 for the left operand, 1 for the right.
+     * @return {@link #COLUMN}, {@link #CONSTANT} or {@link #REGISTER}.
+     */
+    public int getOperandKind(int instruction, int operand) {
+        return operandKinds[instruction * 2 + operand];
+    }
+
+    /**
+     * Returns the index of an operand of an instruction, within the columns, constants or registers according to its
+     * kind.
+     *
+     * @param instruction the instruction index.
+     * @param operand 0 for the left operand, 1 for the right.
+     * @return the operand index.
+     */
+    public int getOperand(int instruction, int operand) {
+        return operands[instruction * 2 + operand];
+    }
+
+    /**
+     * Returns a constant.
+     *
+     * @param index the constant index.
+     * @return the constant.
+     */
+    public long getConstant(int index) {
+        return constants[index];
+    }
+
+    /**
+     * Lowers nodes recursively. The recursion is bounded by {@link #MAX_DEPTH}, since lowering gives up as soon as
+     * it's exceeded.
+     */
+    private static class Lowering {
+        private final List<Integer> operations = new ArrayList<Integer>();
+        private final List<Integer> operandKinds = new ArrayList<Integer>();
+        private final List<Integer> operands = new ArrayList<Integer>();
+        private final List<Long> constants = new ArrayList<Long>();
+        // the operand holding the value of each node already lowered, and of each let variable in scope by slot
+        private final Map<Node, int[]> lowered = new IdentityHashMap<Node, int[]>();
+        private final Map<Integer, int[]> letValues = new HashMap<Integer, int[]>();
+
+        /**
+         * Lowers a node.
+         *
+         * @param node the node.
+         * @param depth the depth of the node.
+         * @return the operand holding the node's value, as {kind, index}, or null if it can't be lowered.
+         */
+        int[] lower(Node node, int depth) {
+            if (depth > MAX_DEPTH) {
+                return null;
+            }
+            int[] operand = lowered.get(node);
+            if (operand != null) {
+                return operand;
+            }
+
+            if (node instanceof LiteralNode) {
+                Value value = ((LiteralNode) node).getValue();
+                if (!value.isLong()) {
+                    return null;
+                }
+                constants.add(value.longValue());
+                operand = new int[] {CONSTANT, constants.size() - 1};
+            } else if (node instanceof FreeVariableNode) {
+                operand = new int[] {COLUMN, ((FreeVariableNode) node).getIndex()};
+            } else if (node instanceof VariableNode) {
+                // the same variable node may refer to different lets, so isn't remembered
+                return letValues.get(((VariableNode) node).getSlot());
+            } else if (node instanceof LetNode && ((LetNode) node).isBuiltIn()) {
+                LetNode let = (LetNode) node;
+                int[] value = lower(let.getValue(), depth + 1);
+                if (value == null) {
+                    return null;
+                }
+                int[] shadowed = letValues.put(let.getSlot(), value);
+                operand = lower(let.getBody(), depth + 1);
+                letValues.put(let.getSlot(), shadowed);
+                return operand;
+            } else if (node instanceof FunctionCallNode) {
+                operand = lowerCall((FunctionCallNode) node, depth);
+            }
+            if (operand != null) {
+                lowered.put(node, operand);
+            }
+            return operand;
+        }
+
+        private int[] lowerCall(FunctionCallNode call, int depth) {
+            int operation = operationOf(call.getFunction());
+            List<Node> arguments = call.getArguments();
+            if (operation < 0 || arguments.size() < 2) {
+                return null;
+            }
+            // fold the arguments from the left, as the functions do
+            int[] result = lower(arguments.get(0), depth + 1);
+            for (int i = 1; i < arguments.size() && result != null; i++) {
+                int[] argument = lower(arguments.get(i), depth + 1);
+                if (argument == null || operations.size() == MAX_INSTRUCTIONS) {
+                    return null;
+                }
+                operations.add(operation);
+                operandKinds.add(result[0]);
+                operands.add(result[1]);
+                operandKinds.add(argument[0]);
+                operands.add(argument[1]);
+                result = new int[] {REGISTER, operations.size() - 1};
+            }
+            return result;
+        }
+
+        private static int operationOf(Function function) {
+            // a numeric mode with a precision may round long results, which the kernels don't
+            if (function instanceof ArithmeticFunction
+                    && !((ArithmeticFunction) function).getNumericMode().isExactForLongs()) {
+                return -1;
+            }
+            if (Backends.isBuiltIn(function, AddFunction.class)) {
+                return ADD;
+            } else if (Backends.isBuiltIn(function, SubtractFunction.class)) {
+                return SUB;
+            } else if (Backends.isBuiltIn(function, MultiplyFunction.class)) {
+                return MUL;
+            }
+            return -1;
+        }
+    }
+}
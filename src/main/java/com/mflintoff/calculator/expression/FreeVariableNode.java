@@ -0,0 +1,61 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.Value;
+
+import java.util.Deque;
+
+/**
+ * A reference to a variable which isn't introduced by a let, and so must be bound by the caller. As with the
+ * original string based evaluation, a variable that isn't bound evaluates to its own name.
+ *
+ * @author Malcolm Flintoff
+ */
+public class FreeVariableNode extends Node {
+
+    private final String name;
+    private final int index;
+    private final Value unboundValue;
+
+    /**
+     * Constructs a FreeVariableNode.
+     *
+     * @param name the name of the variable.
+     * @param index the index of the variable amongst the free variables of the expression.
+     */
+    public FreeVariableNode(String name, int index) {
+        this.name = name;
+        this.index = index;
+        this.unboundValue = Value.parse(name);
+    }
+
+    /**
+     * Returns the name of the variable.
+     *
+     * @return the variable name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the index of the variable amongst the free variables of the expression.
+     *
+     * @return the index.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the value of the variable when the caller doesn't bind it, ie. its name.
+     *
+     * @return the unbound value.
+     */
+    public Value getUnboundValue() {
+        return unboundValue;
+    }
+
+    protected void format(StringBuilder builder, Deque<Object> pending) {
+        builder.append(name);
+    }
+}
@@ -0,0 +1,60 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.Function;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A call to a registered function, eg. "add(3, 5)". The number of arguments has already been validated against the
+ * function when the node is created.
+ *
+ * @author Malcolm Flintoff
+ */
+public class FunctionCallNode extends Node {
+
+    private final Function function;
+    private final Node[] arguments;
+
+    /**
+     * Constructs a FunctionCallNode.
+     *
+     * @param function the function to execute.
+     * @param arguments the argument nodes, which are evaluated before the function is executed.
+     */
+    public FunctionCallNode(Function function, List<Node> arguments) {
+        this.function = function;
+        this.arguments = arguments.toArray(new Node[arguments.size()]);
+    }
+
+    /**
+     * Returns the function executed by this node.
+     *
+     * @return the function.
+     */
+    public Function getFunction() {
+        return function;
+    }
+
+    /**
+     * Returns the argument nodes.
+     *
+     * @return unmodifiable list of arguments.
+     */
+    public List<Node> getArguments() {
+        return Collections.unmodifiableList(Arrays.asList(arguments));
+    }
+
+    protected void format(StringBuilder builder, Deque<Object> pending) {
+        builder.append(function.getName()).append('(');
+        pending.push(")");
+        for (int i = arguments.length - 1; i >= 0; i--) {
+            pending.push(arguments[i]);
+            if (i > 0) {
+                pending.push(",");
+            }
+        }
+    }
+}
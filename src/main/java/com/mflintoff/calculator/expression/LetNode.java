@@ -0,0 +1,106 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.BindingFunction;
+import com.mflintoff.calculator.function.LetFunction;
+
+import java.util.Deque;
+
+/**
+ * <p>A let expression, eg. "let(a, 5, add(a, a))". The value is evaluated using the variables already in scope, and the
+ * body is then evaluated with the new variable stored in the let's slot. Adding the variable is therefore constant
+ * time, however many variables are already in scope.</p>
+ *
+ * <p>More generally, a call to any {@link BindingFunction}, whose variable is in scope in the body. Only the built-in
+ * let is known to simply bind the value for the body; other binding functions decide for themselves when to evaluate
+ * the value and body, so they're evaluated as lazy calls.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class LetNode extends Node {
+
+    private final BindingFunction function;
+    private final String variableName;
+    private final int slot;
+    private final Node value;
+    private final Node body;
+
+    /**
+     * Constructs a LetNode.
+     *
+     * @param function the function which introduces the variable.
+     * @param variableName the name of the variable to assign.
+     * @param slot the slot where the variable is stored.
+     * @param value the expression for the value of the variable.
+     * @param body the expression where the variable is used.
+     */
+    public LetNode(BindingFunction function, String variableName, int slot, Node value, Node body) {
+        this.function = function;
+        this.variableName = variableName;
+        this.slot = slot;
+        this.value = value;
+        this.body = body;
+    }
+
+    /**
+     * Returns the function which introduces the variable.
+     *
+     * @return the function.
+     */
+    public BindingFunction getFunction() {
+        return function;
+    }
+
+    /**
+     * Returns whether this is a call of the built-in let, which can be evaluated inline rather than through the
+     * function. A subclass of LetFunction may evaluate its arguments differently, so isn't treated as built in.
+     *
+     * @return true if this is a built-in let.
+     */
+    public boolean isBuiltIn() {
+        return function.getClass() == LetFunction.class;
+    }
+
+    /**
+     * Returns the name of the variable introduced by this let.
+     *
+     * @return the variable name.
+     */
+    public String getVariableName() {
+        return variableName;
+    }
+
+    /**
+     * Returns the slot where the variable is stored.
+     *
+     * @return the slot.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Returns the expression for the value of the variable.
+     *
+     * @return the value node.
+     */
+    public Node getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the expression where the variable is used.
+     *
+     * @return the body node.
+     */
+    public Node getBody() {
+        return body;
+    }
+
+    protected void format(StringBuilder builder, Deque<Object> pending) {
+        builder.append(function.getName()).append('(').append(variableName).append(',');
+        pending.push(")");
+        pending.push(body);
+        pending.push(",");
+        pending.push(value);
+    }
+}
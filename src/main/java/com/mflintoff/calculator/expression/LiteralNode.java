@@ -0,0 +1,37 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.Value;
+
+import java.util.Deque;
+
+/**
+ * A raw value in an expression, eg. the "3" in "add(3, 5)".
+ *
+ * @author Malcolm Flintoff
+ */
+public class LiteralNode extends Node {
+
+    private final Value value;
+
+    /**
+     * Constructs a LiteralNode.
+     *
+     * @param value the value, parsed from the raw text in the expression.
+     */
+    public LiteralNode(Value value) {
+        this.value = value;
+    }
+
+    /**
+     * Returns the value.
+     *
+     * @return the value.
+     */
+    public Value getValue() {
+        return value;
+    }
+
+    protected void format(StringBuilder builder, Deque<Object> pending) {
+        builder.append(value);
+    }
+}
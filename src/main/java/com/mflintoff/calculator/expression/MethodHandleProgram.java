@@ -0,0 +1,206 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.LongFunction;
+import com.mflintoff.calculator.function.PureFunction;
+import com.mflintoff.calculator.function.Value;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>An expression compiled into a tree of {@link MethodHandle}s which performs the whole evaluation on primitive
+ * longs. Each function call is bound directly to its function's {@link LongFunction#applyLong(long, long)} and
+ * {@link LongFunction#completeLong(long)} methods, and each let to a store into a local slot, so once the handle is
+ * hot the JIT can inline the entire expression into a single compiled method, with no interpretive dispatch and no
+ * argument arrays.</p>
+ *
+ * <p>This is a fast path alongside {@link Program}, not a replacement for it. Only expressions made up of pure
+ * {@link LongFunction}s, long literals, variables and lets can be compiled, and only if they are shallow enough that
+ * invoking the handles can't exhaust the Java stack. When an evaluation can't be completed exactly on longs - an
+ * argument isn't a long, or an operation overflows or has a fractional result - an {@link ArithmeticException} is
+ * thrown, and the caller evaluates the expression with the Program instead, which also produces any error.</p>
+ *
+ * <p>A MethodHandleProgram is immutable and may be shared between threads.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class MethodHandleProgram {
+
+    /**
+     * The maximum nesting of method handles, which bounds the stack used to invoke them.
+     */
+    static final int MAX_DEPTH = 64;
+
+    // every compiled node has this type: (long[] locals, long[] freeVariables) -> long
+    private static final MethodType NODE_TYPE = MethodType.methodType(long.class, long[].class, long[].class);
+
+    private static final MethodHandle APPLY_LONG;
+    private static final MethodHandle COMPLETE_LONG;
+    private static final MethodHandle LOAD;
+    private static final MethodHandle STORE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            APPLY_LONG = lookup.findVirtual(LongFunction.class, "applyLong",
+                    MethodType.methodType(long.class, long.class, long.class));
+            COMPLETE_LONG = lookup.findVirtual(LongFunction.class, "completeLong",
+                    MethodType.methodType(long.class, long.class));
+            LOAD = MethodHandles.arrayElementGetter(long[].class);
+            STORE = lookup.findStatic(MethodHandleProgram.class, "store",
+                    MethodType.methodType(void.class, long[].class, int.class, long.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final MethodHandle handle;
+    private final int numLocals;
+
+    private MethodHandleProgram(MethodHandle handle, int numLocals) {
+        this.handle = handle;
+        this.numLocals = numLocals;
+    }
+
+    /**
+     * Compiles a tree of nodes into a MethodHandleProgram, if possible.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @return the compiled program, or null if the expression can't be evaluated on longs or is too deep.
+     */
+    public static MethodHandleProgram compile(Node root, int numLocals) {
+        if (!Backends.hasCallResult(root)) {
+            return null;
+        }
+
+        CompiledNode compiled = new Compiler().compile(root, 0);
+        return compiled != null ? new MethodHandleProgram(compiled.handle, numLocals) : null;
+    }
+
+    /**
+     * Executes the program.
+     *
+     * @param freeVariables the values of the free variables, indexed as resolved by the parser.
+     * @return the result of the expression.
+     * @throws ArithmeticException if the expression can't be evaluated exactly on longs.
+     */
+    public long execute(long[] freeVariables) throws ArithmeticException {
+        try {
+            return (long) handle.invokeExact(new long[numLocals], freeVariables);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("unexpected exception from compiled expression", t);
+        }
+    }
+
+    private static void store(long[] locals, int slot, long value) {
+        locals[slot] = value;
+    }
+
+    /**
+     * A compiled node, and the nesting depth of its method handles.
+     */
+    private static class CompiledNode {
+        final MethodHandle handle;
+        final int depth;
+
+        CompiledNode(MethodHandle handle, int depth) {
+            this.handle = handle;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Compiles nodes recursively. The recursion is bounded by {@link #MAX_DEPTH}, since compilation gives up as soon
+     * as it's exceeded.
+     */
+    private static class Compiler {
+        // subexpressions shared by the Optimizer are compiled once, though they're still evaluated at each use
+        private final Map<Node, CompiledNode> compiled = new IdentityHashMap<Node, CompiledNode>();
+
+        CompiledNode compile(Node node, int level) {
+            if (level > MAX_DEPTH) {
+                return null;
+            }
+            CompiledNode result = compiled.get(node);
+            if (result == null) {
+                result = compileNode(node, level);
+                if (result == null || result.depth > MAX_DEPTH) {
+                    return null;
+                }
+                compiled.put(node, result);
+            }
+            return result;
+        }
+
+        private CompiledNode compileNode(Node node, int level) {
+            if (node instanceof LiteralNode) {
+                Value value = ((LiteralNode) node).getValue();
+                if (!value.isLong()) {
+                    return null;
+                }
+                MethodHandle constant = MethodHandles.constant(long.class, value.longValue());
+                return new CompiledNode(MethodHandles.dropArguments(constant, 0, long[].class, long[].class), 1);
+            } else if (node instanceof VariableNode) {
+                MethodHandle load = MethodHandles.insertArguments(LOAD, 1, ((VariableNode) node).getSlot());
+                return new CompiledNode(MethodHandles.dropArguments(load, 1, long[].class), 1);
+            } else if (node instanceof FreeVariableNode) {
+                MethodHandle load = MethodHandles.insertArguments(LOAD, 1, ((FreeVariableNode) node).getIndex());
+                return new CompiledNode(MethodHandles.dropArguments(load, 0, long[].class), 1);
+            } else if (node instanceof LetNode && ((LetNode) node).isBuiltIn()) {
+                return compileLet((LetNode) node, level);
+            } else if (node instanceof FunctionCallNode) {
+                return compileCall((FunctionCallNode) node, level);
+            }
+            return null;
+        }
+
+        private CompiledNode compileLet(LetNode let, int level) {
+            CompiledNode value = compile(let.getValue(), level + 1);
+            CompiledNode body = value != null ? compile(let.getBody(), level + 1) : null;
+            if (body == null) {
+                return null;
+            }
+            // (long value, long[] locals, long[] freeVariables) -> void
+            MethodHandle store = MethodHandles.permuteArguments(MethodHandles.insertArguments(STORE, 1, let.getSlot()),
+                    MethodType.methodType(void.class, long.class, long[].class, long[].class), 1, 0);
+            MethodHandle storeValue = MethodHandles.foldArguments(store, value.handle);
+            return new CompiledNode(MethodHandles.foldArguments(body.handle, storeValue),
+                    Math.max(value.depth, body.depth) + 2);
+        }
+
+        private CompiledNode compileCall(FunctionCallNode call, int level) {
+            if (!(call.getFunction() instanceof LongFunction) || !(call.getFunction() instanceof PureFunction)
+                    || call.getArguments().isEmpty()) {
+                return null;
+            }
+            LongFunction function = (LongFunction) call.getFunction();
+            MethodHandle apply = APPLY_LONG.bindTo(function);
+
+            // fold the arguments from the left: result = apply(apply(arg0, arg1), arg2)...
+            CompiledNode result = compile(call.getArguments().get(0), level + 1);
+            for (int i = 1; i < call.getArguments().size() && result != null; i++) {
+                CompiledNode argument = compile(call.getArguments().get(i), level + 1);
+                if (argument == null) {
+                    return null;
+                }
+                MethodHandle combined = MethodHandles.collectArguments(
+                        MethodHandles.collectArguments(apply, 0, result.handle), 2, argument.handle);
+                combined = MethodHandles.permuteArguments(combined, NODE_TYPE, 0, 1, 0, 1);
+                result = new CompiledNode(combined, Math.max(result.depth, argument.depth) + 1);
+            }
+            if (result == null) {
+                return null;
+            }
+            return new CompiledNode(MethodHandles.filterReturnValue(result.handle, COMPLETE_LONG.bindTo(function)),
+                    result.depth + 1);
+        }
+    }
+}
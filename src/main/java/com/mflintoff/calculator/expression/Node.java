@@ -0,0 +1,46 @@
+package com.mflintoff.calculator.expression;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * <p>A node in the parsed tree of an expression. Nodes are immutable, so a tree can be shared between threads. The
+ * tree is compiled into a {@link Program} for evaluation.</p>
+ *
+ * <p>Expressions may be nested many thousands of levels deep, so operations over the tree, including
+ * {@link #toString()}, use an explicit stack rather than recursion.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public abstract class Node {
+
+    /**
+     * Appends the text of this node to the builder. Any child nodes must not be appended directly - instead, they
+     * are pushed onto the pending stack, along with any text that follows them, in reverse order.
+     *
+     * @param builder the builder to append to.
+     * @param pending stack of {@link Node}s and {@link String}s still to be appended.
+     */
+    protected abstract void format(StringBuilder builder, Deque<Object> pending);
+
+    /**
+     * Returns the expression represented by this node, without whitespace. eg. "add(3,mult(a,5))"
+     *
+     * @return the expression text.
+     */
+    public final String toString() {
+        StringBuilder builder = new StringBuilder();
+        Deque<Object> pending = new ArrayDeque<Object>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+            if (item instanceof Node) {
+                ((Node) item).format(builder, pending);
+            } else {
+                builder.append((String) item);
+            }
+        }
+        return builder.toString();
+    }
+
+}
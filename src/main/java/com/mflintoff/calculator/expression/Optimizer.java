@@ -0,0 +1,282 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.function.PureFunction;
+import com.mflintoff.calculator.function.StringFunctionAdapter;
+import com.mflintoff.calculator.function.Value;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Rewrites a parsed expression so that it evaluates faster, without changing its result or the errors it
+ * raises:</p>
+ * <ul>
+ * <li>Constant folding: a call to a {@link PureFunction} whose arguments are all literals is replaced by its result.
+ * Calls which fail, eg. division by zero, are left in place so that the error is raised on evaluation as before.</li>
+ * <li>Constant propagation: references to a let variable whose value is a literal are replaced by the literal, which
+ * may allow further folding, and the let is then removed. Only the built-in let is known to bind its value this way,
+ * so lets of other {@link com.mflintoff.calculator.function.BindingFunction}s are left alone.</li>
+ * <li>Unused let removal: a let whose variable is never referenced is replaced by its body, provided evaluating its
+ * value can't fail - ie. it is a literal or a variable.</li>
+ * <li>Common subexpression elimination: structurally identical calls to pure functions are merged into a single
+ * shared node, which {@link Program} evaluates only once. Two variable references are only identical if they refer to
+ * the same let. The arguments of a {@link com.mflintoff.calculator.function.LazyFunction} may be merged too, since
+ * {@link Program} evaluates each of them separately.</li>
+ * </ul>
+ *
+ * <p>As with the rest of the evaluator, the tree is walked with an explicit stack, so that deeply nested expressions
+ * can be optimized. The result is no longer a tree but a directed acyclic graph.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class Optimizer {
+
+    private static final int VISIT = 0;
+    private static final int BIND_LET = 1;
+    private static final int EXIT_LET = 2;
+    private static final int EXIT_CALL = 3;
+
+    /**
+     * A step of the walk over the tree.
+     */
+    private static class Task {
+        final int kind;
+        final Node node;
+        Binding shadowed;
+
+        Task(int kind, Node node) {
+            this.kind = kind;
+            this.node = node;
+        }
+    }
+
+    /**
+     * What's known about the let which currently occupies a slot.
+     */
+    private static class Binding {
+        final LetNode let;
+        final LiteralNode constant;
+        VariableNode variable;
+        boolean used;
+
+        Binding(LetNode let, LiteralNode constant) {
+            this.let = let;
+            this.constant = constant;
+        }
+    }
+
+    private final Binding[] bindings;
+    private final Map<NodeKey, Node> canonicalNodes = new HashMap<NodeKey, Node>();
+
+    private Optimizer(int numLocals) {
+        this.bindings = new Binding[numLocals];
+    }
+
+    /**
+     * Optimizes a parsed expression.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @return the root node of the optimized expression.
+     */
+    public static Node optimize(Node root, int numLocals) {
+        return new Optimizer(numLocals).optimize(root);
+    }
+
+    private Node optimize(Node root) {
+        Deque<Task> tasks = new ArrayDeque<Task>();
+        Deque<Node> results = new ArrayDeque<Node>();
+        tasks.push(new Task(VISIT, root));
+        while (!tasks.isEmpty()) {
+            Task task = tasks.pop();
+            switch (task.kind) {
+                case VISIT:
+                    visit(task.node, tasks, results);
+                    break;
+                case BIND_LET: {
+                    // the value has been optimized, so the variable can be brought into scope for the body
+                    LetNode let = (LetNode) task.node;
+                    Node value = results.peek();
+                    Task exit = new Task(EXIT_LET, let);
+                    exit.shadowed = bindings[let.getSlot()];
+                    bindings[let.getSlot()] = new Binding(let,
+                            let.isBuiltIn() && value instanceof LiteralNode ? (LiteralNode) value : null);
+                    tasks.push(exit);
+                    tasks.push(new Task(VISIT, let.getBody()));
+                    break;
+                }
+                case EXIT_LET: {
+                    LetNode let = (LetNode) task.node;
+                    Binding binding = bindings[let.getSlot()];
+                    bindings[let.getSlot()] = task.shadowed;
+                    Node body = results.pop();
+                    Node value = results.pop();
+                    results.push(optimizeLet(let, binding, value, body));
+                    break;
+                }
+                case EXIT_CALL: {
+                    FunctionCallNode call = (FunctionCallNode) task.node;
+                    Node[] arguments = new Node[call.getArguments().size()];
+                    for (int i = arguments.length - 1; i >= 0; i--) {
+                        arguments[i] = results.pop();
+                    }
+                    results.push(optimizeCall(call, arguments));
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("unknown task " + task.kind);
+            }
+        }
+        return results.pop();
+    }
+
+    private void visit(Node node, Deque<Task> tasks, Deque<Node> results) {
+        if (node instanceof LiteralNode || node instanceof FreeVariableNode) {
+            results.push(canonical(new NodeKey(node), node));
+        } else if (node instanceof VariableNode) {
+            Binding binding = bindings[((VariableNode) node).getSlot()];
+            if (binding.constant != null) {
+                results.push(binding.constant);
+            } else {
+                binding.used = true;
+                if (binding.variable == null) {
+                    binding.variable = (VariableNode) node;
+                }
+                results.push(binding.variable);
+            }
+        } else if (node instanceof LetNode) {
+            LetNode let = (LetNode) node;
+            tasks.push(new Task(BIND_LET, let));
+            tasks.push(new Task(VISIT, let.getValue()));
+        } else if (node instanceof FunctionCallNode) {
+            List<Node> arguments = ((FunctionCallNode) node).getArguments();
+            tasks.push(new Task(EXIT_CALL, node));
+            for (int i = arguments.size() - 1; i >= 0; i--) {
+                tasks.push(new Task(VISIT, arguments.get(i)));
+            }
+        } else {
+            throw new IllegalArgumentException("unsupported node: " + node.getClass().getName());
+        }
+    }
+
+    private Node optimizeLet(LetNode let, Binding binding, Node value, Node body) {
+        if (binding.constant != null) {
+            // every reference to the variable has been replaced by the constant
+            return body;
+        } else if (let.isBuiltIn() && !binding.used
+                && (value instanceof VariableNode || value instanceof FreeVariableNode)) {
+            return body;
+        } else if (value == let.getValue() && body == let.getBody()) {
+            return let;
+        }
+        return new LetNode(let.getFunction(), let.getVariableName(), let.getSlot(), value, body);
+    }
+
+    private Node optimizeCall(FunctionCallNode call, Node[] arguments) {
+        if (!(call.getFunction() instanceof PureFunction)) {
+            return sameArguments(call, arguments) ? call : new FunctionCallNode(call.getFunction(), Arrays.asList(arguments));
+        }
+
+        boolean constant = true;
+        for (Node argument : arguments) {
+            constant &= argument instanceof LiteralNode;
+        }
+        if (constant) {
+            Value[] values = new Value[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                values[i] = ((LiteralNode) arguments[i]).getValue();
+            }
+            try {
+                Value result = StringFunctionAdapter.adapt(call.getFunction()).execute(values);
+                LiteralNode literal = new LiteralNode(result);
+                return canonical(new NodeKey(literal), literal);
+            } catch (Exception e) {
+                // leave the call in place, so that the error is raised when the expression is evaluated
+            }
+        }
+
+        NodeKey key = new NodeKey(call, arguments);
+        Node existing = canonicalNodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        Node node = sameArguments(call, arguments) ? call : new FunctionCallNode(call.getFunction(), Arrays.asList(arguments));
+        canonicalNodes.put(key, node);
+        return node;
+    }
+
+    private Node canonical(NodeKey key, Node node) {
+        Node existing = canonicalNodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        canonicalNodes.put(key, node);
+        return node;
+    }
+
+    private static boolean sameArguments(FunctionCallNode call, Node[] arguments) {
+        List<Node> original = call.getArguments();
+        for (int i = 0; i < arguments.length; i++) {
+            if (original.get(i) != arguments[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Identifies structurally identical nodes. The children of a call have already been made canonical, so they are
+     * compared by identity.
+     */
+    private static class NodeKey {
+        private final Object identity;
+        private final Node[] children;
+        private final int hashCode;
+
+        NodeKey(Node leaf) {
+            // literals are identical if their text is, since the text determines both the value and its scale
+            this.identity = leaf instanceof LiteralNode ? (Object) leaf.toString()
+                    : "$" + ((FreeVariableNode) leaf).getIndex();
+            this.children = new Node[0];
+            this.hashCode = identity.hashCode();
+        }
+
+        NodeKey(FunctionCallNode call, Node[] children) {
+            this.identity = call.getFunction();
+            this.children = children;
+            int hash = System.identityHashCode(identity);
+            for (Node child : children) {
+                hash = 31 * hash + System.identityHashCode(child);
+            }
+            this.hashCode = hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            if (hashCode != other.hashCode || children.length != other.children.length) {
+                return false;
+            }
+            boolean sameIdentity = children.length == 0 ? identity.equals(other.identity) : identity == other.identity;
+            if (!sameIdentity) {
+                return false;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != other.children[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
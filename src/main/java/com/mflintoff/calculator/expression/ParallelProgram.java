@@ -0,0 +1,247 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.ArithmeticFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.MultiplyFunction;
+import com.mflintoff.calculator.function.PureFunction;
+import com.mflintoff.calculator.function.Value;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * <p>An expression whose root is a wide call of add or mult, evaluated in parallel by a {@link ForkJoinPool}. The
+ * arguments are split into chunks of roughly equal cost, and each chunk is compiled into its own {@link Program},
+ * which calls the function on the chunk's arguments. The chunks are evaluated as subtasks, and their results combined
+ * by calling the function on pairs of them, in a balanced tree.</p>
+ *
+ * <p>Only calls whose result doesn't depend on the grouping of the arguments are evaluated this way: add and mult of
+ * exact decimals, in which case the result is identical to sequential evaluation. Every call in the arguments must be
+ * of a {@link PureFunction}, so that evaluating them in a different order can't be observed. A subexpression shared
+ * by arguments in different chunks is evaluated once per chunk.</p>
+ *
+ * <p>If a chunk fails, {@link #execute(Value[], long[])} reports its error, which may not be the error sequential
+ * evaluation would report if several arguments fail, since all arguments are evaluated before the function combines
+ * them. Callers wanting the same error should evaluate the expression again with the sequential Program. Function
+ * calls aren't recorded in any metrics, so that a call evaluated again isn't counted twice.</p>
+ *
+ * <p>A ParallelProgram is immutable and may be shared between threads.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class ParallelProgram {
+
+    /**
+     * The number of chunks per thread of the pool, so that threads which finish early can take more work.
+     */
+    static final int CHUNKS_PER_THREAD = 4;
+
+    private final ArithmeticFunction function;
+    private final Program[] chunks;
+    private final ForkJoinPool pool;
+
+    private ParallelProgram(ArithmeticFunction function, Program[] chunks, ForkJoinPool pool) {
+        this.function = function;
+        this.chunks = chunks;
+        this.pool = pool;
+    }
+
+    /**
+     * Compiles a tree of nodes into a ParallelProgram evaluated by the common pool, if it's wide and costly enough.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @param numFreeVariables the number of free variables in the expression.
+     * @param minWidth the minimum number of arguments of the call.
+     * @param minCost the minimum number of nodes in the arguments of the call.
+     * @return the compiled program, or null if the root isn't a call which can be evaluated in parallel, or is
+     *         narrower or cheaper than the minimums.
+     */
+    public static ParallelProgram compile(Node root, int numLocals, int numFreeVariables, int minWidth, int minCost) {
+        return compile(root, numLocals, numFreeVariables, minWidth, minCost, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Compiles a tree of nodes into a ParallelProgram evaluated by the given pool, if it's wide and costly enough.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @param numFreeVariables the number of free variables in the expression.
+     * @param minWidth the minimum number of arguments of the call.
+     * @param minCost the minimum number of nodes in the arguments of the call.
+     * @param pool the pool to evaluate the chunks with.
+     * @return the compiled program, or null if the root isn't a call which can be evaluated in parallel, or is
+     *         narrower or cheaper than the minimums.
+     */
+    public static ParallelProgram compile(Node root, int numLocals, int numFreeVariables, int minWidth, int minCost,
+                                          ForkJoinPool pool) {
+        if (!(root instanceof FunctionCallNode) || !isAssociative(((FunctionCallNode) root).getFunction())) {
+            return null;
+        }
+        FunctionCallNode call = (FunctionCallNode) root;
+        List<Node> arguments = call.getArguments();
+        if (arguments.size() < Math.max(minWidth, 2)) {
+            return null;
+        }
+
+        int[] costs = new int[arguments.size()];
+        long totalCost = 0;
+        for (int i = 0; i < costs.length; i++) {
+            costs[i] = costOf(arguments.get(i));
+            if (costs[i] < 0) {
+                return null;
+            }
+            totalCost += costs[i];
+        }
+        if (totalCost < minCost) {
+            return null;
+        }
+
+        // split the arguments into consecutive chunks of roughly equal cost
+        int numChunks = (int) Math.min(arguments.size(), (long) pool.getParallelism() * CHUNKS_PER_THREAD);
+        if (numChunks < 2) {
+            return null;
+        }
+        Program[] chunks = new Program[numChunks];
+        int start = 0;
+        long cost = 0;
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            // leave at least one argument for each of the remaining chunks
+            int end = start + 1;
+            cost += costs[start];
+            long target = totalCost * (chunk + 1) / numChunks;
+            while (end < arguments.size() - (numChunks - chunk - 1) && (cost < target || chunk == numChunks - 1)) {
+                cost += costs[end++];
+            }
+            Node chunkCall = new FunctionCallNode(call.getFunction(), arguments.subList(start, end));
+            chunks[chunk] = Program.compile(chunkCall, numLocals, numFreeVariables);
+            start = end;
+        }
+        return new ParallelProgram((ArithmeticFunction) call.getFunction(), chunks, pool);
+    }
+
+    /**
+     * Returns the number of chunks the arguments are split into.
+     *
+     * @return the number of chunks.
+     */
+    public int getNumChunks() {
+        return chunks.length;
+    }
+
+    /**
+     * Executes the program, with the free variables in the same form as {@link Program#execute(Value[], long[])}.
+     *
+     * @param freeValues the Value of each free variable, or null if its value is in freeLongs. Unbound variables
+     *                   must be given the Value of their name.
+     * @param freeLongs the long value of each free variable whose Value is null.
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs evaluating a chunk.
+     */
+    public Value execute(Value[] freeValues, long[] freeLongs) throws EvaluationException {
+        try {
+            return pool.invoke(new ChunkTask(0, chunks.length, freeValues, freeLongs));
+        } catch (ChunkException e) {
+            throw (EvaluationException) e.getCause();
+        }
+    }
+
+    /**
+     * Returns whether the result of the function doesn't depend on how its arguments are grouped.
+     *
+     * @param function the function.
+     * @return true if the function is add or mult of exact numbers.
+     */
+    private static boolean isAssociative(Function function) {
+        return (Backends.isBuiltIn(function, AddFunction.class) || Backends.isBuiltIn(function, MultiplyFunction.class))
+                && ((ArithmeticFunction) function).getNumericMode().isAssociative();
+    }
+
+    /**
+     * Returns the number of nodes in a subexpression, counting shared nodes each time they're reached, if it can be
+     * evaluated in any order.
+     *
+     * @param node the root of the subexpression.
+     * @return the number of nodes, or -1 if the subexpression has a call of a function which isn't pure, or a let
+     *         which isn't built in.
+     */
+    private static int costOf(Node node) {
+        int cost = 0;
+        Deque<Node> pending = new ArrayDeque<Node>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            Node next = pending.pop();
+            cost++;
+            if (next instanceof FunctionCallNode) {
+                FunctionCallNode call = (FunctionCallNode) next;
+                if (!(call.getFunction() instanceof PureFunction)) {
+                    return -1;
+                }
+                for (Node argument : call.getArguments()) {
+                    pending.push(argument);
+                }
+            } else if (next instanceof LetNode) {
+                LetNode let = (LetNode) next;
+                if (!let.isBuiltIn()) {
+                    return -1;
+                }
+                pending.push(let.getValue());
+                pending.push(let.getBody());
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Evaluates a range of chunks, and combines their results.
+     */
+    private class ChunkTask extends RecursiveTask<Value> {
+        private final int start;
+        private final int end;
+        private final Value[] freeValues;
+        private final long[] freeLongs;
+
+        ChunkTask(int start, int end, Value[] freeValues, long[] freeLongs) {
+            this.start = start;
+            this.end = end;
+            this.freeValues = freeValues;
+            this.freeLongs = freeLongs;
+        }
+
+        protected Value compute() {
+            if (end - start == 1) {
+                try {
+                    return chunks[start].execute(freeValues, freeLongs);
+                } catch (EvaluationException e) {
+                    throw new ChunkException(e);
+                }
+            }
+
+            int middle = (start + end) >>> 1;
+            ChunkTask left = new ChunkTask(start, middle, freeValues, freeLongs);
+            left.fork();
+            Value right = new ChunkTask(middle, end, freeValues, freeLongs).compute();
+            try {
+                return function.execute(new Value[] {left.join(), right});
+            } catch (FunctionExecutionException e) {
+                throw new ChunkException(new EvaluationException("an error occurred executing function "
+                        + function.getName() + ":" + e.getMessage(), e));
+            }
+        }
+    }
+
+    /**
+     * Carries the error of a chunk out of the pool.
+     */
+    private static class ChunkException extends RuntimeException {
+        ChunkException(EvaluationException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.LazyArguments;
+import com.mflintoff.calculator.function.LazyFunction;
+import com.mflintoff.calculator.function.LongFunction;
+import com.mflintoff.calculator.function.StringFunctionAdapter;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.function.ValueFunction;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
+import com.mflintoff.calculator.metrics.FunctionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>A tree of {@link Node}s compiled into a flat sequence of instructions for a stack machine, in postfix order: the
+ * arguments of a function are evaluated, leaving their values on an operand stack, and the function call then
+ * replaces them with its result. A let evaluates its value, stores it in the let's slot, then evaluates its body.</p>
+ *
+ * <p>Evaluation is a single loop over the instructions, so it uses a constant amount of Java stack however deeply the
+ * expression is nested. Compilation likewise walks the tree with an explicit stack.</p>
+ *
+ * <p>Each operand and let slot holds either a {@link Value}, or a primitive long when the Value is null, so that the
+ * arguments and results of a {@link LongFunction} are passed around without allocating. Arguments of a LongFunction
+ * are combined as longs until an argument isn't a long or an operation can't be performed exactly, at which point the
+ * remaining arguments are converted to Values.</p>
+ *
+ * <p>A node which appears more than once in the graph, ie. a subexpression shared by the {@link Optimizer}, is
+ * evaluated the first time it is reached and its result kept in a temporary slot after the let slots; later
+ * occurrences load it from there.</p>
+ *
+ * <p>A call to a {@link LazyFunction} passes its arguments unevaluated: each argument is compiled into its own run of
+ * instructions, which the function runs when it evaluates the argument. A subexpression is only shared within such a
+ * run, since a value computed by an argument which is never evaluated can't be used elsewhere. Evaluating an argument
+ * uses Java stack, but an argument which the function makes its result with {@link LazyArguments#tail(int)} is run in
+ * the same loop as the call, so lazy calls nested in tail position, such as lets nested in the body of a let, use a
+ * constant amount of Java stack. Lets of the built-in let function are compiled inline, without a lazy call.</p>
+ *
+ * <p>If compiled with {@link EvaluationMetrics}, each call is recorded in the {@link FunctionMetrics} of its
+ * function, which are looked up once at compile time. If compiled with tracing, each call is logged at debug with its
+ * arguments; otherwise execution never calls the logger.</p>
+ *
+ * <p>A Program is immutable and may be shared between threads.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class Program {
+
+    private static final int PUSH_CONSTANT = 0;  // operand: constant index
+    private static final int LOAD_LOCAL = 1;     // operand: slot
+    private static final int LOAD_FREE = 2;      // operand: free variable index
+    private static final int STORE_LOCAL = 3;    // operand: slot
+    private static final int CALL = 4;           // operands: call site index, number of arguments
+    private static final int TEE_LOCAL = 5;      // operand: slot
+    private static final int LAZY_CALL = 6;      // operands: call site index, number of arguments, slot bound or -1,
+                                                 // the start of each argument's code, the end of the call
+    private static final int JUMP = 7;           // operand: target
+
+    private final int[] code;
+    private final Value[] constants;
+    private final ValueFunction[] functions;
+    private final LongFunction[] longFunctions;
+    private final LazyFunction[] lazyFunctions;
+    private final FunctionMetrics[] metrics;
+    private final boolean trace;
+    private final Value[] unboundValues;
+    private final int numLocals;
+    private final int maxStackSize;
+
+    private Program(int[] code, Value[] constants, ValueFunction[] functions, LazyFunction[] lazyFunctions,
+                    FunctionMetrics[] metrics, boolean trace, Value[] unboundValues, int numLocals, int maxStackSize) {
+        this.code = code;
+        this.constants = constants;
+        this.functions = functions;
+        this.longFunctions = new LongFunction[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            if (functions[i] instanceof LongFunction) {
+                longFunctions[i] = (LongFunction) functions[i];
+            }
+        }
+        this.lazyFunctions = lazyFunctions;
+        this.metrics = metrics;
+        this.trace = trace;
+        this.unboundValues = unboundValues;
+        this.numLocals = numLocals;
+        this.maxStackSize = maxStackSize;
+    }
+
+    /**
+     * Compiles a tree of nodes into a Program.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @param numFreeVariables the number of free variables in the expression.
+     * @return the compiled program.
+     */
+    public static Program compile(Node root, int numLocals, int numFreeVariables) {
+        return compile(root, numLocals, numFreeVariables, null, false);
+    }
+
+    /**
+     * Compiles a tree of nodes into a Program which records or traces the calls of each function.
+     *
+     * @param root the root node of the expression.
+     * @param numLocals the number of let slots used by the expression.
+     * @param numFreeVariables the number of free variables in the expression.
+     * @param metrics where function calls are recorded, or null to not record them.
+     * @param trace true to log each function call and its arguments at debug.
+     * @return the compiled program.
+     */
+    public static Program compile(Node root, int numLocals, int numFreeVariables, EvaluationMetrics metrics,
+                                  boolean trace) {
+        Compiler compiler = new Compiler(numLocals, numFreeVariables);
+        compiler.compile(root);
+        ValueFunction[] functions = compiler.functions.toArray(new ValueFunction[compiler.functions.size()]);
+        FunctionMetrics[] functionMetrics = null;
+        if (metrics != null) {
+            functionMetrics = new FunctionMetrics[functions.length];
+            for (int i = 0; i < functions.length; i++) {
+                functionMetrics[i] = metrics.function(functions[i].getName());
+            }
+        }
+        return new Program(Arrays.copyOf(compiler.code, compiler.codeSize),
+                compiler.constants.toArray(new Value[compiler.constants.size()]), functions,
+                compiler.lazyFunctions.toArray(new LazyFunction[compiler.lazyFunctions.size()]), functionMetrics,
+                trace, compiler.unboundValues, compiler.numSlots, compiler.maxStackSize);
+    }
+
+    /**
+     * Executes the program.
+     *
+     * @param freeVariables the values of the free variables, indexed as resolved by the parser. A null value means
+     *                      the variable is unbound.
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    public Value execute(Value[] freeVariables) throws EvaluationException {
+        Value[] freeValues = new Value[freeVariables.length];
+        for (int i = 0; i < freeVariables.length; i++) {
+            freeValues[i] = freeVariables[i] != null ? freeVariables[i] : unboundValues[i];
+        }
+        return execute(freeValues, new long[freeVariables.length]);
+    }
+
+    /**
+     * Executes the program, with the free variables in the same form as the operands: either a Value, or a long when
+     * the Value is null. This allows integer variables to be passed without allocating.
+     *
+     * @param freeValues the Value of each free variable, or null if its value is in freeLongs. Unbound variables
+     *                   must be given the Value of their name.
+     * @param freeLongs the long value of each free variable whose Value is null.
+     * @return the result of the expression.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    public Value execute(Value[] freeValues, long[] freeLongs) throws EvaluationException {
+        Frame frame = new Frame(freeValues, freeLongs);
+        try {
+            run(frame, 0, code.length, 0);
+        } catch (StackOverflowError e) {
+            // only evaluating the arguments of lazy functions uses Java stack
+            throw new EvaluationException("expression nests lazily evaluated arguments too deeply", e);
+        }
+        return frame.value(0);
+    }
+
+    /**
+     * Executes instructions until the given instruction is reached.
+     *
+     * @param frame the operands and variables.
+     * @param pc the first instruction.
+     * @param stop the instruction to stop at.
+     * @param sp the height of the operand stack.
+     * @throws EvaluationException if an error occurs during the evaluation.
+     */
+    private void run(Frame frame, int pc, int stop, int sp) throws EvaluationException {
+        Value[] stackValues = frame.stackValues;
+        long[] stackLongs = frame.stackLongs;
+        Value[] localValues = frame.localValues;
+        long[] localLongs = frame.localLongs;
+        Value[] freeValues = frame.freeValues;
+        long[] freeLongs = frame.freeLongs;
+
+        while (pc != stop) {
+            switch (code[pc++]) {
+                case PUSH_CONSTANT:
+                    stackValues[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD_LOCAL: {
+                    int slot = code[pc++];
+                    stackValues[sp] = localValues[slot];
+                    stackLongs[sp++] = localLongs[slot];
+                    break;
+                }
+                case LOAD_FREE: {
+                    int index = code[pc++];
+                    stackValues[sp] = freeValues[index];
+                    stackLongs[sp++] = freeLongs[index];
+                    break;
+                }
+                case STORE_LOCAL: {
+                    int slot = code[pc++];
+                    sp--;
+                    localValues[slot] = stackValues[sp];
+                    localLongs[slot] = stackLongs[sp];
+                    break;
+                }
+                case TEE_LOCAL: {
+                    int slot = code[pc++];
+                    localValues[slot] = stackValues[sp - 1];
+                    localLongs[slot] = stackLongs[sp - 1];
+                    break;
+                }
+                case CALL: {
+                    int site = code[pc++];
+                    int numArgs = code[pc++];
+                    sp -= numArgs;
+                    long start = metrics != null ? metrics[site].start() : FunctionMetrics.NOT_TIMED;
+                    try {
+                        // when tracing, every call is executed with Values so that its arguments can be logged
+                        if (longFunctions[site] != null && numArgs > 0 && !trace) {
+                            callLong(longFunctions[site], stackValues, stackLongs, sp, numArgs);
+                        } else {
+                            Value[] arguments = toValues(stackValues, stackLongs, sp, numArgs, 0);
+                            if (trace) {
+                                trace(functions[site], arguments);
+                            }
+                            stackValues[sp] = call(functions[site], arguments);
+                        }
+                    } catch (EvaluationException e) {
+                        if (metrics != null) {
+                            metrics[site].fail(start);
+                        }
+                        throw e;
+                    }
+                    if (metrics != null) {
+                        metrics[site].end(start);
+                    }
+                    sp++;
+                    break;
+                }
+                case LAZY_CALL: {
+                    int site = code[pc];
+                    LazyCall arguments = new LazyCall(frame, pc, sp);
+                    if (trace && TraceLog.log.isDebugEnabled()) {
+                        TraceLog.log.debug("executing function {} with {} lazy arguments", functions[site].getName(),
+                                arguments.size());
+                    }
+                    long start = metrics != null ? metrics[site].start() : FunctionMetrics.NOT_TIMED;
+                    Value result;
+                    try {
+                        result = callLazy(lazyFunctions[site], arguments);
+                    } catch (EvaluationException e) {
+                        if (metrics != null) {
+                            metrics[site].fail(start);
+                        }
+                        throw e;
+                    }
+                    if (metrics != null) {
+                        metrics[site].end(start);
+                    }
+                    if (result != null) {
+                        stackValues[sp++] = result;
+                        pc = arguments.end();
+                    } else {
+                        // a tail call: the argument's code is run in place of the call, and jumps to its end
+                        pc = arguments.start(arguments.tailIndex);
+                    }
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                default:
+                    throw new IllegalStateException("unknown instruction " + code[pc - 1] + " at " + (pc - 1));
+            }
+        }
+    }
+
+    /**
+     * Executes a LazyFunction, reporting errors raised by its arguments as they were raised.
+     *
+     * @param function the function to execute.
+     * @param arguments the unevaluated arguments.
+     * @return the result, or null if an argument is to be evaluated in place of the call.
+     * @throws EvaluationException if the function or one of the arguments it evaluates fails.
+     */
+    private static Value callLazy(LazyFunction function, LazyCall arguments) throws EvaluationException {
+        Value result;
+        try {
+            result = function.execute(arguments);
+        } catch (ArgumentException e) {
+            throw (EvaluationException) e.getCause();
+        } catch (FunctionExecutionException e) {
+            throw new EvaluationException("an error occurred executing function " + function.getName() + ":" + e.getMessage(), e);
+        }
+        if (result == null && arguments.tailIndex < 0) {
+            throw new EvaluationException("function " + function.getName() + " returned no result");
+        }
+        return result;
+    }
+
+    /**
+     * Executes a LongFunction whose arguments are on the operand stack, leaving the result in place of the first
+     * argument.
+     *
+     * @param function the function to execute.
+     * @param stackValues the Value operands.
+     * @param stackLongs the long operands.
+     * @param base the stack index of the first argument.
+     * @param numArgs the number of arguments.
+     * @throws EvaluationException if an error occurs executing the function.
+     */
+    private static void callLong(LongFunction function, Value[] stackValues, long[] stackLongs, int base, int numArgs)
+            throws EvaluationException {
+        int end = base + numArgs;
+        Value first = stackValues[base];
+        if (first != null && !first.isLong()) {
+            stackValues[base] = call(function, toValues(stackValues, stackLongs, base, numArgs, 0));
+            return;
+        }
+
+        long result = first != null ? first.longValue() : stackLongs[base];
+        int i = base + 1;
+        for (; i < end; i++) {
+            Value argument = stackValues[i];
+            if (argument != null && !argument.isLong()) {
+                break;
+            }
+            try {
+                result = function.applyLong(result, argument != null ? argument.longValue() : stackLongs[i]);
+            } catch (ArithmeticException ae) {
+                break;
+            }
+        }
+
+        if (i == end) {
+            try {
+                stackLongs[base] = function.completeLong(result);
+                stackValues[base] = null;
+                return;
+            } catch (ArithmeticException ae) {
+                // fall through to execute with Values
+            }
+        }
+
+        Value[] arguments = toValues(stackValues, stackLongs, base, numArgs, i - base);
+        try {
+            stackValues[base] = function.execute(result, arguments, i - base);
+        } catch (FunctionExecutionException e) {
+            throw new EvaluationException("an error occurred executing function " + function.getName() + ":" + e.getMessage(), e);
+        }
+    }
+
+    private static void trace(ValueFunction function, Value[] arguments) {
+        if (TraceLog.log.isDebugEnabled()) {
+            TraceLog.log.debug("executing function {} with evaluated arguments {}", function.getName(),
+                    Arrays.asList(arguments));
+        }
+    }
+
+    private static Value call(ValueFunction function, Value[] arguments) throws EvaluationException {
+        try {
+            return function.execute(arguments);
+        } catch (FunctionExecutionException e) {
+            throw new EvaluationException("an error occurred executing function " + function.getName() + ":" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies operands from the stack into an array of Values, converting any longs.
+     *
+     * @param stackValues the Value operands.
+     * @param stackLongs the long operands.
+     * @param base the stack index of the first argument.
+     * @param numArgs the number of arguments.
+     * @param from the index of the first argument to copy. Earlier elements of the array are left null.
+     * @return the arguments.
+     */
+    private static Value[] toValues(Value[] stackValues, long[] stackLongs, int base, int numArgs, int from) {
+        Value[] values = new Value[numArgs];
+        for (int i = from; i < numArgs; i++) {
+            Value value = stackValues[base + i];
+            values[i] = value != null ? value : Value.of(stackLongs[base + i]);
+        }
+        return values;
+    }
+
+    /**
+     * The operands and variables of one execution of the program.
+     */
+    private class Frame {
+        final Value[] stackValues = new Value[maxStackSize];
+        final long[] stackLongs = new long[maxStackSize];
+        final Value[] localValues = new Value[numLocals];
+        final long[] localLongs = new long[numLocals];
+        final Value[] freeValues;
+        final long[] freeLongs;
+
+        Frame(Value[] freeValues, long[] freeLongs) {
+            this.freeValues = freeValues;
+            this.freeLongs = freeLongs;
+        }
+
+        Value value(int index) {
+            return stackValues[index] != null ? stackValues[index] : Value.of(stackLongs[index]);
+        }
+    }
+
+    /**
+     * The arguments of a call to a LazyFunction. Each argument is compiled into its own run of instructions after
+     * the call, ending with a jump past the last of them. An argument is evaluated by running its instructions, with
+     * the operand stack at the height of the call, which leaves its value where the call's result belongs.
+     */
+    private class LazyCall implements LazyArguments {
+        private final Frame frame;
+        private final int operands;
+        private final int base;
+        int tailIndex = -1;
+
+        LazyCall(Frame frame, int operands, int base) {
+            this.frame = frame;
+            this.operands = operands;
+            this.base = base;
+        }
+
+        public int size() {
+            return code[operands + 1];
+        }
+
+        int start(int index) {
+            return code[operands + 3 + index];
+        }
+
+        int end() {
+            return code[operands + 3 + size()];
+        }
+
+        public Value evaluate(int index) throws FunctionExecutionException {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("argument " + index + " of " + size());
+            }
+            // stop at the jump which ends the argument's instructions
+            int stop = (index + 1 < size() ? start(index + 1) : end()) - 2;
+            try {
+                run(frame, start(index), stop, base);
+            } catch (EvaluationException e) {
+                throw new ArgumentException(e);
+            }
+            return frame.value(base);
+        }
+
+        public Value tail(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("argument " + index + " of " + size());
+            }
+            tailIndex = index;
+            return null;
+        }
+
+        public void bind(Value value) {
+            int slot = code[operands + 2];
+            if (slot < 0) {
+                throw new IllegalStateException("function " + functions[code[operands]].getName()
+                        + " doesn't introduce a variable");
+            }
+            frame.localValues[slot] = value;
+        }
+    }
+
+    /**
+     * Carries the error raised by an argument of a LazyFunction through the function, so that it's reported as it
+     * would be if the argument had been evaluated eagerly.
+     */
+    private static class ArgumentException extends FunctionExecutionException {
+        ArgumentException(EvaluationException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Walks the tree in postfix order, emitting instructions.
+     */
+    private static class Compiler {
+        private static final int BEGIN_ARGUMENT = 0;
+        private static final int END_ARGUMENT = 1;
+        private static final int END_LAZY_CALL = 2;
+
+        // the calls shared within each region of code which is always evaluated as a whole: the expression, and each
+        // argument of a lazy call. A call shared between regions is evaluated separately in each
+        private final Deque<Map<Node, Integer>> regions = new ArrayDeque<Map<Node, Integer>>();
+        private int numSlots;
+        private int[] code = new int[64];
+        private int codeSize = 0;
+        private final List<Value> constants = new ArrayList<Value>();
+        private final List<ValueFunction> functions = new ArrayList<ValueFunction>();
+        private final List<LazyFunction> lazyFunctions = new ArrayList<LazyFunction>();
+        private final Value[] unboundValues;
+        private int stackSize = 0;
+        private int maxStackSize = 0;
+
+        /**
+         * A lazy call being compiled.
+         */
+        private static class LazySite {
+            final int header;
+            final int base;
+            final List<Integer> jumps = new ArrayList<Integer>();
+
+            LazySite(int header, int base) {
+                this.header = header;
+                this.base = base;
+            }
+        }
+
+        /**
+         * A point in the compilation of a lazy call, between its arguments.
+         */
+        private static class Mark {
+            final int kind;
+            final LazySite site;
+            final Node argument;
+            final int index;
+
+            Mark(int kind, LazySite site, Node argument, int index) {
+                this.kind = kind;
+                this.site = site;
+                this.argument = argument;
+                this.index = index;
+            }
+        }
+
+        Compiler(int numLocals, int numFreeVariables) {
+            this.numSlots = numLocals;
+            this.unboundValues = new Value[numFreeVariables];
+        }
+
+        private static boolean isLazy(Node node) {
+            return node instanceof LetNode ? !((LetNode) node).isBuiltIn()
+                    : node instanceof FunctionCallNode && ((FunctionCallNode) node).getFunction() instanceof LazyFunction;
+        }
+
+        /**
+         * Finds the calls in a region which are reached more than once, and so need a temporary slot. The arguments of
+         * lazy calls are separate regions, so aren't searched.
+         */
+        private static Map<Node, Integer> findSharedCalls(Node root) {
+            Map<Node, Integer> sharedSlots = new IdentityHashMap<Node, Integer>();
+            Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+            Deque<Node> pending = new ArrayDeque<Node>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Node node = pending.pop();
+                if (node instanceof LetNode && !isLazy(node)) {
+                    pending.push(((LetNode) node).getBody());
+                    pending.push(((LetNode) node).getValue());
+                } else if (node instanceof FunctionCallNode) {
+                    if (!seen.add(node)) {
+                        sharedSlots.put(node, null);
+                    } else if (!isLazy(node)) {
+                        for (Node argument : ((FunctionCallNode) node).getArguments()) {
+                            pending.push(argument);
+                        }
+                    }
+                }
+            }
+            return sharedSlots;
+        }
+
+        void compile(Node root) {
+            regions.push(findSharedCalls(root));
+            // the stack holds nodes still to be compiled, int[] instructions to emit once the preceding nodes have
+            // been compiled, and Marks between the arguments of lazy calls
+            Deque<Object> pending = new ArrayDeque<Object>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Object item = pending.pop();
+                if (item instanceof int[]) {
+                    int[] instruction = (int[]) item;
+                    emit(instruction[0], instruction[1]);
+                    if (instruction[0] == CALL) {
+                        emit(instruction[2]);
+                        adjustStack(1 - instruction[2]);
+                    } else if (instruction[0] == TEE_LOCAL) {
+                        // leaves the stack unchanged
+                    } else {
+                        adjustStack(-1);
+                    }
+                } else if (item instanceof Mark) {
+                    compileMark((Mark) item);
+                } else if (item instanceof LiteralNode) {
+                    constants.add(((LiteralNode) item).getValue());
+                    emit(PUSH_CONSTANT, constants.size() - 1);
+                    adjustStack(1);
+                } else if (item instanceof VariableNode) {
+                    emit(LOAD_LOCAL, ((VariableNode) item).getSlot());
+                    adjustStack(1);
+                } else if (item instanceof FreeVariableNode) {
+                    FreeVariableNode variable = (FreeVariableNode) item;
+                    unboundValues[variable.getIndex()] = variable.getUnboundValue();
+                    emit(LOAD_FREE, variable.getIndex());
+                    adjustStack(1);
+                } else if (item instanceof LetNode && !isLazy((Node) item)) {
+                    LetNode let = (LetNode) item;
+                    pending.push(let.getBody());
+                    pending.push(new int[] {STORE_LOCAL, let.getSlot()});
+                    pending.push(let.getValue());
+                } else if (item instanceof LetNode) {
+                    LetNode let = (LetNode) item;
+                    compileLazyCall(let.getFunction(), Arrays.asList(let.getValue(), let.getBody()), let.getSlot(),
+                            pending);
+                } else if (item instanceof FunctionCallNode) {
+                    FunctionCallNode call = (FunctionCallNode) item;
+                    Map<Node, Integer> sharedSlots = regions.peek();
+                    if (sharedSlots.containsKey(call)) {
+                        Integer slot = sharedSlots.get(call);
+                        if (slot != null) {
+                            // already evaluated
+                            emit(LOAD_LOCAL, slot);
+                            adjustStack(1);
+                            continue;
+                        }
+                        sharedSlots.put(call, numSlots);
+                        pending.push(new int[] {TEE_LOCAL, numSlots++});
+                    }
+                    List<Node> arguments = call.getArguments();
+                    if (isLazy(call)) {
+                        compileLazyCall((LazyFunction) call.getFunction(), arguments, -1, pending);
+                        continue;
+                    }
+                    addFunction(call.getFunction(), null);
+                    pending.push(new int[] {CALL, functions.size() - 1, arguments.size()});
+                    for (int i = arguments.size() - 1; i >= 0; i--) {
+                        pending.push(arguments.get(i));
+                    }
+                } else {
+                    throw new IllegalArgumentException("unsupported node: " + item.getClass().getName());
+                }
+            }
+        }
+
+        private void addFunction(Function function, LazyFunction lazyFunction) {
+            functions.add(StringFunctionAdapter.adapt(function));
+            lazyFunctions.add(lazyFunction);
+        }
+
+        /**
+         * Emits the header of a lazy call, and queues its arguments to be compiled after it.
+         */
+        private void compileLazyCall(LazyFunction function, List<Node> arguments, int slot, Deque<Object> pending) {
+            addFunction(function, function);
+            LazySite site = new LazySite(codeSize, stackSize);
+            emit(LAZY_CALL, functions.size() - 1, arguments.size(), slot);
+            // the start of each argument and the end of the call are filled in as they're compiled
+            emit(new int[arguments.size() + 1]);
+
+            pending.push(new Mark(END_LAZY_CALL, site, null, arguments.size()));
+            for (int i = arguments.size() - 1; i >= 0; i--) {
+                pending.push(new Mark(END_ARGUMENT, site, arguments.get(i), i));
+                pending.push(arguments.get(i));
+                pending.push(new Mark(BEGIN_ARGUMENT, site, arguments.get(i), i));
+            }
+        }
+
+        private void compileMark(Mark mark) {
+            LazySite site = mark.site;
+            switch (mark.kind) {
+                case BEGIN_ARGUMENT:
+                    code[site.header + 4 + mark.index] = codeSize;
+                    regions.push(findSharedCalls(mark.argument));
+                    // each argument is evaluated on its own, leaving its value where the call's result belongs
+                    stackSize = site.base;
+                    break;
+                case END_ARGUMENT:
+                    regions.pop();
+                    site.jumps.add(codeSize + 1);
+                    emit(JUMP, -1);
+                    break;
+                case END_LAZY_CALL:
+                    code[site.header + 4 + mark.index] = codeSize;
+                    for (int jump : site.jumps) {
+                        code[jump] = codeSize;
+                    }
+                    stackSize = site.base;
+                    adjustStack(1);
+                    break;
+                default:
+                    throw new IllegalStateException("unknown mark " + mark.kind);
+            }
+        }
+
+        private void adjustStack(int delta) {
+            stackSize += delta;
+            maxStackSize = Math.max(maxStackSize, stackSize);
+        }
+
+        private void emit(int... values) {
+            if (codeSize + values.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, codeSize + values.length));
+            }
+            for (int value : values) {
+                code[codeSize++] = value;
+            }
+        }
+    }
+
+    /**
+     * Holds the logger, which is only used when tracing, so that loading a Program doesn't initialize logging.
+     */
+    private static class TraceLog {
+        static final Logger log = LoggerFactory.getLogger(Program.class);
+    }
+}
@@ -0,0 +1,48 @@
+package com.mflintoff.calculator.expression;
+
+import java.util.Deque;
+
+/**
+ * A reference to a variable introduced by an enclosing let. The reference is resolved to the let's slot when the
+ * expression is parsed.
+ *
+ * @author Malcolm Flintoff
+ */
+public class VariableNode extends Node {
+
+    private final String name;
+    private final int slot;
+
+    /**
+     * Constructs a VariableNode.
+     *
+     * @param name the name of the variable.
+     * @param slot the slot of the let which introduces the variable.
+     */
+    public VariableNode(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+
+    /**
+     * Returns the name of the variable.
+     *
+     * @return the variable name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the slot of the let which introduces the variable.
+     *
+     * @return the slot.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    protected void format(StringBuilder builder, Deque<Object> pending) {
+        builder.append(name);
+    }
+}
@@ -0,0 +1,45 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>A {@link ValueFunction} whose arguments can be combined one at a time as they're evaluated, rather than all at
+ * once, so that a call with any number of arguments can be evaluated in constant memory, eg. when an expression is
+ * evaluated as it's read. Implementing this interface is a promise that the result of an {@link Accumulator} given
+ * the arguments in order is the same as {@link #execute(Value[])}, and fails in the same way.</p>
+ *
+ * <p>The built-in arithmetic functions implement this interface. A subclass of one which changes how arguments are
+ * combined must also override {@link #newAccumulator()}.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface AccumulatingFunction extends ValueFunction {
+
+    /**
+     * Returns a new accumulator for a single call.
+     *
+     * @return the accumulator.
+     */
+    public Accumulator newAccumulator();
+
+    /**
+     * Combines the arguments of a single call as they're added. An accumulator is not thread safe.
+     */
+    public interface Accumulator {
+
+        /**
+         * Combines the next argument into the result.
+         *
+         * @param argument the argument.
+         * @throws FunctionExecutionException if the argument is not valid, or the operation fails. The accumulator
+         *                                    can't be used after this.
+         */
+        public void add(Value argument) throws FunctionExecutionException;
+
+        /**
+         * Returns the result of combining the arguments added so far.
+         *
+         * @return the calculated value.
+         * @throws FunctionExecutionException if completing the result fails.
+         */
+        public Value result() throws FunctionExecutionException;
+    }
+}
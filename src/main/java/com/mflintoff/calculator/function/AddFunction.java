@@ -1,40 +1,52 @@
 package com.mflintoff.calculator.function;
 
 import java.math.BigDecimal;
-import java.util.List;
 
 /**
  * Function that adds a series of numbers.
  *
  * @author Malcolm Flintoff.
  */
-public class AddFunction implements Function {
+public class AddFunction extends ArithmeticFunction implements AccumulatingFunction {
+
+    /**
+     * Constructs the function using {@link NumericMode#DEFAULT}.
+     */
+    public AddFunction() {
+    }
+
+    /**
+     * Constructs the function using a numeric mode.
+     *
+     * @param numericMode how numbers which aren't longs are combined.
+     */
+    public AddFunction(NumericMode numericMode) {
+        super(numericMode);
+    }
+
+    public AddFunction withNumericMode(NumericMode numericMode) {
+        return numericMode.equals(getNumericMode()) ? this : new AddFunction(numericMode);
+    }
 
     public String getName() {
         return "add";
     }
 
-    public String execute(List<String> arguments) throws FunctionExecutionException{
-        BigDecimal sum = new BigDecimal(0);
-        for (String argument : arguments) {
-            BigDecimal number;
-            try {
-                number = new BigDecimal(argument);
-            } catch (NumberFormatException nfe) {
-                throw new FunctionExecutionException("argument is not a valid number:  " + argument);
-            }
-            sum = sum.add(number);
-        }
-        return sum.toString();
+    public long applyLong(long result, long argument) {
+        return Math.addExact(result, argument);
     }
 
-    public int getMinNumberOfArgsSupported() {
-        return 2;
+    protected BigDecimal initialDecimal(BigDecimal first) {
+        // the sum starts from 0, which gives it a scale of at least 0 - eg. the sum of 1E+2 and 1E+2 is 200, not 2E+2
+        return new BigDecimal(0).add(first);
     }
 
-    public int getMaxNumberOfArgsSupported() {
-        return Integer.MAX_VALUE;
+    protected BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) {
+        return result.add(argument);
     }
 
+    protected double applyDouble(double result, double argument) {
+        return result + argument;
+    }
 
 }
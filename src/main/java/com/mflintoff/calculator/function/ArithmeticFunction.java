@@ -0,0 +1,270 @@
+package com.mflintoff.calculator.function;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * <p>Base class for functions which fold a series of numbers together, eg. add. Integer arguments are combined as
+ * primitive longs for as long as the result is exact; from the first argument which isn't a long, or the first
+ * operation which would overflow or lose precision, the remaining arguments are combined as {@link BigDecimal}s.
+ * The result is the same as if every argument had been combined as a BigDecimal.</p>
+ *
+ * <p>How numbers other than longs are combined depends on the function's {@link NumericMode}: as BigDecimals, rounded
+ * to the mode's scale or precision, or in {@link NumericMode#DOUBLE} as doubles, in which case the result is the same
+ * as if every argument after the longs had been combined as a double.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public abstract class ArithmeticFunction implements LongFunction, PureFunction {
+
+    private final NumericMode numericMode;
+
+    /**
+     * Constructs a function using {@link NumericMode#DEFAULT}.
+     */
+    protected ArithmeticFunction() {
+        this(NumericMode.DEFAULT);
+    }
+
+    /**
+     * Constructs a function using a numeric mode.
+     *
+     * @param numericMode how numbers which aren't longs are combined.
+     */
+    protected ArithmeticFunction(NumericMode numericMode) {
+        if (numericMode == null) {
+            throw new IllegalArgumentException("numeric mode must not be null");
+        }
+        this.numericMode = numericMode;
+    }
+
+    /**
+     * Returns how numbers which aren't longs are combined.
+     *
+     * @return the numeric mode.
+     */
+    public NumericMode getNumericMode() {
+        return numericMode;
+    }
+
+    /**
+     * Returns an equivalent function using another numeric mode. The default implementation returns this function,
+     * so a subclass which doesn't override it always uses its own mode.
+     *
+     * @param numericMode the numeric mode.
+     * @return the function.
+     */
+    public ArithmeticFunction withNumericMode(NumericMode numericMode) {
+        return this;
+    }
+
+    public String execute(List<String> arguments) throws FunctionExecutionException {
+        return execute(Value.parseAll(arguments)).toString();
+    }
+
+    public Value execute(Value[] arguments) throws FunctionExecutionException {
+        if (!arguments[0].isLong()) {
+            if (numericMode.isDouble()) {
+                return executeDouble(arguments[0].toDouble(), arguments, 1);
+            }
+            return executeDecimal(initialDecimal(arguments[0].toBigDecimal()), arguments, 1);
+        }
+
+        long result = arguments[0].longValue();
+        int index = 1;
+        while (index < arguments.length && arguments[index].isLong()) {
+            try {
+                result = applyLong(result, arguments[index].longValue());
+            } catch (ArithmeticException ae) {
+                break;
+            }
+            index++;
+        }
+        return execute(result, arguments, index);
+    }
+
+    public Value execute(long result, Value[] arguments, int index) throws FunctionExecutionException {
+        if (index == arguments.length) {
+            try {
+                return Value.of(completeLong(result));
+            } catch (ArithmeticException ae) {
+                // fall through to BigDecimal or double
+            }
+        }
+        if (numericMode.isDouble()) {
+            return executeDouble(result, arguments, index);
+        }
+        return executeDecimal(BigDecimal.valueOf(result), arguments, index);
+    }
+
+    /**
+     * Combines the remaining arguments into the result as BigDecimals.
+     *
+     * @param result the result of combining the arguments before index.
+     * @param arguments the arguments.
+     * @param index the index of the first argument to combine.
+     * @return the calculated value.
+     * @throws FunctionExecutionException if an argument is not a valid number, or an operation fails.
+     */
+    private Value executeDecimal(BigDecimal result, Value[] arguments, int index) throws FunctionExecutionException {
+        for (int i = index; i < arguments.length; i++) {
+            result = applyDecimal(result, arguments[i].toBigDecimal());
+        }
+        return Value.of(completeDecimal(numericMode.round(result)));
+    }
+
+    /**
+     * Combines the remaining arguments into the result as doubles.
+     *
+     * @param result the result of combining the arguments before index.
+     * @param arguments the arguments.
+     * @param index the index of the first argument to combine.
+     * @return the calculated value.
+     * @throws FunctionExecutionException if an argument is not a valid number.
+     */
+    private Value executeDouble(double result, Value[] arguments, int index) throws FunctionExecutionException {
+        for (int i = index; i < arguments.length; i++) {
+            result = applyDouble(result, arguments[i].toDouble());
+        }
+        return Value.of(result);
+    }
+
+    /**
+     * Returns an accumulator which combines arguments as they're added, rather than all at once, with the same result
+     * as {@link #execute(Value[])} unless a subclass overrides it or {@link #execute(long, Value[], int)}. A subclass
+     * which doesn't can be evaluated as its arguments are read by implementing {@link AccumulatingFunction}, as the
+     * built-in functions do.
+     *
+     * @return a new accumulator.
+     */
+    public AccumulatingFunction.Accumulator newAccumulator() {
+        return new ArithmeticAccumulator();
+    }
+
+    /**
+     * Combines the arguments of a call one at a time, in the same way as {@link #execute(Value[])}: as longs for as
+     * long as the result is exact, and then as BigDecimals or doubles.
+     */
+    private class ArithmeticAccumulator implements AccumulatingFunction.Accumulator {
+        private int numArgs = 0;
+        private boolean isLong;
+        private long longResult;
+        private BigDecimal decimalResult;
+        private double doubleResult;
+
+        public void add(Value argument) throws FunctionExecutionException {
+            if (numArgs++ == 0) {
+                isLong = argument.isLong();
+                if (isLong) {
+                    longResult = argument.longValue();
+                } else if (numericMode.isDouble()) {
+                    doubleResult = argument.toDouble();
+                } else {
+                    decimalResult = initialDecimal(argument.toBigDecimal());
+                }
+                return;
+            }
+
+            if (isLong) {
+                if (argument.isLong()) {
+                    try {
+                        longResult = applyLong(longResult, argument.longValue());
+                        return;
+                    } catch (ArithmeticException ae) {
+                        // fall through to BigDecimal or double
+                    }
+                }
+                leaveLongs();
+            }
+            if (numericMode.isDouble()) {
+                doubleResult = applyDouble(doubleResult, argument.toDouble());
+            } else {
+                decimalResult = applyDecimal(decimalResult, argument.toBigDecimal());
+            }
+        }
+
+        public Value result() throws FunctionExecutionException {
+            if (numArgs == 0) {
+                throw new IllegalStateException("no arguments have been added");
+            }
+            if (isLong) {
+                try {
+                    return Value.of(completeLong(longResult));
+                } catch (ArithmeticException ae) {
+                    // fall through to BigDecimal or double
+                }
+                leaveLongs();
+            }
+            if (numericMode.isDouble()) {
+                return Value.of(doubleResult);
+            }
+            return Value.of(completeDecimal(numericMode.round(decimalResult)));
+        }
+
+        private void leaveLongs() {
+            isLong = false;
+            if (numericMode.isDouble()) {
+                doubleResult = longResult;
+            } else {
+                decimalResult = BigDecimal.valueOf(longResult);
+            }
+        }
+    }
+
+    /**
+     * Returns the starting result when the first argument is not a long.
+     *
+     * @param first the first argument.
+     * @return the starting result.
+     */
+    protected BigDecimal initialDecimal(BigDecimal first) {
+        return first;
+    }
+
+    /**
+     * Combines the result so far with the next argument.
+     *
+     * @param result the result of combining the previous arguments.
+     * @param argument the next argument.
+     * @return the new result.
+     * @throws FunctionExecutionException if the operation fails.
+     */
+    protected abstract BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) throws FunctionExecutionException;
+
+    /**
+     * Combines the result so far with the next argument in {@link NumericMode#DOUBLE}. The default implementation
+     * combines them with {@link #applyDecimal(BigDecimal, BigDecimal)}, so subclasses should override it with the
+     * equivalent operation on doubles.
+     *
+     * @param result the result of combining the previous arguments.
+     * @param argument the next argument.
+     * @return the new result.
+     * @throws FunctionExecutionException if the operation fails.
+     */
+    protected double applyDouble(double result, double argument) throws FunctionExecutionException {
+        return applyDecimal(Value.of(result).toBigDecimal(), Value.of(argument).toBigDecimal()).doubleValue();
+    }
+
+    /**
+     * Returns the final result once all arguments have been combined, after it has been rounded to the precision of
+     * the numeric mode.
+     *
+     * @param result the result of combining all of the arguments.
+     * @return the final result.
+     */
+    protected BigDecimal completeDecimal(BigDecimal result) {
+        return result;
+    }
+
+    public long completeLong(long result) {
+        return numericMode.checkLong(result);
+    }
+
+    public int getMinNumberOfArgsSupported() {
+        return 2;
+    }
+
+    public int getMaxNumberOfArgsSupported() {
+        return Integer.MAX_VALUE;
+    }
+}
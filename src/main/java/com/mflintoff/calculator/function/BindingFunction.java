@@ -0,0 +1,13 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>A {@link LazyFunction} which introduces a variable, such as let. Its first argument is the name of the variable
+ * rather than an expression, and isn't passed to {@link #execute(LazyArguments)}. The variable is bound with
+ * {@link LazyArguments#bind(Value)}, and is in scope in the third argument, which is the second of the
+ * {@link LazyArguments}. A binding function therefore always has three arguments.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface BindingFunction extends LazyFunction {
+
+}
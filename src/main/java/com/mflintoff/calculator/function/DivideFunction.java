@@ -1,48 +1,72 @@
 package com.mflintoff.calculator.function;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.List;
 
 /**
- * Function that divides a series of numbers.
+ * Function that divides a series of numbers. Each quotient is rounded to the scale or precision of the function's
+ * {@link NumericMode}, which by default is 8 decimal places, and trailing zeros are stripped from the result. In
+ * {@link NumericMode#DOUBLE}, division which isn't exact is done with doubles, so division by zero is infinite.
  *
  * @autho Malcolm Flintoff.
  */
-public class DivideFunction implements Function {
+public class DivideFunction extends ArithmeticFunction implements AccumulatingFunction {
+
+    /**
+     * Constructs the function using {@link NumericMode#DEFAULT}.
+     */
+    public DivideFunction() {
+    }
+
+    /**
+     * Constructs the function using a numeric mode.
+     *
+     * @param numericMode how quotients which aren't longs are calculated.
+     */
+    public DivideFunction(NumericMode numericMode) {
+        super(numericMode);
+    }
+
+    public DivideFunction withNumericMode(NumericMode numericMode) {
+        return numericMode.equals(getNumericMode()) ? this : new DivideFunction(numericMode);
+    }
 
     public String getName() {
         return "div";
     }
 
-    public String execute(List<String> arguments) throws FunctionExecutionException {
-        BigDecimal result = null;
-
-        for (String argument : arguments) {
-            BigDecimal number;
-            try {
-                number = new BigDecimal(argument);
-            } catch (NumberFormatException nfe) {
-                throw new FunctionExecutionException("argument is not a valid number:  " + argument);
-            }
-            try {
-                // we use 8 decimal point scale/precision - we need to define a scale here, otherwise we get
-                // ArithmeticException when there is a non-terminating decimal (eg. 10 / 3)
-                result = result == null ? number : result.divide(number, 8, RoundingMode.HALF_UP);
-            } catch (ArithmeticException ae) {
-                throw new FunctionExecutionException("error occurred during division: " + ae.getMessage(), ae);
-            }
+    public long applyLong(long result, long argument) {
+        // only exact divisions stay as longs. Division by zero is left to BigDecimal, so that the error is the same
+        if (argument == 0 || result % argument != 0 || (result == Long.MIN_VALUE && argument == -1)) {
+            throw InexactResultException.INSTANCE;
         }
-        return result.stripTrailingZeros().toString();
+        // like any other quotient, it's rounded to the precision, so one with more digits must be divided as a decimal
+        return getNumericMode().checkLong(result / argument);
     }
 
-    public int getMinNumberOfArgsSupported() {
-        return 2;
+    public long completeLong(long result) {
+        // decimal results have trailing zeros stripped, so eg. 100 becomes 1E+2, which can't be represented as a long
+        if (result != 0 && result % 10 == 0 && !getNumericMode().isDouble()) {
+            throw InexactResultException.INSTANCE;
+        }
+        return super.completeLong(result);
     }
 
-    public int getMaxNumberOfArgsSupported() {
-        return Integer.MAX_VALUE;
+    protected BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) throws FunctionExecutionException {
+        try {
+            // the quotient needs a scale or precision, otherwise we get ArithmeticException when there is a
+            // non-terminating decimal (eg. 10 / 3)
+            return getNumericMode().divide(result, argument);
+        } catch (ArithmeticException ae) {
+            throw new FunctionExecutionException("error occurred during division: " + ae.getMessage(), ae);
+        }
     }
 
+    protected BigDecimal completeDecimal(BigDecimal result) {
+        return result.stripTrailingZeros();
+    }
+
+    protected double applyDouble(double result, double argument) {
+        return result / argument;
+    }
 
 }
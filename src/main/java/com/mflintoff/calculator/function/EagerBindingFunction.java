@@ -0,0 +1,13 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>A {@link BindingFunction} which always binds its variable to the value of its second argument, and evaluates to
+ * its third, as let does. Its arguments can therefore be evaluated in order before it's called, eg. when an
+ * expression is evaluated as it's read, rather than being kept unevaluated for {@link #execute(LazyArguments)}.
+ * Implementing this interface is a promise that doing so gives the same result.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface EagerBindingFunction extends BindingFunction {
+
+}
@@ -0,0 +1,24 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * Thrown by {@link LongFunction#applyLong(long, long)} when a result can't be represented exactly as a long, eg. when
+ * a division leaves a remainder. This happens often enough that creating an exception each time would be expensive,
+ * so a single instance without a stack trace is shared.
+ *
+ * @author Malcolm Flintoff
+ */
+public class InexactResultException extends ArithmeticException {
+
+    /**
+     * The shared instance.
+     */
+    public static final InexactResultException INSTANCE = new InexactResultException();
+
+    private InexactResultException() {
+        super("result can't be represented exactly as a long");
+    }
+
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+}
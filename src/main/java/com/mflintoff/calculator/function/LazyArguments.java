@@ -0,0 +1,50 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>The unevaluated arguments of a call to a {@link LazyFunction}. Each argument is evaluated only when, and as often
+ * as, the function asks for it, so an argument which isn't needed costs nothing and any error it would raise isn't
+ * raised.</p>
+ *
+ * <p>The arguments are only valid during the call they were passed to.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface LazyArguments {
+
+    /**
+     * Returns the number of arguments.
+     *
+     * @return the number of arguments.
+     */
+    public int size();
+
+    /**
+     * Evaluates an argument. The argument is evaluated again each time this is called, so a function which needs a
+     * value more than once should keep it.
+     *
+     * @param index the index of the argument.
+     * @return the value of the argument.
+     * @throws FunctionExecutionException if evaluating the argument fails. The function should let the exception
+     *                                    propagate, so that the original error is reported.
+     */
+    public Value evaluate(int index) throws FunctionExecutionException;
+
+    /**
+     * Makes an argument the result of the call, evaluating it after the function has returned. Unlike
+     * {@link #evaluate(int)}, this doesn't use any Java stack, so calls nested in the argument can be nested as deeply
+     * as the expression allows. The function must return the value of this method.
+     *
+     * @param index the index of the argument.
+     * @return null, which tells the evaluator to evaluate the argument in place of the call.
+     */
+    public Value tail(int index);
+
+    /**
+     * Binds the variable introduced by a {@link BindingFunction}, for the arguments evaluated afterwards.
+     *
+     * @param value the value of the variable.
+     * @throws IllegalStateException if the function doesn't introduce a variable.
+     */
+    public void bind(Value value);
+
+}
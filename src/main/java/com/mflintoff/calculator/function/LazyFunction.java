@@ -0,0 +1,27 @@
+package com.mflintoff.calculator.function;
+
+import java.util.List;
+
+/**
+ * <p>A function which receives its arguments unevaluated, and evaluates only those it needs, eg. a conditional which
+ * evaluates one branch, or a guarded division which only evaluates its fallback when the divisor is zero. The
+ * evaluator calls {@link #execute(LazyArguments)}.</p>
+ *
+ * <p>{@link #execute(List)} is still used where the arguments are already known, eg. when folding a call whose
+ * arguments are all constants, so it must return the same result as the lazy form given the same arguments.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface LazyFunction extends Function {
+
+    /**
+     * Execute the function, evaluating arguments as needed. Returning {@link LazyArguments#tail(int)} makes an
+     * argument the result of the call, which is cheaper than evaluating it and returning its value.
+     *
+     * @param arguments the unevaluated arguments.
+     * @return the calculated value, or the value of {@link LazyArguments#tail(int)}.
+     * @throws FunctionExecutionException if the function fails, or an argument it evaluates fails.
+     */
+    public Value execute(LazyArguments arguments) throws FunctionExecutionException;
+
+}
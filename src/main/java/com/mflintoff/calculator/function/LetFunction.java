@@ -8,9 +8,12 @@ import java.util.List;
  * As with arithmetic functions, the value expression and the expression where the variable is used may be an arbitrary
  * expression. 
  *
+ * <p>The value is evaluated and bound to the variable, and the expression where it's used is then evaluated in place of
+ * the let. The evaluator compiles this function inline, without creating {@link LazyArguments}.</p>
+ *
  * @author Malcolm Flintoff.
  */
-public class LetFunction implements Function {
+public class LetFunction implements ValueFunction, PureFunction, EagerBindingFunction {
 
     public String getName() {
         return "let";
@@ -20,6 +23,15 @@ public class LetFunction implements Function {
         return arguments.get(2);
     }
 
+    public Value execute(Value[] arguments) {
+        return arguments[2];
+    }
+
+    public Value execute(LazyArguments arguments) throws FunctionExecutionException {
+        arguments.bind(arguments.evaluate(0));
+        return arguments.tail(1);
+    }
+
     public int getMinNumberOfArgsSupported() {
         return 3;
     }
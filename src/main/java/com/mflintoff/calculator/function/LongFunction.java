@@ -0,0 +1,47 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>A function which folds its arguments together one at a time, and can do so using primitive longs. This allows
+ * integer expressions to be evaluated without allocating any objects: the evaluator combines the arguments with
+ * {@link #applyLong(long, long)}, and only falls back to {@link #execute(long, Value[], int)} if an argument isn't a
+ * long or an operation can't be performed exactly.</p>
+ *
+ * <p>Whichever way the function is executed, the result must be the same as {@link #execute(Value[])}.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface LongFunction extends ValueFunction {
+
+    /**
+     * Combines the result so far with the next argument.
+     *
+     * @param result the result of combining the previous arguments, or the first argument.
+     * @param argument the next argument.
+     * @return the new result.
+     * @throws ArithmeticException if the result can't be represented exactly as a long, eg. on overflow. For
+     *                             conditions which are expected to occur often, implementations should throw
+     *                             {@link InexactResultException#INSTANCE} rather than create an exception.
+     */
+    public long applyLong(long result, long argument) throws ArithmeticException;
+
+    /**
+     * Returns the final result once all arguments have been combined.
+     *
+     * @param result the result of combining all of the arguments.
+     * @return the final result.
+     * @throws ArithmeticException if {@link #execute(Value[])} would not return the result as a long.
+     */
+    public long completeLong(long result) throws ArithmeticException;
+
+    /**
+     * Executes the function where the arguments before index have already been combined by
+     * {@link #applyLong(long, long)}, but the argument at index could not be.
+     *
+     * @param result the result of combining the arguments before index.
+     * @param arguments the arguments. Only those from index onwards are used.
+     * @param index the index of the first argument which hasn't been combined into the result.
+     * @return the calculated value.
+     */
+    public Value execute(long result, Value[] arguments, int index) throws FunctionExecutionException;
+
+}
@@ -1,38 +1,47 @@
 package com.mflintoff.calculator.function;
 
 import java.math.BigDecimal;
-import java.util.List;
 
 /**
  * A function which multiplies a series of numbers.
  *
  * @author Malcolm Flintoff.
  */
-public class MultiplyFunction implements Function {
+public class MultiplyFunction extends ArithmeticFunction implements AccumulatingFunction {
+
+    /**
+     * Constructs the function using {@link NumericMode#DEFAULT}.
+     */
+    public MultiplyFunction() {
+    }
+
+    /**
+     * Constructs the function using a numeric mode.
+     *
+     * @param numericMode how numbers which aren't longs are combined.
+     */
+    public MultiplyFunction(NumericMode numericMode) {
+        super(numericMode);
+    }
+
+    public MultiplyFunction withNumericMode(NumericMode numericMode) {
+        return numericMode.equals(getNumericMode()) ? this : new MultiplyFunction(numericMode);
+    }
 
     public String getName() {
         return "mult";
     }
 
-    public String execute(List<String> arguments) throws FunctionExecutionException {
-        BigDecimal result = null;
-        for (String argument : arguments) {
-            BigDecimal number;
-            try {
-                number = new BigDecimal(argument);
-            } catch (NumberFormatException nfe) {
-                throw new FunctionExecutionException("argument is not a valid number:  " + argument);
-            }
-            result = result == null ? number : result.multiply(number);
-        }
-        return result.toString();
+    public long applyLong(long result, long argument) {
+        return Math.multiplyExact(result, argument);
     }
 
-    public int getMinNumberOfArgsSupported() {
-        return 2;
+    protected BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) {
+        return result.multiply(argument);
     }
 
-    public int getMaxNumberOfArgsSupported() {
-        return Integer.MAX_VALUE;
+    protected double applyDouble(double result, double argument) {
+        return result * argument;
     }
+
 }
@@ -0,0 +1,253 @@
+package com.mflintoff.calculator.function;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * <p>The numeric semantics of the arithmetic functions. In every mode, integers are combined as longs for as long as
+ * the results are exact, so integer results only differ between modes when they overflow a long, or have more digits
+ * than a precision. The modes differ in how other numbers are calculated:</p>
+ *
+ * <ul>
+ *     <li>{@link #scale(int, RoundingMode)} - sums, differences and products are exact {@link BigDecimal}s, and
+ *     quotients are rounded to a number of decimal places. {@link #DEFAULT} divides to 8 places, rounding half up.</li>
+ *     <li>{@link #precision(MathContext)} - sums, differences and products are exact until the function returns, when
+ *     the result is rounded to the context. Each quotient is rounded to the context as it's calculated.</li>
+ *     <li>{@link #DOUBLE} - numbers which aren't longs are IEEE 754 doubles, eg. the sum of 0.1 and 0.2 is
+ *     0.30000000000000004, and division by zero is infinite. This is much faster, but results are approximate.</li>
+ * </ul>
+ *
+ * <p>A NumericMode is immutable. Its string form can be parsed by {@link #parse(String)}.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public final class NumericMode {
+
+    /**
+     * The mode used unless another is chosen, in which quotients are rounded half up to 8 decimal places.
+     */
+    public static final NumericMode DEFAULT = scale(8, RoundingMode.HALF_UP);
+
+    /**
+     * The mode in which numbers which aren't longs are doubles.
+     */
+    public static final NumericMode DOUBLE = new NumericMode(null, 0, null);
+
+    private static final String DOUBLE_NAME = "double";
+    private static final String SCALE_PREFIX = "scale=";
+    private static final String PRECISION_PREFIX = "precision=";
+
+    // a long holds every integer of up to 18 digits, and a precision of more digits never rounds a long
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private final MathContext mathContext;
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private final long maxLong;
+
+    private NumericMode(MathContext mathContext, int scale, RoundingMode roundingMode) {
+        this.mathContext = mathContext;
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        int digits = mathContext != null ? mathContext.getPrecision() : 0;
+        this.maxLong = digits > 0 && digits <= MAX_LONG_DIGITS ? pow10(digits) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns a mode of exact decimal arithmetic, in which quotients are rounded to a number of decimal places.
+     *
+     * @param scale the number of decimal places of quotients.
+     * @param roundingMode how quotients are rounded.
+     * @return the mode.
+     */
+    public static NumericMode scale(int scale, RoundingMode roundingMode) {
+        if (roundingMode == null) {
+            throw new IllegalArgumentException("rounding mode must not be null");
+        }
+        return new NumericMode(null, scale, roundingMode);
+    }
+
+    /**
+     * Returns a mode of decimal arithmetic in which results are rounded to a number of significant digits. With a
+     * precision of 0, eg. {@link MathContext#UNLIMITED}, every result is exact, and division which doesn't terminate
+     * fails.
+     *
+     * @param mathContext the precision and rounding mode of results.
+     * @return the mode.
+     */
+    public static NumericMode precision(MathContext mathContext) {
+        if (mathContext == null) {
+            throw new IllegalArgumentException("math context must not be null");
+        }
+        return new NumericMode(mathContext, 0, mathContext.getRoundingMode());
+    }
+
+    /**
+     * Parses a mode from its string form: "double", "scale=&lt;places&gt;" or "precision=&lt;digits&gt;", optionally
+     * followed by a comma and the name of a {@link RoundingMode}. The default rounding mode is HALF_UP for a scale,
+     * and HALF_EVEN for a precision, as for a {@link MathContext}.
+     *
+     * @param text the text to parse, eg. "scale=2,HALF_EVEN".
+     * @return the mode.
+     * @throws IllegalArgumentException if the text is not a valid mode.
+     */
+    public static NumericMode parse(String text) {
+        String trimmed = text.trim();
+        if (trimmed.equalsIgnoreCase(DOUBLE_NAME)) {
+            return DOUBLE;
+        }
+
+        int comma = trimmed.indexOf(',');
+        String amount = comma >= 0 ? trimmed.substring(0, comma).trim() : trimmed;
+        String rounding = comma >= 0 ? trimmed.substring(comma + 1).trim().toUpperCase() : null;
+        try {
+            if (amount.regionMatches(true, 0, SCALE_PREFIX, 0, SCALE_PREFIX.length())) {
+                return scale(Integer.parseInt(amount.substring(SCALE_PREFIX.length()).trim()),
+                        rounding != null ? RoundingMode.valueOf(rounding) : RoundingMode.HALF_UP);
+            } else if (amount.regionMatches(true, 0, PRECISION_PREFIX, 0, PRECISION_PREFIX.length())) {
+                return precision(new MathContext(Integer.parseInt(amount.substring(PRECISION_PREFIX.length()).trim()),
+                        rounding != null ? RoundingMode.valueOf(rounding) : RoundingMode.HALF_EVEN));
+            }
+        } catch (IllegalArgumentException iae) {
+            // NumberFormatException, an unknown rounding mode or a negative precision
+            throw new IllegalArgumentException("invalid numeric mode: " + text, iae);
+        }
+        throw new IllegalArgumentException("invalid numeric mode: " + text);
+    }
+
+    /**
+     * Returns whether numbers which aren't longs are doubles.
+     *
+     * @return true if this is {@link #DOUBLE}.
+     */
+    public boolean isDouble() {
+        return mathContext == null && roundingMode == null;
+    }
+
+    /**
+     * Returns the context results are rounded to.
+     *
+     * @return the context, or null if results aren't rounded to a precision.
+     */
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+
+    /**
+     * Returns the number of decimal places of quotients. Only used if there's no {@link #getMathContext()} and the mode
+     * isn't {@link #isDouble()}.
+     *
+     * @return the scale.
+     */
+    public int getScale() {
+        return scale;
+    }
+
+    /**
+     * Returns how decimal results are rounded.
+     *
+     * @return the rounding mode, or null for {@link #DOUBLE}.
+     */
+    public RoundingMode getRoundingMode() {
+        return roundingMode;
+    }
+
+    /**
+     * Returns whether every integer result which fits in a long is left as is. Otherwise, results with more digits than
+     * the precision are rounded.
+     *
+     * @return true if long results are never rounded.
+     */
+    public boolean isExactForLongs() {
+        return maxLong == Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns whether sums and products are exact, so that a series of numbers may be added or multiplied in any
+     * grouping with the same result. Doubles and results rounded to a precision depend on the grouping.
+     *
+     * @return true if sums and products are exact.
+     */
+    public boolean isAssociative() {
+        return !isDouble() && (mathContext == null || mathContext.getPrecision() == 0);
+    }
+
+    /**
+     * Checks that an integer result would not be rounded.
+     *
+     * @param result the result.
+     * @return the result.
+     * @throws ArithmeticException if the result has more digits than the precision.
+     */
+    long checkLong(long result) {
+        if (result > maxLong || result < -maxLong) {
+            throw InexactResultException.INSTANCE;
+        }
+        return result;
+    }
+
+    /**
+     * Rounds the result of a function to the precision, if there is one.
+     *
+     * @param result the result.
+     * @return the rounded result.
+     */
+    BigDecimal round(BigDecimal result) {
+        return mathContext != null ? result.round(mathContext) : result;
+    }
+
+    /**
+     * Divides one number by another, rounding the quotient to the scale or precision.
+     *
+     * @param dividend the number to divide.
+     * @param divisor the number to divide by.
+     * @return the quotient.
+     * @throws ArithmeticException if the divisor is zero, or the precision is unlimited and the quotient doesn't
+     *                             terminate.
+     */
+    BigDecimal divide(BigDecimal dividend, BigDecimal divisor) {
+        if (mathContext != null) {
+            return dividend.divide(divisor, mathContext);
+        }
+        return dividend.divide(divisor, scale, roundingMode);
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof NumericMode)) {
+            return false;
+        }
+        NumericMode other = (NumericMode) o;
+        return scale == other.scale && roundingMode == other.roundingMode
+                && (mathContext == null ? other.mathContext == null : mathContext.equals(other.mathContext));
+    }
+
+    public int hashCode() {
+        return 31 * (31 * (mathContext != null ? mathContext.hashCode() : 0) + scale)
+                + (roundingMode != null ? roundingMode.hashCode() : 0);
+    }
+
+    /**
+     * Returns the string form of the mode, as accepted by {@link #parse(String)}.
+     *
+     * @return the mode as a string, eg. "scale=8,HALF_UP".
+     */
+    public String toString() {
+        if (isDouble()) {
+            return DOUBLE_NAME;
+        } else if (mathContext != null) {
+            return PRECISION_PREFIX + mathContext.getPrecision() + "," + roundingMode;
+        }
+        return SCALE_PREFIX + scale + "," + roundingMode;
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
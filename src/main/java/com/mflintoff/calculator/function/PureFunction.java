@@ -0,0 +1,12 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * Marks a function whose result depends only on its arguments, and which has no side effects. Calls to a pure
+ * function may be evaluated once when the expression is compiled if all of their arguments are constants, and
+ * identical calls within an expression may share a single evaluation.
+ *
+ * @author Malcolm Flintoff
+ */
+public interface PureFunction extends Function {
+
+}
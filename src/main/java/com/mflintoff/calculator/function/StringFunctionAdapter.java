@@ -0,0 +1,67 @@
+package com.mflintoff.calculator.function;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Adapts a {@link Function} which only supports string arguments to a {@link ValueFunction}, by converting the
+ * arguments to strings and parsing the result.
+ *
+ * @author Malcolm Flintoff
+ */
+public class StringFunctionAdapter implements ValueFunction {
+
+    private final Function function;
+
+    /**
+     * Constructs a StringFunctionAdapter.
+     *
+     * @param function the function to adapt.
+     */
+    public StringFunctionAdapter(Function function) {
+        this.function = function;
+    }
+
+    /**
+     * Returns the given function as a ValueFunction, adapting it only if necessary.
+     *
+     * @param function the function.
+     * @return the function as a ValueFunction.
+     */
+    public static ValueFunction adapt(Function function) {
+        return function instanceof ValueFunction ? (ValueFunction) function : new StringFunctionAdapter(function);
+    }
+
+    /**
+     * Returns the adapted function.
+     *
+     * @return the adapted function.
+     */
+    public Function getFunction() {
+        return function;
+    }
+
+    public String getName() {
+        return function.getName();
+    }
+
+    public Value execute(Value[] arguments) throws FunctionExecutionException {
+        List<String> stringArguments = new ArrayList<String>(arguments.length);
+        for (Value argument : arguments) {
+            stringArguments.add(argument.toString());
+        }
+        return Value.parse(function.execute(stringArguments));
+    }
+
+    public String execute(List<String> arguments) throws FunctionExecutionException {
+        return function.execute(arguments);
+    }
+
+    public int getMinNumberOfArgsSupported() {
+        return function.getMinNumberOfArgsSupported();
+    }
+
+    public int getMaxNumberOfArgsSupported() {
+        return function.getMaxNumberOfArgsSupported();
+    }
+}
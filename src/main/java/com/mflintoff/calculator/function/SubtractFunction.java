@@ -1,40 +1,47 @@
 package com.mflintoff.calculator.function;
 
 import java.math.BigDecimal;
-import java.util.List;
 
 /**
  * A function that subtracts a series of numbers.
  *
  * @author Malcolm Flintoff.
  */
-public class SubtractFunction implements Function {
+public class SubtractFunction extends ArithmeticFunction implements AccumulatingFunction {
+
+    /**
+     * Constructs the function using {@link NumericMode#DEFAULT}.
+     */
+    public SubtractFunction() {
+    }
+
+    /**
+     * Constructs the function using a numeric mode.
+     *
+     * @param numericMode how numbers which aren't longs are combined.
+     */
+    public SubtractFunction(NumericMode numericMode) {
+        super(numericMode);
+    }
+
+    public SubtractFunction withNumericMode(NumericMode numericMode) {
+        return numericMode.equals(getNumericMode()) ? this : new SubtractFunction(numericMode);
+    }
 
     public String getName() {
         return "sub";
     }
 
-    public String execute(List<String> arguments) throws FunctionExecutionException {
-        BigDecimal result = null;
-        for (String argument : arguments) {
-            BigDecimal number;
-            try {
-                number = new BigDecimal(argument);
-            } catch (NumberFormatException nfe) {
-                throw new FunctionExecutionException("argument is not a valid number:  " + argument);
-            }
-            result = result == null ? number : result.subtract(number);
-        }
-        return result.toString();
+    public long applyLong(long result, long argument) {
+        return Math.subtractExact(result, argument);
     }
 
-    public int getMinNumberOfArgsSupported() {
-        return 2;
+    protected BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) {
+        return result.subtract(argument);
     }
 
-    public int getMaxNumberOfArgsSupported() {
-        return Integer.MAX_VALUE;
+    protected double applyDouble(double result, double argument) {
+        return result - argument;
     }
 
-
 }
@@ -0,0 +1,240 @@
+package com.mflintoff.calculator.function;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * <p>A value passed between functions during evaluation. Numbers are kept in numeric form, so that the result of one
+ * function can be passed to the next without being formatted as a string and parsed again. Integers which fit in a
+ * long are held as a primitive long, and other numbers as a {@link BigDecimal}, or a double if they were calculated
+ * in {@link NumericMode#DOUBLE}. Any other value, eg. the name of an unbound variable, is kept as text.</p>
+ *
+ * <p>A Value is immutable. Its string form is exactly what the string based {@link Function#execute(List)} would have
+ * produced or received, so values can be converted back and forth without changing the result of an expression.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public final class Value {
+
+    // longest run of digits which always fits in a long
+    private static final int MAX_LONG_DIGITS = 18;
+
+    private static final Value[] SMALL_VALUES = new Value[256];
+    static {
+        for (int i = 0; i < SMALL_VALUES.length; i++) {
+            SMALL_VALUES[i] = new Value(true, i - 128, false, 0, null, null);
+        }
+    }
+
+    private final boolean isLong;
+    private final long longValue;
+    private final boolean isDouble;
+    private final double doubleValue;
+    private final BigDecimal number;
+    private final String text;
+
+    private Value(boolean isLong, long longValue, boolean isDouble, double doubleValue, BigDecimal number,
+                  String text) {
+        this.isLong = isLong;
+        this.longValue = longValue;
+        this.isDouble = isDouble;
+        this.doubleValue = doubleValue;
+        this.number = number;
+        this.text = text;
+    }
+
+    /**
+     * Returns an integer value.
+     *
+     * @param number the number.
+     * @return the value.
+     */
+    public static Value of(long number) {
+        if (number >= -128 && number < 128) {
+            return SMALL_VALUES[(int) number + 128];
+        }
+        return new Value(true, number, false, 0, null, null);
+    }
+
+    /**
+     * Returns a numeric value.
+     *
+     * @param number the number.
+     * @return the value.
+     */
+    public static Value of(BigDecimal number) {
+        return new Value(false, 0, false, 0, number, null);
+    }
+
+    /**
+     * Returns a floating point value. Its string form is that of {@link Double#toString(double)}, eg. 1.0E10,
+     * Infinity or NaN.
+     *
+     * @param number the number.
+     * @return the value.
+     */
+    public static Value of(double number) {
+        return new Value(false, 0, true, number, null, null);
+    }
+
+    /**
+     * Parses a value from its string form. If the text is a valid number, the value is numeric, otherwise it is kept
+     * as text only. Either way, the original text is retained and returned by {@link #toString()}.
+     *
+     * @param text the text to parse.
+     * @return the value.
+     */
+    public static Value parse(String text) {
+        if (isSmallInteger(text)) {
+            return new Value(true, Long.parseLong(text), false, 0, null, text);
+        }
+        return new Value(false, 0, false, 0, parseNumber(text), text);
+    }
+
+    /**
+     * Parses a list of values from their string forms.
+     *
+     * @param texts the texts to parse.
+     * @return the values, in the same order.
+     */
+    public static Value[] parseAll(List<String> texts) {
+        Value[] values = new Value[texts.size()];
+        int i = 0;
+        for (String text : texts) {
+            values[i++] = parse(text);
+        }
+        return values;
+    }
+
+    /**
+     * Returns whether the value is a number.
+     *
+     * @return true if the value is numeric.
+     */
+    public boolean isNumber() {
+        return isLong || isDouble || number != null;
+    }
+
+    /**
+     * Returns whether the value is an integer held as a primitive long. Such a value is equal to a BigDecimal with
+     * a scale of 0.
+     *
+     * @return true if the value is a long.
+     */
+    public boolean isLong() {
+        return isLong;
+    }
+
+    /**
+     * Returns whether the value is a double, calculated in {@link NumericMode#DOUBLE}.
+     *
+     * @return true if the value is a double.
+     */
+    public boolean isDouble() {
+        return isDouble;
+    }
+
+    /**
+     * Returns the value as a long. Only valid if {@link #isLong()} is true.
+     *
+     * @return the number.
+     */
+    public long longValue() {
+        return longValue;
+    }
+
+    /**
+     * Returns the value as a number.
+     *
+     * @return the number.
+     * @throws FunctionExecutionException if the value is not a number.
+     */
+    public BigDecimal toBigDecimal() throws FunctionExecutionException {
+        if (isLong) {
+            return BigDecimal.valueOf(longValue);
+        } else if (isDouble) {
+            if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                throw new FunctionExecutionException("argument is not a valid number:  " + toString());
+            }
+            return BigDecimal.valueOf(doubleValue);
+        } else if (number == null) {
+            throw new FunctionExecutionException("argument is not a valid number:  " + text);
+        }
+        return number;
+    }
+
+    /**
+     * Returns the value as a double, which is the nearest double to the number if it isn't a double already.
+     *
+     * @return the number.
+     * @throws FunctionExecutionException if the value is not a number.
+     */
+    public double toDouble() throws FunctionExecutionException {
+        if (isLong) {
+            return longValue;
+        } else if (isDouble) {
+            return doubleValue;
+        } else if (number == null) {
+            throw new FunctionExecutionException("argument is not a valid number:  " + text);
+        }
+        return number.doubleValue();
+    }
+
+    /**
+     * Returns the string form of the value, as passed to and returned by {@link Function#execute(List)}.
+     *
+     * @return the value as a string.
+     */
+    public String toString() {
+        if (text != null) {
+            return text;
+        }
+        if (isLong) {
+            return Long.toString(longValue);
+        }
+        return isDouble ? Double.toString(doubleValue) : number.toString();
+    }
+
+    /**
+     * Returns whether the text is an optionally signed run of digits, short enough to always fit in a long.
+     *
+     * @param text the text to check.
+     * @return true if the text can be parsed with {@link Long#parseLong(String)}.
+     */
+    private static boolean isSmallInteger(String text) {
+        int length = text.length();
+        int start = length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+        if (length == start || length - start > MAX_LONG_DIGITS) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a number, returning null rather than throwing an exception if the text isn't a valid number.
+     *
+     * @param text the text to parse.
+     * @return the number, or null.
+     */
+    private static BigDecimal parseNumber(String text) {
+        if (text.length() == 0) {
+            return null;
+        }
+        char first = text.charAt(0);
+        if (!Character.isDigit(first) && first != '-' && first != '+' && first != '.') {
+            // avoid the cost of an exception for text which clearly isn't a number, eg. variable names
+            return null;
+        }
+        try {
+            return new BigDecimal(text);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+}
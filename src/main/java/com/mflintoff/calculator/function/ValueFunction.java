@@ -0,0 +1,25 @@
+package com.mflintoff.calculator.function;
+
+/**
+ * <p>A function which can be executed with {@link Value} arguments, so that numbers are passed between functions
+ * without being converted to strings. The built-in functions all implement this interface. Functions which only
+ * implement {@link Function} are executed through a {@link StringFunctionAdapter}.</p>
+ *
+ * <p>Implementations should return the same result from both execute methods, ie. the string form of
+ * {@link #execute(Value[])} should equal {@link #execute(java.util.List)} given the string forms of the
+ * arguments.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public interface ValueFunction extends Function {
+
+    /**
+     * Execute the function with the given arguments. As with {@link #execute(java.util.List)}, sub-expression
+     * arguments must be evaluated before being passed to this method.
+     *
+     * @param arguments the arguments. The array must not be modified.
+     * @return the calculated value.
+     */
+    public Value execute(Value[] arguments) throws FunctionExecutionException;
+
+}
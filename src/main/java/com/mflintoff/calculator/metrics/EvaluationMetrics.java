@@ -0,0 +1,264 @@
+package com.mflintoff.calculator.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The metrics of an evaluator: how many expressions were parsed and evaluated, how long parsing and evaluation
+ * took, the depth and size of the expressions parsed, and the {@link FunctionMetrics} of each function called. As
+ * with function calls, every evaluation is counted but only one in {@link FunctionMetrics#SAMPLE_INTERVAL} is timed.
+ * Every parse is timed, since parsing costs far more than reading the clock.</p>
+ *
+ * <p>The metrics can be registered as MBeans with the platform MBean server, where they can be read with eg.
+ * JConsole, as {@value #DOMAIN}:type=Evaluator,name=<i>name</i> and
+ * {@value #DOMAIN}:type=Function,evaluator=<i>name</i>,name=<i>function</i>. Functions first called after the
+ * metrics are registered are registered as they're called.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class EvaluationMetrics implements EvaluationMetricsMBean {
+
+    /**
+     * The domain of the MBeans' names.
+     */
+    public static final String DOMAIN = "com.mflintoff.calculator";
+
+    private final ConcurrentMap<String, FunctionMetrics> functions = new ConcurrentHashMap<String, FunctionMetrics>();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Histogram parseTime = new Histogram();
+    private final Histogram executeTime = new Histogram();
+    private final Histogram depth = new Histogram();
+    private final Histogram size = new Histogram();
+    private String registeredName; // guarded by this
+
+    /**
+     * Returns the metrics of a function, creating them if this is the function's first use.
+     *
+     * @param name the name of the function.
+     * @return the function's metrics.
+     */
+    public FunctionMetrics function(String name) {
+        FunctionMetrics metrics = functions.get(name);
+        if (metrics == null) {
+            FunctionMetrics created = new FunctionMetrics(name);
+            metrics = functions.putIfAbsent(name, created);
+            if (metrics == null) {
+                metrics = created;
+                synchronized (this) {
+                    if (registeredName != null) {
+                        registerFunction(ManagementFactory.getPlatformMBeanServer(), registeredName, created);
+                    }
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of every function used so far.
+     *
+     * @return the function metrics.
+     */
+    public Collection<FunctionMetrics> getFunctions() {
+        return new ArrayList<FunctionMetrics>(functions.values());
+    }
+
+    /**
+     * Records the parsing of an expression.
+     *
+     * @param nanos the time taken to parse and compile it.
+     * @param depth the deepest nesting of function calls in the expression.
+     * @param size the number of values, variables and function calls in the expression.
+     */
+    public void parsed(long nanos, int depth, int size) {
+        parseTime.record(nanos);
+        this.depth.record(depth);
+        this.size.record(size);
+    }
+
+    /**
+     * Counts the start of an evaluation, and decides whether to time it.
+     *
+     * @return the start time to pass to {@link #evaluated(long)}, or {@link FunctionMetrics#NOT_TIMED}.
+     */
+    public long startEvaluation() {
+        evaluations.increment();
+        return (ThreadLocalRandom.current().nextInt() & (FunctionMetrics.SAMPLE_INTERVAL - 1)) == 0
+                ? System.nanoTime() : FunctionMetrics.NOT_TIMED;
+    }
+
+    /**
+     * Records the end of an evaluation which completed.
+     *
+     * @param start the value returned by {@link #startEvaluation()}.
+     */
+    public void evaluated(long start) {
+        if (start != FunctionMetrics.NOT_TIMED) {
+            executeTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the end of an evaluation which failed.
+     *
+     * @param start the value returned by {@link #startEvaluation()}.
+     */
+    public void failed(long start) {
+        errors.increment();
+        evaluated(start);
+    }
+
+    /**
+     * Registers the metrics, and those of every function, with the platform MBean server.
+     *
+     * @param name the name to register the metrics under, which must be a valid ObjectName value and unique among
+     *             the registered evaluators.
+     * @throws JMException if the metrics can't be registered, eg. because the name is already in use.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (registeredName != null) {
+            throw new IllegalStateException("metrics are already registered as " + registeredName);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, evaluatorName(name));
+        registeredName = name;
+        for (FunctionMetrics metrics : functions.values()) {
+            registerFunction(server, name, metrics);
+        }
+    }
+
+    /**
+     * Unregisters the metrics, if they're registered.
+     */
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> names = new ArrayList<ObjectName>();
+        names.add(evaluatorName(registeredName));
+        for (FunctionMetrics metrics : functions.values()) {
+            names.add(functionName(registeredName, metrics.getName()));
+        }
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // already unregistered
+            }
+        }
+        registeredName = null;
+    }
+
+    private static void registerFunction(MBeanServer server, String evaluatorName, FunctionMetrics metrics) {
+        try {
+            server.registerMBean(metrics, functionName(evaluatorName, metrics.getName()));
+        } catch (JMException e) {
+            // the evaluator's own name is registered, so only a clash with a stale MBean can cause this
+            throw new IllegalStateException("could not register metrics of function " + metrics.getName(), e);
+        }
+    }
+
+    private static ObjectName evaluatorName(String name) {
+        return objectName("type=Evaluator,name=" + name);
+    }
+
+    private static ObjectName functionName(String evaluatorName, String name) {
+        return objectName("type=Function,evaluator=" + evaluatorName + ",name=" + name);
+    }
+
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("invalid metrics name: " + e.getMessage(), e);
+        }
+    }
+
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getParses() {
+        return parseTime.getCount();
+    }
+
+    public double getParseMeanNanos() {
+        return parseTime.getMean();
+    }
+
+    public long getParse99thPercentileNanos() {
+        return parseTime.getPercentile(99);
+    }
+
+    public double getExecuteMeanNanos() {
+        return executeTime.getMean();
+    }
+
+    public long getExecute99thPercentileNanos() {
+        return executeTime.getPercentile(99);
+    }
+
+    /**
+     * Returns the fraction of the time spent in parsing rather than evaluating expressions, estimating the total time
+     * spent evaluating from the timed evaluations.
+     *
+     * @return the fraction, between 0 and 1.
+     */
+    public double getParseTimeFraction() {
+        double parsing = parseTime.getSum();
+        double executing = executeTime.getMean() * evaluations.sum();
+        return parsing + executing > 0 ? parsing / (parsing + executing) : 0;
+    }
+
+    public double getDepthMean() {
+        return depth.getMean();
+    }
+
+    public long getDepth99thPercentile() {
+        return depth.getPercentile(99);
+    }
+
+    public long getMaxDepth() {
+        return depth.getMax();
+    }
+
+    public double getSizeMean() {
+        return size.getMean();
+    }
+
+    public long getSize99thPercentile() {
+        return size.getPercentile(99);
+    }
+
+    public long getMaxSize() {
+        return size.getMax();
+    }
+
+    public void reset() {
+        evaluations.reset();
+        errors.reset();
+        parseTime.reset();
+        executeTime.reset();
+        depth.reset();
+        size.reset();
+        for (FunctionMetrics metrics : functions.values()) {
+            metrics.reset();
+        }
+    }
+}
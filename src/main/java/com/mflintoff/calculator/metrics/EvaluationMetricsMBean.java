@@ -0,0 +1,39 @@
+package com.mflintoff.calculator.metrics;
+
+/**
+ * The management interface of {@link EvaluationMetrics}.
+ *
+ * @author Malcolm Flintoff
+ */
+public interface EvaluationMetricsMBean {
+
+    long getEvaluations();
+
+    long getErrors();
+
+    long getParses();
+
+    double getParseMeanNanos();
+
+    long getParse99thPercentileNanos();
+
+    double getExecuteMeanNanos();
+
+    long getExecute99thPercentileNanos();
+
+    double getParseTimeFraction();
+
+    double getDepthMean();
+
+    long getDepth99thPercentile();
+
+    long getMaxDepth();
+
+    double getSizeMean();
+
+    long getSize99thPercentile();
+
+    long getMaxSize();
+
+    void reset();
+}
@@ -0,0 +1,115 @@
+package com.mflintoff.calculator.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The calls, errors and latency of one function, across every expression evaluated by an evaluator. Every call is
+ * counted, but only one call in {@link #SAMPLE_INTERVAL}, chosen at random, is timed, since reading the clock costs
+ * as much as a call of a simple function. The latency histogram is therefore a sample of the calls.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class FunctionMetrics implements FunctionMetricsMBean {
+
+    /**
+     * The number of calls per timed call. Must be a power of two.
+     */
+    public static final int SAMPLE_INTERVAL = 16;
+
+    /**
+     * The start time of a call which isn't timed.
+     */
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Histogram latency = new Histogram();
+
+    FunctionMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Counts the start of a call, and decides whether to time it.
+     *
+     * @return the start time to pass to {@link #end(long)} if the call is timed, otherwise {@link #NOT_TIMED}.
+     */
+    public long start() {
+        calls.increment();
+        return (ThreadLocalRandom.current().nextInt() & (SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records the end of a call which completed.
+     *
+     * @param start the value returned by {@link #start()}.
+     */
+    public void end(long start) {
+        if (start != NOT_TIMED) {
+            latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records the end of a call which failed.
+     *
+     * @param start the value returned by {@link #start()}.
+     */
+    public void fail(long start) {
+        errors.increment();
+        end(start);
+    }
+
+    /**
+     * Returns the latency histogram of the timed calls, in nanoseconds.
+     *
+     * @return the histogram.
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getSampledCalls() {
+        return latency.getCount();
+    }
+
+    public double getMeanNanos() {
+        return latency.getMean();
+    }
+
+    public long get50thPercentileNanos() {
+        return latency.getPercentile(50);
+    }
+
+    public long get99thPercentileNanos() {
+        return latency.getPercentile(99);
+    }
+
+    public long get999thPercentileNanos() {
+        return latency.getPercentile(99.9);
+    }
+
+    public long getMaxNanos() {
+        return latency.getMax();
+    }
+
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        latency.reset();
+    }
+}
@@ -0,0 +1,29 @@
+package com.mflintoff.calculator.metrics;
+
+/**
+ * The management interface of {@link FunctionMetrics}.
+ *
+ * @author Malcolm Flintoff
+ */
+public interface FunctionMetricsMBean {
+
+    String getName();
+
+    long getCalls();
+
+    long getErrors();
+
+    long getSampledCalls();
+
+    double getMeanNanos();
+
+    long get50thPercentileNanos();
+
+    long get99thPercentileNanos();
+
+    long get999thPercentileNanos();
+
+    long getMaxNanos();
+
+    void reset();
+}
@@ -0,0 +1,258 @@
+package com.mflintoff.calculator.server;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A long-running HTTP server which evaluates expressions with a single resident {@link ExpressionEvaluator}, so
+ * that callers don't pay for JVM startup on every evaluation. Expressions are POSTed as JSON to {@link #PATH}, either
+ * one at a time:</p>
+ *
+ * <pre>
+ * {"expression": "add(x, 2)", "variables": {"x": 1}}   =&gt;   {"result": "3"}
+ * </pre>
+ *
+ * <p>or in a batch, whose results are in the same order:</p>
+ *
+ * <pre>
+ * {"expressions": ["add(1, 2)", "div(1, 0)"]}   =&gt;   {"results": [{"result": "3"}, {"error": "..."}]}
+ * </pre>
+ *
+ * <p>The variables are optional, and apply to every expression of a batch. An expression which can't be evaluated
+ * gets an error field instead of a result, and doesn't affect the rest of the batch. A request which isn't valid gets
+ * a 4xx status and an error field.</p>
+ *
+ * <p>Requests are handled by a fixed pool of threads with a bounded queue. When the queue is full, the thread
+ * accepting connections handles the request itself, which stops it accepting more until it's done. Responses always
+ * have a Content-Length, so connections are kept alive between requests.</p>
+ *
+ * <p>{@link #warmUp()} evaluates a mix of requests before the server is started, so that the parser, evaluator and
+ * request handling have been compiled by the JIT before the first real request arrives.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class EvaluationServer {
+    private static final Logger log = LoggerFactory.getLogger(EvaluationServer.class);
+
+    /**
+     * The path which expressions are POSTed to.
+     */
+    public static final String PATH = "/evaluate";
+
+    /**
+     * The largest request body accepted, in bytes.
+     */
+    static final int MAX_REQUEST_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The number of requests per thread which may be queued.
+     */
+    static final int QUEUE_PER_THREAD = 64;
+
+    /**
+     * The number of requests of each form handled by {@link #warmUp()}, which is enough for the JIT to compile the
+     * hot methods.
+     */
+    static final int WARMUP_ITERATIONS = 20000;
+
+    private final ExpressionEvaluator evaluator;
+    private final HttpServer server;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructs an EvaluationServer. The server doesn't accept requests until it's started.
+     *
+     * @param evaluator the evaluator used for every request.
+     * @param address the address to listen on. Port 0 chooses a free port.
+     * @param threads the number of threads to handle requests with.
+     * @throws IOException if the server can't listen on the address.
+     */
+    public EvaluationServer(ExpressionEvaluator evaluator, InetSocketAddress address, int threads) throws IOException {
+        this.evaluator = evaluator;
+        this.server = HttpServer.create(address, 0);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+        server.setExecutor(executor);
+        server.createContext(PATH, new EvaluateHandler());
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Handles a mix of single and batched requests, with varying expressions so that they aren't all served from the
+     * evaluator's cache, to warm up the JIT.
+     */
+    public void warmUp() {
+        long start = System.nanoTime();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            handle("{\"expression\": \"add(" + i + ", mult(x, " + (i % 97) + "))\", \"variables\": {\"x\": " + i + "}}");
+            handle("{\"expressions\": [\"let(a, " + i + ", let(b, mult(a, 10), add(b, a)))\", \"div(" + i
+                    + ", 7)\", \"sub(" + i + ", 0.5)\", \"div(1, 0)\"]}");
+        }
+        log.info("warmed up in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+        log.info("listening for expressions on http://{}:{}{}", server.getAddress().getHostString(), getPort(), PATH);
+    }
+
+    /**
+     * Stops the server, waiting for requests in progress to complete.
+     *
+     * @param delaySeconds the maximum time to wait for requests in progress.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    /**
+     * Handles the body of a request.
+     *
+     * @param body the JSON request.
+     * @return the JSON response.
+     * @throws IllegalArgumentException if the request isn't valid.
+     */
+    String handle(String body) {
+        Object request = Json.read(body);
+        if (!(request instanceof Map)) {
+            throw new IllegalArgumentException("request must be a JSON object");
+        }
+        Map<?, ?> fields = (Map<?, ?>) request;
+        Map<String, String> variables = readVariables(fields.get("variables"));
+
+        StringBuilder response = new StringBuilder();
+        if (fields.get("expression") instanceof String) {
+            appendEvaluation(response, (String) fields.get("expression"), variables);
+        } else if (fields.get("expressions") instanceof List) {
+            response.append("{\"results\":[");
+            boolean first = true;
+            for (Object expression : (List<?>) fields.get("expressions")) {
+                if (!(expression instanceof String)) {
+                    throw new IllegalArgumentException("expressions must be strings");
+                }
+                if (!first) {
+                    response.append(',');
+                }
+                appendEvaluation(response, (String) expression, variables);
+                first = false;
+            }
+            response.append("]}");
+        } else {
+            throw new IllegalArgumentException("request must have an expression string or expressions array");
+        }
+        return response.toString();
+    }
+
+    private static Map<String, String> readVariables(Object variables) {
+        if (variables == null) {
+            return Collections.emptyMap();
+        } else if (!(variables instanceof Map)) {
+            throw new IllegalArgumentException("variables must be a JSON object");
+        }
+        Map<String, String> bindings = new HashMap<String, String>();
+        for (Map.Entry<?, ?> variable : ((Map<?, ?>) variables).entrySet()) {
+            if (!(variable.getValue() instanceof String)) {
+                throw new IllegalArgumentException("variable " + variable.getKey() + " must be a number or string");
+            }
+            bindings.put((String) variable.getKey(), (String) variable.getValue());
+        }
+        return bindings;
+    }
+
+    private void appendEvaluation(StringBuilder response, String expression, Map<String, String> variables) {
+        try {
+            String result = evaluator.compile(expression).evaluate(variables);
+            Json.appendString(response.append("{\"result\":"), result).append('}');
+        } catch (EvaluationException e) {
+            log.debug("{}: {}", expression, e.getMessage());
+            Json.appendString(response.append("{\"error\":"), e.getMessage()).append('}');
+        }
+    }
+
+    private static String readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            if (body.size() + read > MAX_REQUEST_SIZE) {
+                return null;
+            }
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+
+    private static String error(String message) {
+        return Json.appendString(new StringBuilder("{\"error\":"), message).append('}').toString();
+    }
+
+    private class EvaluateHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    respond(exchange, 405, error("expressions must be POSTed"));
+                    return;
+                }
+                String body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    respond(exchange, 413, error("request is larger than " + MAX_REQUEST_SIZE + " bytes"));
+                    return;
+                }
+                String response;
+                try {
+                    response = EvaluationServer.this.handle(body);
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, error(e.getMessage()));
+                    return;
+                }
+                respond(exchange, 200, response);
+            } catch (RuntimeException e) {
+                log.error("error handling request", e);
+                respond(exchange, 500, error("internal error"));
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,634 @@
+package com.mflintoff.calculator.server;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A long-running server for co-located clients, which evaluates expressions sent in a compact binary framing
+ * rather than HTTP/JSON. It normally listens on a Unix domain socket (see {@link #unixDomainSocketAddress(String)}),
+ * but can also listen on a TCP address. All integers are big-endian, and all text is UTF-8. A request frame is:</p>
+ *
+ * <pre>
+ * int     length of the rest of the frame
+ * int     request ID, chosen by the client
+ * int     length of the expression
+ * byte[]  expression
+ * then, for each variable binding until the end of the frame:
+ * short   length of the name (unsigned)
+ * byte[]  name
+ * short   length of the value (unsigned)
+ * byte[]  value
+ * </pre>
+ *
+ * <p>and a response frame is:</p>
+ *
+ * <pre>
+ * int     length of the rest of the frame
+ * int     request ID
+ * byte    status: {@link #OK}, {@link #ERROR} or {@link #INVALID_REQUEST}
+ * byte[]  the result, or the error message
+ * </pre>
+ *
+ * <p>Requests may be pipelined: a client can send many requests on a connection without waiting for their responses,
+ * and each response is sent as soon as it's ready, so responses may arrive in a different order to their requests.
+ * A connection stops being read while {@link #MAX_IN_FLIGHT} of its requests are in progress, or while too many
+ * responses are waiting for the client to read them. A frame whose length is invalid can't be skipped, so the
+ * connection is closed.</p>
+ *
+ * <p>Connections are read and written by a single selector thread, into a reused buffer per connection. Expressions
+ * are looked up by their bytes, directly in the read buffer, so a repeated expression is evaluated without being
+ * decoded into a String. Evaluation is done by a fixed pool of threads, and as with the {@link EvaluationServer}, the
+ * selector thread evaluates requests itself when the pool's queue is full. Functions must be registered with the
+ * evaluator before the server is started.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class FrameServer {
+    private static final Logger log = LoggerFactory.getLogger(FrameServer.class);
+
+    /**
+     * The response status of an expression which was evaluated.
+     */
+    public static final byte OK = 0;
+
+    /**
+     * The response status of an expression which couldn't be evaluated. The response holds the error message.
+     */
+    public static final byte ERROR = 1;
+
+    /**
+     * The response status of a frame which couldn't be decoded. The response holds the error message.
+     */
+    public static final byte INVALID_REQUEST = 2;
+
+    /**
+     * The largest request frame accepted, in bytes.
+     */
+    static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+    /**
+     * The initial size of each connection's read and write buffers.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of requests per connection which may be in progress before it stops being read.
+     */
+    static final int MAX_IN_FLIGHT = 1024;
+
+    /**
+     * The number of bytes of responses per connection which may be waiting to be written before it stops being read.
+     */
+    static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+
+    /**
+     * The number of requests per thread which may be queued.
+     */
+    static final int QUEUE_PER_THREAD = 64;
+
+    /**
+     * The number of expressions cached by their bytes. Must be a power of two.
+     */
+    static final int CACHE_SIZE = 4096;
+
+    private final ExpressionEvaluator evaluator;
+    private final SocketAddress address;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor executor;
+    private final Thread selectorThread;
+    // connections whose interest may have changed since a response was added by another thread
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+    // a direct-mapped cache, shared between threads without locking since its entries are immutable
+    private final CachedExpression[] cache = new CachedExpression[CACHE_SIZE];
+    private volatile boolean running;
+
+    /**
+     * Constructs a FrameServer. The server doesn't accept requests until it's started.
+     *
+     * @param evaluator the evaluator used for every request.
+     * @param address the address to listen on, either a Unix domain socket address or an InetSocketAddress. Port 0
+     *                chooses a free port.
+     * @param threads the number of threads to evaluate requests with.
+     * @throws IOException if the server can't listen on the address.
+     */
+    public FrameServer(ExpressionEvaluator evaluator, SocketAddress address, int threads) throws IOException {
+        this.evaluator = evaluator;
+        this.serverChannel = address instanceof InetSocketAddress ? ServerSocketChannel.open() : openUnixChannel();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        this.address = serverChannel.getLocalAddress();
+        this.selector = Selector.open();
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.selectorThread = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "frame-server-selector");
+    }
+
+    /**
+     * Returns the address of a Unix domain socket, which needs Java 16 or later. The socket file is created when the
+     * server is constructed, and deleted when it's stopped.
+     *
+     * @param path the path of the socket file.
+     * @return the address.
+     * @throws UnsupportedOperationException if the JVM doesn't support Unix domain sockets.
+     */
+    public static SocketAddress unixDomainSocketAddress(String path) {
+        try {
+            // loaded reflectively, since the calculator is built for Java 8
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", String.class).invoke(null, path);
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("invalid socket path " + path + ": " + e.getCause(), e);
+        }
+    }
+
+    private static ServerSocketChannel openUnixChannel() throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, unix);
+        } catch (IllegalArgumentException | NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("could not open Unix domain socket: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns the address the server listens on, which for a TCP address gives the port chosen.
+     *
+     * @return the address.
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        running = true;
+        selectorThread.start();
+        log.info("listening for expression frames on {}", address);
+    }
+
+    /**
+     * Stops the server, closing every connection. Requests in progress are completed, but their responses are
+     * discarded.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+        if (!(address instanceof InetSocketAddress)) {
+            try {
+                Files.deleteIfExists((Path) address.getClass().getMethod("getPath").invoke(address));
+            } catch (ReflectiveOperationException | IOException e) {
+                log.warn("could not delete socket file {}: {}", address, e.toString());
+            }
+        }
+    }
+
+    private void select() {
+        while (running) {
+            try {
+                selector.select();
+                Connection connection;
+                while ((connection = changed.poll()) != null) {
+                    connection.update();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            connection.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        log.debug("closing connection: {}", e.toString());
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("error selecting connections", e);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).close();
+            }
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            log.warn("error closing server: {}", e.toString());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * Looks up an expression by its bytes.
+     *
+     * @param bytes the buffer holding the expression.
+     * @param offset the offset of the expression.
+     * @param length the length of the expression.
+     * @return the compiled expression, or null if it isn't cached.
+     */
+    private CompiledExpression lookup(byte[] bytes, int offset, int length) {
+        CachedExpression cached = cache[hash(bytes, offset, length) & (CACHE_SIZE - 1)];
+        if (cached == null || cached.text.length != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (cached.text[i] != bytes[offset + i]) {
+                return null;
+            }
+        }
+        return cached.compiled;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+    /**
+     * Decodes the variable bindings at the end of a frame.
+     *
+     * @param bytes the buffer holding the frame.
+     * @param offset the offset of the first binding.
+     * @param end the offset of the end of the frame.
+     * @return the bindings.
+     * @throws IllegalArgumentException if the bindings are truncated.
+     */
+    private static Map<String, String> readVariables(byte[] bytes, int offset, int end) {
+        if (offset == end) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> variables = new HashMap<String, String>();
+        while (offset < end) {
+            String[] binding = new String[2];
+            for (int i = 0; i < 2; i++) {
+                if (end - offset < 2 || end - offset - 2 < readUnsignedShort(bytes, offset)) {
+                    throw new IllegalArgumentException("variable bindings are truncated");
+                }
+                int length = readUnsignedShort(bytes, offset);
+                binding[i] = new String(bytes, offset + 2, length, StandardCharsets.UTF_8);
+                offset += 2 + length;
+            }
+            variables.put(binding[0], binding[1]);
+        }
+        return variables;
+    }
+
+    /**
+     * An expression cached by its bytes.
+     */
+    private static class CachedExpression {
+        final byte[] text;
+        final CompiledExpression compiled;
+
+        CachedExpression(byte[] text, CompiledExpression compiled) {
+            this.text = text;
+            this.compiled = compiled;
+        }
+    }
+
+    /**
+     * A request waiting to be evaluated. Either the expression has already been compiled, or it's compiled and cached
+     * when the request is evaluated.
+     */
+    private class Request implements Runnable {
+        private final Connection connection;
+        private final int requestId;
+        private final CompiledExpression compiled;
+        private final byte[] text;
+        private final Map<String, String> variables;
+
+        Request(Connection connection, int requestId, CompiledExpression compiled, byte[] text,
+                Map<String, String> variables) {
+            this.connection = connection;
+            this.requestId = requestId;
+            this.compiled = compiled;
+            this.text = text;
+            this.variables = variables;
+        }
+
+        public void run() {
+            byte status;
+            String result;
+            try {
+                CompiledExpression expression = compiled;
+                if (expression == null) {
+                    expression = evaluator.compile(new String(text, StandardCharsets.UTF_8));
+                    cache[hash(text, 0, text.length) & (CACHE_SIZE - 1)] = new CachedExpression(text, expression);
+                }
+                result = expression.evaluate(variables);
+                status = OK;
+            } catch (EvaluationException e) {
+                log.debug("request {}: {}", requestId, e.getMessage());
+                result = e.getMessage();
+                status = ERROR;
+            } catch (RuntimeException e) {
+                log.error("error evaluating request " + requestId, e);
+                result = "internal error";
+                status = ERROR;
+            }
+            connection.respond(requestId, status, result);
+        }
+    }
+
+    /**
+     * A client connection. Its input is only used by the selector thread, while its output is added to by the
+     * threads evaluating its requests, so is guarded by the connection's lock.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+        private int inFlight;
+        private boolean inputClosed;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads from the channel, and dispatches each complete frame.
+         */
+        void read() throws IOException {
+            if (channel.read(input) < 0) {
+                synchronized (this) {
+                    // the client may still be waiting for responses to the requests it has sent
+                    inputClosed = true;
+                }
+            }
+            checkPartialFrame();
+            update();
+        }
+
+        /**
+         * Dispatches the complete frames in the input buffer, until too many requests are in progress.
+         */
+        private void dispatchFrames() throws IOException {
+            input.flip();
+            while (input.remaining() >= 4 && canDispatch()) {
+                int length = input.getInt(input.position());
+                if (length < 8 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("invalid frame length " + length);
+                } else if (input.remaining() < 4 + length) {
+                    break;
+                }
+                int start = input.arrayOffset() + input.position() + 4;
+                dispatch(input.array(), start, start + length);
+                input.position(input.position() + 4 + length);
+            }
+            input.compact();
+            checkPartialFrame();
+        }
+
+        /**
+         * Validates the length of the frame at the start of the input buffer, once it has been read, and makes room
+         * for the whole frame if it's larger than the buffer. Called whenever the first frame may have changed, since
+         * an incomplete frame isn't dispatched, and a full buffer would otherwise never be read again.
+         */
+        private void checkPartialFrame() throws IOException {
+            if (input.position() < 4) {
+                return;
+            }
+            int length = input.getInt(0);
+            if (length < 8 || length > MAX_FRAME_SIZE) {
+                throw new IOException("invalid frame length " + length);
+            } else if (4 + length > input.capacity()) {
+                input.flip();
+                input = ByteBuffer.allocate(4 + length).put(input);
+            }
+        }
+
+        private boolean hasCompleteFrame() {
+            return input.position() >= 4 && input.position() >= 4 + input.getInt(0);
+        }
+
+        private void dispatch(byte[] frame, int offset, int end) {
+            int requestId = readInt(frame, offset);
+            synchronized (this) {
+                inFlight++;
+            }
+            int expressionLength = readInt(frame, offset + 4);
+            int expressionOffset = offset + 8;
+            if (expressionLength < 0 || expressionLength > end - expressionOffset) {
+                respond(requestId, INVALID_REQUEST, "expression length " + expressionLength + " exceeds the frame");
+                return;
+            }
+
+            Map<String, String> variables;
+            try {
+                variables = readVariables(frame, expressionOffset + expressionLength, end);
+            } catch (IllegalArgumentException e) {
+                respond(requestId, INVALID_REQUEST, e.getMessage());
+                return;
+            }
+            CompiledExpression compiled = lookup(frame, expressionOffset, expressionLength);
+            byte[] text = compiled == null
+                    ? Arrays.copyOfRange(frame, expressionOffset, expressionOffset + expressionLength) : null;
+            try {
+                executor.execute(new Request(this, requestId, compiled, text, variables));
+            } catch (RejectedExecutionException e) {
+                // the server is stopping
+                close();
+            }
+        }
+
+        /**
+         * Adds a response to the output, and writes as much of the output as the channel accepts. Called by any
+         * thread.
+         */
+        void respond(int requestId, byte status, String message) {
+            synchronized (this) {
+                inFlight--;
+                if (closed) {
+                    return;
+                }
+                String text = message != null ? message : "";
+                ensureOutputCapacity(9 + text.length() * 3);
+                int start = output.position();
+                output.position(start + 4);
+                output.putInt(requestId);
+                output.put(status);
+                putUtf8(text);
+                output.putInt(start, output.position() - start - 4);
+                try {
+                    writeOutput();
+                } catch (IOException e) {
+                    log.debug("closing connection: {}", e.toString());
+                    close();
+                    return;
+                }
+            }
+            // the selector thread may need to wait for the channel to be writable, resume reading, or close
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        private void ensureOutputCapacity(int size) {
+            if (output.remaining() < size) {
+                output.flip();
+                output = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.remaining() + size)).put(output);
+            }
+        }
+
+        private void putUtf8(String text) {
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    // results are ASCII, but error messages may quote anything
+                    output.put(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                output.put((byte) c);
+            }
+        }
+
+        private void writeOutput() throws IOException {
+            output.flip();
+            channel.write(output);
+            output.compact();
+        }
+
+        /**
+         * Writes pending output once the channel is writable.
+         */
+        void flush() throws IOException {
+            synchronized (this) {
+                writeOutput();
+            }
+            update();
+        }
+
+        private synchronized boolean canDispatch() {
+            return inFlight < MAX_IN_FLIGHT && output.position() < MAX_PENDING_OUTPUT;
+        }
+
+        /**
+         * Dispatches any frames which were buffered while too many requests were in progress, then updates the
+         * channel's interest in reading and writing, or closes the connection once its input is closed and every
+         * response has been written. Called by the selector thread.
+         */
+        void update() {
+            try {
+                while (hasCompleteFrame() && canDispatch()) {
+                    dispatchFrames();
+                }
+            } catch (IOException e) {
+                log.debug("closing connection: {}", e.toString());
+                close();
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                } else if (inputClosed && inFlight == 0 && output.position() == 0 && !hasCompleteFrame()) {
+                    close();
+                    return;
+                }
+                key.interestOps((!inputClosed && canDispatch() ? SelectionKey.OP_READ : 0)
+                        | (output.position() > 0 ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("error closing connection: {}", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.mflintoff.calculator.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A minimal JSON reader and writer for the {@link EvaluationServer}'s requests and responses, so that the
+ * calculator needs no JSON library. Objects are read as Maps, arrays as Lists, strings as Strings, numbers as
+ * Strings holding their original text (so that they can be evaluated without loss of precision), and true, false
+ * and null as Boolean.TRUE, Boolean.FALSE and null.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+class Json {
+
+    /**
+     * The maximum nesting of arrays and objects, which bounds the recursion used to read them.
+     */
+    static final int MAX_DEPTH = 32;
+
+    private final String text;
+    private int pos = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Reads a JSON document.
+     *
+     * @param text the document.
+     * @return the value of the document.
+     * @throws IllegalArgumentException if the document isn't valid JSON.
+     */
+    static Object read(String text) {
+        Json json = new Json(text);
+        Object value = json.readValue(0);
+        json.skipWhitespace();
+        if (json.pos < text.length()) {
+            throw json.error("unexpected content after the end of the document");
+        }
+        return value;
+    }
+
+    private Object readValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw error("document is nested too deeply");
+        }
+        skipWhitespace();
+        if (pos >= text.length()) {
+            throw error("unexpected end of document");
+        }
+        char c = text.charAt(pos);
+        if (c == '{') {
+            return readObject(depth);
+        } else if (c == '[') {
+            return readArray(depth);
+        } else if (c == '"') {
+            return readString();
+        } else if (c == '-' || (c >= '0' && c <= '9')) {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        } else if (text.startsWith("true", pos)) {
+            pos += 4;
+            return Boolean.TRUE;
+        } else if (text.startsWith("false", pos)) {
+            pos += 5;
+            return Boolean.FALSE;
+        } else if (text.startsWith("null", pos)) {
+            pos += 4;
+            return null;
+        }
+        throw error("unexpected character '" + c + "'");
+    }
+
+    private Map<String, Object> readObject(int depth) {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        pos++;
+        skipWhitespace();
+        if (pos < text.length() && text.charAt(pos) == '}') {
+            pos++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            if (pos >= text.length() || text.charAt(pos) != '"') {
+                throw error("expected a string");
+            }
+            String name = readString();
+            expect(':');
+            object.put(name, readValue(depth + 1));
+            if (expectEither(',', '}') == '}') {
+                return object;
+            }
+        }
+    }
+
+    private List<Object> readArray(int depth) {
+        List<Object> array = new ArrayList<Object>();
+        pos++;
+        skipWhitespace();
+        if (pos < text.length() && text.charAt(pos) == ']') {
+            pos++;
+            return array;
+        }
+        while (true) {
+            array.add(readValue(depth + 1));
+            if (expectEither(',', ']') == ']') {
+                return array;
+            }
+        }
+    }
+
+    private String readString() {
+        StringBuilder builder = new StringBuilder();
+        pos++;
+        while (pos < text.length()) {
+            char c = text.charAt(pos++);
+            if (c == '"') {
+                return builder.toString();
+            } else if (c != '\\') {
+                builder.append(c);
+            } else if (pos < text.length()) {
+                char escaped = text.charAt(pos++);
+                switch (escaped) {
+                    case 'b':
+                        builder.append('\b');
+                        break;
+                    case 'f':
+                        builder.append('\f');
+                        break;
+                    case 'n':
+                        builder.append('\n');
+                        break;
+                    case 'r':
+                        builder.append('\r');
+                        break;
+                    case 't':
+                        builder.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) {
+                            throw error("invalid unicode escape");
+                        }
+                        try {
+                            builder.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("invalid unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        builder.append(escaped);
+                }
+            }
+        }
+        throw error("unterminated string");
+    }
+
+    private void expect(char expected) {
+        skipWhitespace();
+        if (pos >= text.length() || text.charAt(pos) != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    private char expectEither(char first, char second) {
+        skipWhitespace();
+        if (pos < text.length() && (text.charAt(pos) == first || text.charAt(pos) == second)) {
+            return text.charAt(pos++);
+        }
+        throw error("expected '" + first + "' or '" + second + "'");
+    }
+
+    private void skipWhitespace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("invalid JSON: " + message + " at position " + pos);
+    }
+
+    /**
+     * Appends a string to a JSON document, quoted and escaped.
+     *
+     * @param builder the document.
+     * @param value the string.
+     * @return the builder.
+     */
+    static StringBuilder appendString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        return builder.append('"');
+    }
+}
@@ -0,0 +1,110 @@
+package com.mflintoff.calculator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class BatchEvaluatorTest {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEvaluateLines() throws IOException {
+        String input = "add(1, 2)\nmult(3, 4)\r\nlet(a, 5, add(a, a))";
+        StringWriter output = new StringWriter();
+        long errors = new BatchEvaluator(new ExpressionEvaluator()).evaluate(
+                new BufferedReader(new StringReader(input)), output);
+        assertEquals("unexpected number of errors", 0, errors);
+        assertEquals("unexpected output", "3" + LINE_SEPARATOR + "12" + LINE_SEPARATOR + "10" + LINE_SEPARATOR,
+                output.toString());
+    }
+
+    @Test
+    public void testErrorsDontAbort() throws IOException {
+        String input = "add(1, 2)\ndiv(1, 0)\n\nfoo(1)\nsub(5, 3)\n";
+        StringWriter output = new StringWriter();
+        long errors = new BatchEvaluator(new ExpressionEvaluator()).evaluate(
+                new BufferedReader(new StringReader(input)), output);
+        assertEquals("unexpected number of errors", 2, errors);
+
+        String[] lines = output.toString().split(LINE_SEPARATOR, -1);
+        assertEquals("unexpected number of output lines", 6, lines.length);
+        assertEquals("unexpected result for line 1", "3", lines[0]);
+        assertEquals("unexpected result for failing line 2", BatchEvaluator.ERROR_PREFIX
+                + "an error occurred executing function div:error occurred during division: / by zero", lines[1]);
+        assertEquals("blank line had unexpected output", "", lines[2]);
+        assertEquals("unexpected result for failing line 4", BatchEvaluator.ERROR_PREFIX, lines[3].substring(0,
+                BatchEvaluator.ERROR_PREFIX.length()));
+        assertEquals("unexpected result for line 5", "2", lines[4]);
+    }
+
+    @Test
+    public void testParallelOutputInOrder() throws IOException {
+        // several chunks, with a mix of cached and uncached expressions and errors
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < BatchEvaluator.CHUNK_SIZE * 20 + 7; i++) {
+            input.append(i % 100 == 0 ? "div(" + i + ", 0)" : i % 3 == 0 ? "mult(3, 3)" : "add(" + i + ", 1)");
+            input.append('\n');
+        }
+
+        StringWriter sequentialOutput = new StringWriter();
+        long sequentialErrors = new BatchEvaluator(new ExpressionEvaluator()).evaluate(
+                new BufferedReader(new StringReader(input.toString())), sequentialOutput);
+
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(16);
+        StringWriter parallelOutput = new StringWriter();
+        long parallelErrors = new BatchEvaluator(new ExpressionEvaluator(config), 4).evaluate(
+                new BufferedReader(new StringReader(input.toString())), parallelOutput);
+
+        assertEquals("unexpected number of errors", 205, parallelErrors);
+        assertEquals("parallel and sequential errors differ", sequentialErrors, parallelErrors);
+        assertEquals("parallel and sequential output differ", sequentialOutput.toString(), parallelOutput.toString());
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        // CRLF, blank and whitespace lines, errors, non-ASCII text, a line longer than the mapped region, and no
+        // newline at the end
+        StringBuilder input = new StringBuilder("add(1, 2)\r\n\n  \t\nfoo(1)\nadd(1, \u00e9)\n");
+        for (int i = 0; i < 5000; i++) {
+            input.append(i % 100 == 0 ? "div(" + i + ", 0)" : "add(" + i + ", mult(2, 3))").append('\n');
+        }
+        input.append("let(a, 5, let(b, mult(a, 10), add(b, a, a, a, a, a, a, a, a, a, a, a, a, a, a, a, a, a)))\n");
+        input.append("sub(10, 4)");
+        Path file = folder.newFile("expressions.txt").toPath();
+        Files.write(file, input.toString().getBytes(StandardCharsets.UTF_8));
+
+        StringWriter expectedOutput = new StringWriter();
+        long expectedErrors = new BatchEvaluator(new ExpressionEvaluator()).evaluate(
+                new BufferedReader(new StringReader(input.toString())), expectedOutput);
+        assertEquals("unexpected number of errors", 52, expectedErrors);
+
+        for (int threads : new int[] {1, 4}) {
+            StringWriter output = new StringWriter();
+            long errors = new BatchEvaluator(new ExpressionEvaluator(), threads).evaluate(file, output, 64);
+            assertEquals("unexpected number of errors on " + threads + " threads", expectedErrors, errors);
+            assertEquals("unexpected output on " + threads + " threads", expectedOutput.toString(),
+                    output.toString());
+        }
+        StringWriter output = new StringWriter();
+        new BatchEvaluator(new ExpressionEvaluator(), 4).evaluate(file, output);
+        assertEquals("unexpected output with one mapped region", expectedOutput.toString(), output.toString());
+    }
+}
@@ -0,0 +1,78 @@
+package com.mflintoff.calculator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class CompiledExpressionCacheTest {
+
+    @Test
+    public void testHitsAndMisses() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(10);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+
+        assertEquals("first evaluation had unexpected result", "4", evaluator.evaluate("add(2,2)"));
+        assertEquals("cached evaluation had unexpected result", "4", evaluator.evaluate(" add( 2, 2 ) "));
+
+        CacheStatistics statistics = evaluator.getCacheStatistics();
+        assertEquals("unexpected number of cache misses", 1, statistics.getMissCount());
+        assertEquals("unexpected number of cache hits", 1, statistics.getHitCount());
+        assertEquals("unexpected cache size", 1, statistics.getSize());
+    }
+
+    @Test
+    public void testCompileReturnsCachedExpression() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(10);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+
+        assertSame("expected cached compiled expression", evaluator.compile("mult(3,3)"), evaluator.compile("mult(3, 3)"));
+    }
+
+    @Test
+    public void testWhitespaceBetweenAtomsIsSignificant() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(10);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+
+        assertEquals("first evaluation had unexpected result", "15", evaluator.evaluate("add(12,3)"));
+        try {
+            evaluator.evaluate("add(1 2, 3)");
+            fail("an expression which doesn't parse was answered from the cache");
+        } catch (EvaluationException e) {
+            assertEquals("unexpected message", "expected ',' or ')' but found '2' at position 6", e.getMessage());
+        }
+        assertEquals("unexpected key", "add(1 2,3)", ExpressionLexer.tokenKey("  add ( 1  2 ,\t3 ) "));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws EvaluationException {
+        CompiledExpressionCache cache = new CompiledExpressionCache(2);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        cache.put("add(1,1)", evaluator.compile("add(1,1)"));
+        cache.put("add(2,2)", evaluator.compile("add(2,2)"));
+
+        // touch the first expression, so that the second is the least recently used
+        cache.get("add(1,1)");
+        cache.put("add(3,3)", evaluator.compile("add(3,3)"));
+
+        assertNull("least recently used expression should have been evicted", cache.get("add(2,2)"));
+        assertEquals("unexpected number of evictions", 1, cache.getStatistics().getEvictionCount());
+        assertEquals("unexpected cache size", 2, cache.getStatistics().getSize());
+    }
+
+    @Test
+    public void testCacheDisabledByDefault() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.evaluate("add(2,2)");
+        evaluator.evaluate("add(2,2)");
+        assertEquals("cache should be disabled by default", 0, evaluator.getCacheStatistics().getHitCount());
+    }
+}
@@ -0,0 +1,220 @@
+package com.mflintoff.calculator;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class CompiledExpressionTest {
+
+    @Test
+    public void testRepeatedEvaluation() throws EvaluationException {
+        CompiledExpression compiled = new ExpressionEvaluator().compile("let(a, 5, let(b, mult(a, 10), add(b, a)))");
+        assertEquals("first evaluation had unexpected result", "55", compiled.evaluate());
+        assertEquals("second evaluation had unexpected result", "55", compiled.evaluate());
+    }
+
+    @Test
+    public void testBindings() throws EvaluationException {
+        CompiledExpression compiled = new ExpressionEvaluator().compile("add(mult(price, qty), fee)");
+
+        Map<String, String> bindings = new HashMap<String, String>();
+        bindings.put("price", "2.5");
+        bindings.put("qty", "4");
+        bindings.put("fee", "1");
+        assertEquals("evaluation with bindings had unexpected result", "11.0", compiled.evaluate(bindings));
+
+        bindings.put("qty", "10");
+        assertEquals("evaluation with changed bindings had unexpected result", "26.0", compiled.evaluate(bindings));
+    }
+
+    @Test
+    public void testLetShadowsBinding() throws EvaluationException {
+        CompiledExpression compiled = new ExpressionEvaluator().compile("let(a, 5, add(a, b))");
+
+        Map<String, String> bindings = new HashMap<String, String>();
+        bindings.put("a", "100");
+        bindings.put("b", "1");
+        assertEquals("let variable should take precedence over binding", "6", compiled.evaluate(bindings));
+    }
+
+    @Test(expected = EvaluationException.class)
+    public void testUnboundVariable() throws EvaluationException {
+        CompiledExpression compiled = new ExpressionEvaluator().compile("add(a, 5)");
+        compiled.evaluate();
+    }
+
+    @Test(expected = EvaluationException.class)
+    public void testArgumentsValidatedOnCompile() throws EvaluationException {
+        new ExpressionEvaluator().compile("add(2)");
+    }
+
+    @Test(expected = EvaluationException.class)
+    public void testUnknownFunctionOnCompile() throws EvaluationException {
+        new ExpressionEvaluator().compile("add(3, unknown(a, 5))");
+    }
+
+    @Test
+    public void testFreeVariableNames() throws EvaluationException {
+        CompiledExpression compiled = new ExpressionEvaluator().compile("let(a, x, add(a, y, x, let(y, 1, y)))");
+        assertArrayEquals("unexpected free variables", new String[] {"x", "y"}, compiled.getFreeVariableNames());
+    }
+
+    @Test
+    public void testDeeplyNestedLets() throws EvaluationException {
+        // each let refers to the variable of the enclosing let, so every slot is used
+        int depth = 10000;
+        StringBuilder expression = new StringBuilder();
+        expression.append("let(v0, 1, ");
+        for (int i = 1; i < depth; i++) {
+            expression.append("let(v").append(i).append(", add(v").append(i - 1).append(", 1), ");
+        }
+        expression.append("v").append(depth - 1);
+        for (int i = 0; i < depth; i++) {
+            expression.append(')');
+        }
+
+        CompiledExpression compiled = new ExpressionEvaluator().compile(expression.toString());
+        assertEquals("nested lets had unexpected result", String.valueOf(depth), compiled.evaluate());
+    }
+
+    @Test
+    public void testDeeplyNestedCalls() throws EvaluationException {
+        // deep enough to overflow the default thread stack if parsing or evaluation recursed
+        int depth = 100000;
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("add(1, ");
+        }
+        // a free variable at the bottom, so that the optimizer can't fold the calls away
+        expression.append('x');
+        for (int i = 0; i < depth; i++) {
+            expression.append(')');
+        }
+
+        CompiledExpression compiled = new ExpressionEvaluator().compile(expression.toString());
+        assertEquals("nested calls had unexpected result", String.valueOf(depth),
+                compiled.evaluate(Collections.singletonMap("x", "0")));
+        assertEquals("nested calls had unexpected string form", expression.toString().replace(" ", ""),
+                compiled.toString());
+    }
+
+    @Test(expected = ExpressionParseException.class)
+    public void testMaxDepth() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setMaxDepth(2);
+        new ExpressionEvaluator(config).compile("add(1, add(2, add(3, 4)))");
+    }
+
+    @Test
+    public void testColumns() throws EvaluationException {
+        long[] qty = {1, 4, 10, 0, Long.MAX_VALUE};
+        Map<String, Column> columns = new HashMap<String, Column>();
+        columns.put("price", Column.of(new double[] {2.5, 2.5, 0.1, 7, 2}));
+        columns.put("qty", Column.of(qty));
+        columns.put("fee", Column.of(new BigDecimal[] {BigDecimal.ONE, new BigDecimal("0.50"), BigDecimal.ZERO,
+                BigDecimal.TEN, BigDecimal.ONE}));
+
+        String[] results = new String[qty.length];
+        new ExpressionEvaluator().compile("add(mult(price, qty), fee)").evaluate(columns, results);
+        assertArrayEquals("columns had unexpected results",
+                new String[] {"3.5", "10.50", "1.0", "10.0", "18446744073709551615.0"}, results);
+    }
+
+    @Test
+    public void testLongColumnsMatchBindings() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCompileToMethodHandles(true);
+        CompiledExpression compiled = new ExpressionEvaluator(config).compile("let(a, mult(x, y), div(a, 4))");
+
+        long[] x = {1, 8, -12, Long.MIN_VALUE, 1000};
+        long[] y = {4, 3, 7, -1, 10};
+        Map<String, Column> columns = new HashMap<String, Column>();
+        columns.put("x", Column.of(x));
+        columns.put("y", Column.of(y));
+        String[] results = new String[x.length];
+        compiled.evaluate(columns, results);
+
+        Map<String, String> bindings = new HashMap<String, String>();
+        for (int row = 0; row < x.length; row++) {
+            bindings.put("x", String.valueOf(x[row]));
+            bindings.put("y", String.valueOf(y[row]));
+            assertEquals("row " + row + " had unexpected result", compiled.evaluate(bindings), results[row]);
+        }
+    }
+
+    @Test
+    public void testColumnErrorReportsRow() throws EvaluationException {
+        Map<String, Column> columns = new HashMap<String, Column>();
+        columns.put("x", Column.of(new long[] {1, 2, 0, 4}));
+        String[] results = new String[4];
+        try {
+            new ExpressionEvaluator().compile("div(12, x)").evaluate(columns, results);
+            fail("expected an EvaluationException");
+        } catch (EvaluationException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().startsWith("error evaluating row 2: "));
+        }
+        assertArrayEquals("rows before the error had unexpected results", new String[] {"12", "6", null, null},
+                results);
+    }
+
+    @Test
+    public void testVectorizedColumns() throws EvaluationException {
+        // passes whether or not the SIMD kernels are available, since the results must be the same either way
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setVectorizeColumns(true);
+        String expression = "let(a, mult(x, y), sub(add(a, x, 7), y))";
+        CompiledExpression vectorized = new ExpressionEvaluator(config).compile(expression);
+        CompiledExpression scalar = new ExpressionEvaluator().compile(expression);
+
+        // not a multiple of any vector length, with some rows which overflow
+        int rows = 3001;
+        long[] x = new long[rows];
+        long[] y = new long[rows];
+        Random random = new Random(7);
+        for (int row = 0; row < rows; row++) {
+            x[row] = row % 97 == 0 ? Long.MAX_VALUE - row : random.nextInt();
+            y[row] = row % 89 == 0 ? 1L << 40 : random.nextInt(2000) - 1000;
+        }
+        Map<String, Column> columns = new HashMap<String, Column>();
+        columns.put("x", Column.of(x));
+        columns.put("y", Column.of(y));
+
+        String[] expected = new String[rows];
+        scalar.evaluate(columns, expected);
+        String[] results = new String[rows];
+        vectorized.evaluate(columns, results);
+        assertArrayEquals("vectorized columns had unexpected results", expected, results);
+    }
+
+    @Test
+    public void testTracingMatchesUntraced() throws EvaluationException {
+        // tracing evaluates every call with Values rather than longs or method handles
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCompileToMethodHandles(true);
+        config.setTracing(true);
+        String expression = "let(a, mult(x, y), sub(add(a, x, 7), div(a, 3)))";
+        CompiledExpression traced = new ExpressionEvaluator(config).compile(expression);
+        CompiledExpression untraced = new ExpressionEvaluator().compile(expression);
+
+        String[][] rows = {{"3", "4"}, {"9223372036854775807", "2"}, {"1.5", "-2"}, {"-7", "0"}};
+        Map<String, String> bindings = new HashMap<String, String>();
+        for (String[] row : rows) {
+            bindings.put("x", row[0]);
+            bindings.put("y", row[1]);
+            assertEquals("traced evaluation of " + bindings + " had unexpected result", untraced.evaluate(bindings),
+                    traced.evaluate(bindings));
+        }
+    }
+}
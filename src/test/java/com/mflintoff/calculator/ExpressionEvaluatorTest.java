@@ -1,7 +1,11 @@
 package com.mflintoff.calculator;
 
+import com.mflintoff.calculator.function.NumericMode;
 import org.junit.Test;
 
+import java.math.MathContext;
+import java.math.RoundingMode;
+
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -96,4 +100,64 @@ public class ExpressionEvaluatorTest {
         assertEquals("evaluation had unexpected result", "40", result);
     }
 
+    @Test
+    public void testIntegerOverflow() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        String result = evaluator.evaluate("sub(add(9223372036854775807, 9223372036854775807), 9223372036854775807)");
+        assertEquals("evaluation that overflows a long had unexpected result", "9223372036854775807", result);
+
+        result = evaluator.evaluate("let(a, mult(4294967296, 4294967296), add(a, 1))");
+        assertEquals("let bound to an overflowed value had unexpected result", "18446744073709551617", result);
+    }
+
+    @Test
+    public void testDivisionResultForms() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        // trailing zeros are stripped from division results, and the negative scale carries into later operations
+        assertEquals("division had unexpected result", "1E+2", evaluator.evaluate("div(1000, 10)"));
+        assertEquals("multiplication had unexpected result", "1E+2", evaluator.evaluate("mult(div(1000, 10), 1)"));
+        assertEquals("subtraction had unexpected result", "0E+2", evaluator.evaluate("sub(div(1000, 10), div(1000, 10))"));
+        assertEquals("addition had unexpected result", "200", evaluator.evaluate("add(div(1000, 10), div(1000, 10))"));
+        assertEquals("inexact division had unexpected result", "3.5", evaluator.evaluate("add(div(7, 2), 0)"));
+    }
+
+    @Test
+    public void testLiteralTextPreserved() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        assertEquals("literal had unexpected result", "007", evaluator.evaluate("let(a, 007, a)"));
+        assertEquals("arithmetic on literal had unexpected result", "8", evaluator.evaluate("let(a, 007, add(a, 1))"));
+    }
+
+    @Test
+    public void testNumericMode() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setNumericMode(NumericMode.DOUBLE);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        assertEquals("double division had unexpected result", "0.3333333333333333", evaluator.evaluate("div(1, 3)"));
+        assertEquals("double addition had unexpected result", "0.30000000000000004",
+                evaluator.evaluate("add(0.1, 0.2)"));
+        assertEquals("integer arithmetic should stay exact", "1000000000000000001",
+                evaluator.evaluate("add(999999999999999999, 2)"));
+
+        config.setNumericMode(NumericMode.precision(new MathContext(4, RoundingMode.HALF_EVEN)));
+        evaluator = new ExpressionEvaluator(config);
+        assertEquals("division had unexpected precision", "0.6667", evaluator.evaluate("div(2, 3)"));
+        assertEquals("integer result wasn't rounded", "1.235E+5", evaluator.evaluate("add(123456, 1)"));
+    }
+
+    @Test
+    public void testNumericModePerCall() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(10);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        NumericMode cents = NumericMode.scale(2, RoundingMode.HALF_EVEN);
+        assertEquals("division had unexpected scale", "0.33", evaluator.evaluate("div(1, 3)", cents));
+        assertEquals("division had unexpected result in double mode", "0.3333333333333333",
+                evaluator.evaluate("div(1, 3)", NumericMode.DOUBLE));
+        // each mode is cached separately
+        assertEquals("default mode had unexpected result", "0.33333333", evaluator.evaluate("div(1, 3)"));
+        assertEquals("cached division had unexpected scale", "0.33", evaluator.evaluate("div(1, 3)", cents));
+        assertEquals("unexpected number of cached expressions", 3, evaluator.getCacheStatistics().getSize());
+    }
+
 }
@@ -0,0 +1,96 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.FreeVariableNode;
+import com.mflintoff.calculator.expression.FunctionCallNode;
+import com.mflintoff.calculator.expression.LetNode;
+import com.mflintoff.calculator.expression.LiteralNode;
+import com.mflintoff.calculator.expression.Node;
+import com.mflintoff.calculator.expression.VariableNode;
+import com.mflintoff.calculator.function.AddFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.LetFunction;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class ExpressionParserTest {
+
+    private static Node parse(String expression) throws ExpressionParseException {
+        Map<String, Function> functions = new HashMap<String, Function>();
+        functions.put("add", new AddFunction());
+        functions.put("let", new LetFunction());
+        return new ExpressionParser(expression, functions, EvaluatorConfig.DEFAULT_MAX_DEPTH).parse();
+    }
+
+    private static int errorPosition(String expression) {
+        try {
+            parse(expression);
+        } catch (ExpressionParseException e) {
+            return e.getPosition();
+        }
+        fail("expected expression to be rejected: " + expression);
+        return -1;
+    }
+
+    @Test
+    public void testParseTree() throws ExpressionParseException {
+        Node root = parse(" let( a , 5,\tADD(a, b) ) ");
+        assertTrue("expected let node", root instanceof LetNode);
+
+        LetNode let = (LetNode) root;
+        assertEquals("unexpected variable name", "a", let.getVariableName());
+        assertTrue("expected literal value", let.getValue() instanceof LiteralNode);
+
+        FunctionCallNode add = (FunctionCallNode) let.getBody();
+        assertEquals("unexpected number of arguments", 2, add.getArguments().size());
+        assertTrue("expected let variable", add.getArguments().get(0) instanceof VariableNode);
+        assertTrue("expected free variable", add.getArguments().get(1) instanceof FreeVariableNode);
+    }
+
+    @Test
+    public void testFirstArgumentCharacter() throws ExpressionParseException {
+        assertEquals("unexpected parse", "add(12,3)", parse("add(12,3)").toString());
+    }
+
+    @Test
+    public void testErrorPositions() {
+        assertEquals("unexpected position for missing end bracket", 14, errorPosition("add(3, add(3,3"));
+        assertEquals("unexpected position for unknown function", 7, errorPosition("add(3, unknown(a, 5))"));
+        assertEquals("unexpected position for empty argument", 4, errorPosition("add(,1)"));
+        assertEquals("unexpected position for trailing input", 9, errorPosition("add(1,2) 3"));
+        assertEquals("unexpected position for missing comma", 6, errorPosition("add(1 2)"));
+        assertEquals("unexpected position for too many arguments", 0, errorPosition("let(a, 3, 5, add(a, 5))"));
+    }
+
+    @Test
+    public void testErrorReason() {
+        try {
+            parse("add(1 2)");
+            fail("expected expression to be rejected");
+        } catch (ExpressionParseException e) {
+            assertEquals("unexpected reason", "expected ',' or ')' but found '2'", e.getReason());
+            assertEquals("unexpected message", e.getReason() + " at position 6", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testWideExpression() throws ExpressionParseException {
+        int numArgs = 200000;
+        StringBuilder expression = new StringBuilder("add(0");
+        for (int i = 1; i < numArgs; i++) {
+            expression.append(", ").append(i);
+        }
+        expression.append(')');
+
+        FunctionCallNode add = (FunctionCallNode) parse(expression.toString());
+        assertEquals("unexpected number of arguments", numArgs, add.getArguments().size());
+    }
+}
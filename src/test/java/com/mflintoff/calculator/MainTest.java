@@ -3,6 +3,13 @@ package com.mflintoff.calculator;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.SystemOutRule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -14,6 +21,9 @@ public class MainTest {
     @Rule
     public final SystemOutRule systemOutRule = new SystemOutRule().enableLog();
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private static final String USAGE_INSTRUCTIONS_STARTS_WITH = "usage: calculator";
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
@@ -40,6 +50,16 @@ public class MainTest {
         assertEquals("5" + LINE_SEPARATOR, systemOutRule.getLog());
     }
 
+    @Test
+    public void testPrecision() {
+        // parsed without commons-cli, unlike the same options combined with a value which looks like an option
+        String[] args = {"-l", "ERROR", "-p", "scale=2", "-e", "div(10, 3)"};
+        Main.main(args);
+        String[] negativeArgs = {"-l", "ERROR", "--precision", "scale=2", "-e", "-1"};
+        Main.main(negativeArgs);
+        assertEquals("3.33" + LINE_SEPARATOR + "-1" + LINE_SEPARATOR, systemOutRule.getLog());
+    }
+
     @Test
     public void testInvalidLogLevel() {
         String[] args = {"-loglevel", "ERR", "-expression", "add(5,5)"};
@@ -52,7 +72,26 @@ public class MainTest {
     public void testMissingExpression() {
         String[] args = {"-loglevel", "ERROR"};
         Main.main(args);
-        String expectedOutputStartsWith = "Missing required option: expression" + LINE_SEPARATOR + USAGE_INSTRUCTIONS_STARTS_WITH;
+        String expectedOutputStartsWith = "Missing required option: expression, input, serve or socket" + LINE_SEPARATOR + USAGE_INSTRUCTIONS_STARTS_WITH;
+        assertTrue(systemOutRule.getLog().startsWith(expectedOutputStartsWith));
+    }
+
+    @Test
+    public void testInputFile() throws IOException {
+        File input = temporaryFolder.newFile("expressions.txt");
+        Files.write(input.toPath(), Arrays.asList("add(2,2)", "let(a, 5, mult(a, a))", "div(10,2)"),
+                StandardCharsets.UTF_8);
+        String[] args = {"-l", "ERROR", "--input", input.getPath()};
+        Main.main(args);
+        assertEquals("4" + LINE_SEPARATOR + "25" + LINE_SEPARATOR + "5" + LINE_SEPARATOR, systemOutRule.getLog());
+    }
+
+    @Test
+    public void testExpressionAndInput() {
+        String[] args = {"-l", "ERROR", "-e", "add(5,5)", "-i", "-"};
+        Main.main(args);
+        String expectedOutputStartsWith = "Only one of the options expression, input, serve and socket can be given" + LINE_SEPARATOR
+                + USAGE_INSTRUCTIONS_STARTS_WITH;
         assertTrue(systemOutRule.getLog().startsWith(expectedOutputStartsWith));
     }
 }
@@ -0,0 +1,167 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.expression.FunctionCallNode;
+import com.mflintoff.calculator.function.NumericMode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.mflintoff.calculator.TestSupport.bindings;
+import static com.mflintoff.calculator.TestSupport.evaluate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class PlanFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final List<String> EXPRESSIONS = Arrays.asList("add(1, 2)", "add(x, mult(2, 3))",
+            "let(a, 5, add(a, a))", "let(a, add(x, y), let(b, mult(a, 10), add(b, b)))", "add(007, x)",
+            "div(x, 3.000)", "add(mult(x, y), mult(x, y), z)", "neg(add(x, 9223372036854775807))", "sub(x, 1E+2)");
+
+    private static ExpressionEvaluator evaluator(int cacheSize, NumericMode numericMode) {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCacheSize(cacheSize);
+        config.setNumericMode(numericMode);
+        return TestSupport.evaluator(config, new TestSupport.NegateFunction());
+    }
+
+    private void assertRoundTrip(NumericMode numericMode, int cacheSize) throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        ExpressionEvaluator writer = evaluator(0, numericMode);
+        assertEquals("unexpected number of plans written", EXPRESSIONS.size(), writer.writePlans(EXPRESSIONS, file));
+
+        ExpressionEvaluator reader = evaluator(cacheSize, numericMode);
+        assertEquals("unexpected number of plans loaded", EXPRESSIONS.size(), reader.loadPlans(file));
+        Map<String, String> bindings = bindings("x", "7", "y", "0.5", "z", "-3");
+        for (String expression : EXPRESSIONS) {
+            CompiledExpression expected = writer.compile(expression);
+            CompiledExpression loaded = reader.compile(expression);
+            assertEquals(expression + " was loaded as a different tree", expected.toString(), loaded.toString());
+            assertEquals(expression + " has different free variables",
+                    Arrays.asList(expected.getFreeVariableNames()), Arrays.asList(loaded.getFreeVariableNames()));
+            assertEquals(expression + " had unexpected result", evaluate(expected, bindings),
+                    evaluate(loaded, bindings));
+            assertEquals(expression + " had unexpected result when unbound", evaluate(expected, bindings()),
+                    evaluate(loaded, bindings()));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws EvaluationException, IOException {
+        assertRoundTrip(NumericMode.DEFAULT, 0);
+        assertRoundTrip(NumericMode.DEFAULT, 100);
+        assertRoundTrip(NumericMode.DOUBLE, 0);
+        assertRoundTrip(NumericMode.parse("precision=5"), 100);
+    }
+
+    @Test
+    public void testLoadedPlanIsUsed() throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        ExpressionEvaluator writer = evaluator(0, NumericMode.DEFAULT);
+        // the first three have the same tokens, since none of their whitespace separates two atoms
+        writer.writePlans(Arrays.asList("add(mult(x, y), mult(x, y))", "add(mult(x, y), mult(x, y))",
+                "add(mult(x,y),mult(x,y))", "add(1, 2)"), file);
+
+        ExpressionEvaluator reader = evaluator(0, NumericMode.DEFAULT);
+        assertEquals("duplicate expressions were written", 2, reader.loadPlans(file));
+        FunctionCallNode root = (FunctionCallNode) reader.compile(" add( mult(x, y), mult(x, y) ) ").getRoot();
+        assertSame("shared subexpression was not preserved", root.getArguments().get(0), root.getArguments().get(1));
+        assertEquals("folded constant was not loaded", "3", reader.compile("add(1,2)").getRoot().toString());
+        assertEquals("expression without a plan was not parsed", "12", reader.evaluate("mult(3, 4)"));
+        assertEquals("expression in another mode was not parsed", "0.33",
+                reader.evaluate("div(1, 3)", NumericMode.parse("scale=2")));
+    }
+
+    @Test
+    public void testWhitespaceBetweenAtomsIsSignificant() throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        evaluator(0, NumericMode.DEFAULT).writePlans(Arrays.asList("add(12, 3)"), file);
+        for (int cacheSize : new int[] {0, 100}) {
+            ExpressionEvaluator reader = evaluator(cacheSize, NumericMode.DEFAULT);
+            reader.loadPlans(file);
+            assertEquals("plan was not used", "15", reader.evaluate(" add( 12,3 ) "));
+            try {
+                reader.compile("add(1 2, 3)");
+                fail("an expression which doesn't parse was answered by a plan");
+            } catch (EvaluationException e) {
+                assertEquals("unexpected message", "expected ',' or ')' but found '2' at position 6", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testManyPlans() throws EvaluationException, IOException {
+        List<String> expressions = new ArrayList<String>();
+        for (int i = 0; i < 20000; i++) {
+            expressions.add("add(x, mult(" + i + ", y))");
+        }
+        Path file = folder.newFile().toPath();
+        evaluator(0, NumericMode.DEFAULT).writePlans(expressions, file);
+
+        ExpressionEvaluator reader = evaluator(0, NumericMode.DEFAULT);
+        assertEquals("unexpected number of plans loaded", expressions.size(), reader.loadPlans(file));
+        for (int i = 0; i < expressions.size(); i++) {
+            assertEquals("unexpected result of " + expressions.get(i), String.valueOf(1 + 2 * i),
+                    reader.compile(expressions.get(i)).evaluate(bindings("x", "1", "y", "2")));
+        }
+    }
+
+    @Test
+    public void testUnregisteredFunction() throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        evaluator(0, NumericMode.DEFAULT).writePlans(EXPRESSIONS, file);
+        try {
+            new ExpressionEvaluator().loadPlans(file);
+            fail("plans of an unregistered function should fail to load");
+        } catch (EvaluationException e) {
+            assertEquals("unexpected message", "plans refer to unregistered function: neg", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testOtherNumericMode() throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        evaluator(0, NumericMode.DOUBLE).writePlans(EXPRESSIONS, file);
+        try {
+            evaluator(0, NumericMode.DEFAULT).loadPlans(file);
+            fail("plans of another numeric mode should fail to load");
+        } catch (EvaluationException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().contains("numeric mode double"));
+        }
+    }
+
+    @Test
+    public void testNotAPlanFile() throws EvaluationException, IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, "add(1, 2)\n".getBytes("UTF-8"));
+        try {
+            new ExpressionEvaluator().loadPlans(file);
+            fail("a file which isn't a plan file should fail to load");
+        } catch (IOException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().startsWith("not a plan file"));
+        }
+
+        Files.write(file, new byte[] {0x43, 0x50, 0x4c, 0x4e, 0, 1, 0, 0});
+        try {
+            new ExpressionEvaluator().loadPlans(file);
+            fail("a truncated plan file should fail to load");
+        } catch (IOException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().startsWith("plan file is truncated"));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.function.ArithmeticFunction;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.InexactResultException;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares evaluating expressions as they're read with parsing them first.
+ *
+ * @author Malcolm Flintoff
+ */
+public class StreamingEvaluatorTest {
+
+    private static final String[] EXPRESSIONS = {"add(1, 2)", " 42 ", "x", "add(x, 1)", "mult(add(2, 3), sub(10, 4))",
+            "div(1, 3)", "div(7, 0)", "add(9223372036854775807, 1, -2)", "mult(1E+2, 0.10, 3)", "sub(5)",
+            "ADD(1, Mult(2, 3))", "let(a, 5, add(a, a))", "let(a, 5, let(b, mult(a, 10), add(b, b)))",
+            "let(a, 5, add(let(a, 10, a), a))", "let(a, 1, let(a, add(a, 1), a))", "add(let(a, 2, a), a)",
+            "let(a, div(1, 0), 1)", "let(a, 5)", "let( a , 2 , mult( a , a ) )", "let(add(1, 2), 3, 4)",
+            "ifzero(0, 1, div(1, 0))", "ifzero(sub(a, a), a, 2)", "let(a, 0, ifzero(a, add(a, 7), b))",
+            "let(a, 3, letsq(b, a, add(a, b)))", "letsq (a, 3, letsq(b, a, b))", "ifzero(0, 1)", "ifzero(1, 2, (",
+            "add(ifzero(1, 2, 3)", "add(div(1, 0), mult(2, 3))", "add(div(1, 0), nosuch(1))",
+            "add(div(1, 0), div(2, 0))", "div(add(1, div(1, 0)), 0)", "add(1, 2) 3", "add(1, 2))", "add(1 2)",
+            "add(1,", "add(", "", "  ", "(1)", "add(1, ,2)", "add(1, 2", "nosuch(1, 2)", "div(1)",
+            "add()", "add(x y)", "let(a, 1, 2, 3)", "let(a", "let(a, 1, add(a, b)", "add(a,b)c",
+            "addone(1, 2, 3)", "addone(5)", "add(addone(1, 2.5), addone(9223372036854775807, -1))"};
+
+    private static ExpressionEvaluator evaluator(int maxDepth, boolean optimize) {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setMaxDepth(maxDepth);
+        config.setOptimize(optimize);
+        config.setCacheSize(0);
+        return TestSupport.evaluator(config, new TestSupport.IfZeroFunction(), new TestSupport.SquareLetFunction(),
+                new AddOneFunction());
+    }
+
+    private static String evaluate(ExpressionEvaluator evaluator, String expression) {
+        try {
+            return evaluator.evaluate(expression);
+        } catch (EvaluationException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static String evaluate(ExpressionEvaluator evaluator, Reader reader) throws IOException {
+        try {
+            return evaluator.evaluate(reader);
+        } catch (EvaluationException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    @Test
+    public void testSameResultsAsParsing() throws IOException {
+        for (boolean optimize : new boolean[] {false, true}) {
+            ExpressionEvaluator evaluator = evaluator(1000, optimize);
+            for (String expression : EXPRESSIONS) {
+                String expected = evaluate(evaluator, expression);
+                assertEquals(expression + " had unexpected result", expected,
+                        evaluate(evaluator, new StringReader(expression)));
+                assertEquals(expression + " had unexpected result when read a character at a time", expected,
+                        evaluate(evaluator, new TrickleReader(expression)));
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDepth() throws IOException {
+        ExpressionEvaluator evaluator = evaluator(3, true);
+        String[] expressions = {"add(1, add(2, add(3, 4)))", "add(1, add(2, add(3, add(4, 5))))",
+                "let(a, 1, let(b, 2, let(c, 3, a)))", "add(1, ifzero(0, add(2, 3), 4))",
+                "add(1, add(2, ifzero(0, add(2, 3), 4)))", "add(1, add(2, add(3, ifzero(0, 1, 2))))"};
+        for (String expression : expressions) {
+            assertEquals(expression + " had unexpected result", evaluate(evaluator, expression),
+                    evaluate(evaluator, new StringReader(expression)));
+        }
+    }
+
+    @Test
+    public void testHugeExpression() throws IOException {
+        // about 100MB of text, which is never held in memory
+        final int numArgs = 10000000;
+        Reader reader = new Reader() {
+            private final char[] argument = "123456789,".toCharArray();
+            private final StringBuilder pending = new StringBuilder("let(x, 2, add(");
+            private int written = 0;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                int read = 0;
+                while (read < length) {
+                    if (pending.length() == 0) {
+                        if (written == numArgs) {
+                            break;
+                        }
+                        written++;
+                        pending.append(argument);
+                        if (written == numArgs) {
+                            pending.setLength(pending.length() - 1);
+                            pending.append(", mult(x, x)))");
+                        }
+                    }
+                    int n = Math.min(length - read, pending.length());
+                    pending.getChars(0, n, buffer, offset + read);
+                    pending.delete(0, n);
+                    read += n;
+                }
+                return read == 0 ? -1 : read;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        assertEquals("huge addition had unexpected result", String.valueOf(123456789L * numArgs + 4),
+                evaluate(evaluator(1000, true), reader));
+    }
+
+    @Test
+    public void testChannel() throws EvaluationException, IOException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setMetricsEnabled(true);
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        byte[] expression = "mult(add(1, 2), 3)".getBytes("UTF-8");
+        assertEquals("unexpected result", "9",
+                evaluator.evaluate(Channels.newChannel(new ByteArrayInputStream(expression))));
+
+        EvaluationMetrics metrics = evaluator.getMetrics();
+        assertEquals("unexpected number of evaluations", 1, metrics.getEvaluations());
+        assertEquals("unexpected number of errors", 0, metrics.getErrors());
+    }
+
+    /**
+     * Returns the expression one character at a time.
+     */
+    private static class TrickleReader extends Reader {
+        private final String expression;
+        private int index = 0;
+
+        TrickleReader(String expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (index == expression.length()) {
+                return -1;
+            }
+            buffer[offset] = expression.charAt(index++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * addone(a, b, ...) evaluates to one more than the sum of its arguments. It combines its arguments in its own
+     * execute methods, without implementing AccumulatingFunction, so mustn't be accumulated.
+     */
+    private static class AddOneFunction extends ArithmeticFunction {
+        public String getName() {
+            return "addone";
+        }
+
+        public long applyLong(long result, long argument) {
+            // always combined by execute
+            throw InexactResultException.INSTANCE;
+        }
+
+        public long completeLong(long result) {
+            return Math.addExact(result, 1);
+        }
+
+        protected BigDecimal applyDecimal(BigDecimal result, BigDecimal argument) {
+            return result.add(argument);
+        }
+
+        public Value execute(Value[] arguments) throws FunctionExecutionException {
+            return execute(0, arguments, 0);
+        }
+
+        public Value execute(long result, Value[] arguments, int index) throws FunctionExecutionException {
+            BigDecimal sum = BigDecimal.valueOf(result).add(BigDecimal.ONE);
+            for (int i = index; i < arguments.length; i++) {
+                sum = sum.add(arguments[i].toBigDecimal());
+            }
+            return Value.of(sum);
+        }
+    }
+}
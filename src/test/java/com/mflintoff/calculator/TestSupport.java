@@ -0,0 +1,146 @@
+package com.mflintoff.calculator;
+
+import com.mflintoff.calculator.function.BindingFunction;
+import com.mflintoff.calculator.function.Function;
+import com.mflintoff.calculator.function.FunctionExecutionException;
+import com.mflintoff.calculator.function.LazyArguments;
+import com.mflintoff.calculator.function.LazyFunction;
+import com.mflintoff.calculator.function.Value;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluators, bindings and functions shared by the tests which compare different ways of evaluating the same
+ * expressions.
+ *
+ * @author Malcolm Flintoff
+ */
+public final class TestSupport {
+
+    private TestSupport() {
+    }
+
+    /**
+     * Creates an evaluator with a configuration, and registers functions with it.
+     *
+     * @param config the configuration.
+     * @param functions the functions to register.
+     * @return the evaluator.
+     */
+    public static ExpressionEvaluator evaluator(EvaluatorConfig config, Function... functions) {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator(config);
+        for (Function function : functions) {
+            evaluator.registerFunction(function);
+        }
+        return evaluator;
+    }
+
+    /**
+     * Evaluates a compiled expression, returning any error as text so that results and errors can be compared alike.
+     *
+     * @param compiled the compiled expression.
+     * @param bindings the variable bindings.
+     * @return the result, or "error: " followed by the error message.
+     */
+    public static String evaluate(CompiledExpression compiled, Map<String, String> bindings) {
+        try {
+            return compiled.evaluate(bindings);
+        } catch (EvaluationException e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Returns variable bindings.
+     *
+     * @param namesAndValues each variable name followed by its value.
+     * @return the bindings.
+     */
+    public static Map<String, String> bindings(String... namesAndValues) {
+        Map<String, String> bindings = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            bindings.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return bindings;
+    }
+
+    /**
+     * neg(a) evaluates to the negation of a. It only implements the string based execute method.
+     */
+    public static class NegateFunction implements Function {
+        public String getName() {
+            return "neg";
+        }
+
+        public String execute(List<String> arguments) {
+            return new BigDecimal(arguments.get(0)).negate().toString();
+        }
+
+        public int getMinNumberOfArgsSupported() {
+            return 1;
+        }
+
+        public int getMaxNumberOfArgsSupported() {
+            return 1;
+        }
+    }
+
+    /**
+     * ifzero(c, a, b) evaluates to a if c is zero, otherwise b, evaluating only c and the branch taken.
+     */
+    public static class IfZeroFunction implements LazyFunction {
+        public String getName() {
+            return "ifzero";
+        }
+
+        public Value execute(LazyArguments arguments) throws FunctionExecutionException {
+            return arguments.tail(isZero(arguments.evaluate(0)) ? 1 : 2);
+        }
+
+        public String execute(List<String> arguments) throws FunctionExecutionException {
+            return isZero(Value.parse(arguments.get(0))) ? arguments.get(1) : arguments.get(2);
+        }
+
+        private static boolean isZero(Value value) throws FunctionExecutionException {
+            return value.toBigDecimal().signum() == 0;
+        }
+
+        public int getMinNumberOfArgsSupported() {
+            return 3;
+        }
+
+        public int getMaxNumberOfArgsSupported() {
+            return 3;
+        }
+    }
+
+    /**
+     * letsq(v, value, body) binds v to the square of the value while evaluating the body.
+     */
+    public static class SquareLetFunction implements BindingFunction {
+        public String getName() {
+            return "letsq";
+        }
+
+        public Value execute(LazyArguments arguments) throws FunctionExecutionException {
+            BigDecimal value = arguments.evaluate(0).toBigDecimal();
+            arguments.bind(Value.of(value.multiply(value)));
+            return arguments.evaluate(1);
+        }
+
+        public String execute(List<String> arguments) {
+            return arguments.get(2);
+        }
+
+        public int getMinNumberOfArgsSupported() {
+            return 3;
+        }
+
+        public int getMaxNumberOfArgsSupported() {
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class ColumnProgramTest {
+
+    private static ColumnProgram lower(String expression) throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setOptimize(false);
+        return ColumnProgram.compile(new ExpressionEvaluator(config).compile(expression).getRoot());
+    }
+
+    @Test
+    public void testLowering() throws EvaluationException {
+        ColumnProgram program = lower("let(a, add(x, 1), mult(a, a, y))");
+        assertNotNull("expression was not lowered", program);
+        assertEquals("unexpected number of instructions", 3, program.size());
+
+        assertEquals("unexpected first operation", ColumnProgram.ADD, program.getOperation(0));
+        assertEquals("unexpected first operand", ColumnProgram.COLUMN, program.getOperandKind(0, 0));
+        assertEquals("unexpected first operand", 0, program.getOperand(0, 0));
+        assertEquals("unexpected second operand", ColumnProgram.CONSTANT, program.getOperandKind(0, 1));
+        assertEquals("unexpected constant", 1, program.getConstant(program.getOperand(0, 1)));
+
+        // the let variable refers to the register holding its value
+        assertEquals("unexpected second operation", ColumnProgram.MUL, program.getOperation(1));
+        assertEquals("unexpected let operand", ColumnProgram.REGISTER, program.getOperandKind(1, 0));
+        assertEquals("unexpected let operand", 0, program.getOperand(1, 0));
+        assertEquals("unexpected let operand", ColumnProgram.REGISTER, program.getOperandKind(1, 1));
+        assertEquals("unexpected let operand", 0, program.getOperand(1, 1));
+
+        assertEquals("unexpected third operation", ColumnProgram.MUL, program.getOperation(2));
+        assertEquals("unexpected chained operand", ColumnProgram.REGISTER, program.getOperandKind(2, 0));
+        assertEquals("unexpected chained operand", 1, program.getOperand(2, 0));
+        assertEquals("unexpected column operand", ColumnProgram.COLUMN, program.getOperandKind(2, 1));
+        assertEquals("unexpected column operand", 1, program.getOperand(2, 1));
+    }
+
+    @Test
+    public void testUnsupportedExpressions() throws EvaluationException {
+        assertNull("division was lowered", lower("add(div(x, 2), 1)"));
+        assertNull("decimal literal was lowered", lower("add(x, 1.5)"));
+        assertNull("variable result was lowered", lower("let(a, x, a)"));
+
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i <= ColumnProgram.MAX_DEPTH; i++) {
+            expression.append("add(1, ");
+        }
+        expression.append('x');
+        for (int i = 0; i <= ColumnProgram.MAX_DEPTH; i++) {
+            expression.append(')');
+        }
+        assertNull("deep expression was lowered", lower(expression.toString()));
+    }
+}
@@ -0,0 +1,116 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import com.mflintoff.calculator.TestSupport;
+import org.junit.Test;
+
+import static com.mflintoff.calculator.TestSupport.bindings;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class LazyFunctionTest {
+
+    private static ExpressionEvaluator createEvaluator() {
+        return TestSupport.evaluator(new EvaluatorConfig(), new TestSupport.IfZeroFunction(),
+                new TestSupport.SquareLetFunction());
+    }
+
+    @Test
+    public void testUnusedArgumentNotEvaluated() throws EvaluationException {
+        CompiledExpression compiled = createEvaluator().compile("ifzero(x, 1, div(1, x))");
+        assertEquals("division by zero wasn't skipped", "1", compiled.evaluate(bindings("x", "0")));
+        assertEquals("unexpected result of other branch", "0.25", compiled.evaluate(bindings("x", "4")));
+    }
+
+    @Test
+    public void testArgumentErrorReportedAsIs() throws EvaluationException {
+        ExpressionEvaluator evaluator = createEvaluator();
+        String expected;
+        try {
+            evaluator.compile("div(1, y)").evaluate(bindings("y", "0"));
+            fail("division by zero should fail");
+            return;
+        } catch (EvaluationException e) {
+            expected = e.getMessage();
+        }
+        try {
+            evaluator.compile("ifzero(0, div(1, y), 2)").evaluate(bindings("y", "0"));
+            fail("division by zero in a lazy argument should fail");
+        } catch (EvaluationException e) {
+            assertEquals("lazy argument error was reported differently", expected, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testSharedSubexpressions() throws EvaluationException {
+        // the optimizer merges the calls of mult, but the one in the lazy argument may not be evaluated
+        ExpressionEvaluator evaluator = createEvaluator();
+        CompiledExpression compiled = evaluator.compile("add(ifzero(c, 0, mult(x, x)), mult(x, x))");
+        assertEquals("unexpected result skipping shared call", "9", compiled.evaluate(bindings("c", "0", "x", "3")));
+        assertEquals("unexpected result using shared call", "18", compiled.evaluate(bindings("c", "1", "x", "3")));
+
+        compiled = evaluator.compile("add(ifzero(c, 1, mult(x, x)), ifzero(c, mult(x, x), 2))");
+        assertEquals("unexpected result with call shared by arguments", "10",
+                compiled.evaluate(bindings("c", "0", "x", "3")));
+        assertEquals("unexpected result with call shared by arguments", "11",
+                compiled.evaluate(bindings("c", "1", "x", "3")));
+    }
+
+    @Test
+    public void testDeeplyNestedTailArguments() throws EvaluationException {
+        // deep enough to overflow the default thread stack if tail arguments were evaluated recursively
+        int depth = 100000;
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("ifzero(c, ");
+        }
+        expression.append("add(x, 1)");
+        for (int i = 0; i < depth; i++) {
+            expression.append(", ").append(i).append(')');
+        }
+        CompiledExpression compiled = createEvaluator().compile(expression.toString());
+        assertEquals("nested tail arguments had unexpected result", "3", compiled.evaluate(bindings("c", "0", "x", "2")));
+        assertEquals("unexpected result of outermost argument", String.valueOf(depth - 1),
+                compiled.evaluate(bindings("c", "1", "x", "2")));
+    }
+
+    @Test
+    public void testDeeplyNestedArgumentsFailCleanly() throws EvaluationException {
+        // each condition is evaluated, rather than made the result, so uses Java stack
+        int depth = 200000;
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("ifzero(");
+        }
+        expression.append('x');
+        for (int i = 0; i < depth; i++) {
+            expression.append(", 0, 1)");
+        }
+        try {
+            createEvaluator().compile(expression.toString()).evaluate(bindings("x", "0"));
+            fail("expected the evaluation to fail");
+        } catch (EvaluationException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().contains("too deeply"));
+        }
+    }
+
+    @Test
+    public void testBindingFunction() throws EvaluationException {
+        ExpressionEvaluator evaluator = createEvaluator();
+        assertEquals("unexpected result of binding function", "18",
+                evaluator.compile("letsq(a, add(x, 1), add(a, a))").evaluate(bindings("x", "2")));
+        assertEquals("binding function didn't shadow let", "10",
+                evaluator.compile("let(a, 1, add(letsq(a, 3, a), a))").evaluate());
+        assertEquals("let didn't shadow binding function", "9",
+                evaluator.compile("letsq(a, 2, add(let(a, 1, a), a, a))").evaluate());
+        assertEquals("unexpected string form", "letsq(a,2,add(a,a))",
+                evaluator.compile("letsq(a, 2, add(a, a))").toString());
+    }
+}
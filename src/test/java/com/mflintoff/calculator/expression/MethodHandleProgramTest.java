@@ -0,0 +1,102 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import com.mflintoff.calculator.TestSupport;
+import com.mflintoff.calculator.function.Function;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.mflintoff.calculator.TestSupport.evaluate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class MethodHandleProgramTest {
+
+    private static final String[] EXPRESSIONS = {
+            "add(mult(x, 3), let(a, sub(x, y), div(a, 2)))",
+            "let(a, mult(x, y), let(b, add(a, a, 7), sub(b, div(b, y), x)))",
+            "div(mult(x, 10), y)",
+            "mult(x, x, x, y, y)",
+    };
+
+    private static ExpressionEvaluator evaluator(boolean compileToMethodHandles, Function... functions) {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setCompileToMethodHandles(compileToMethodHandles);
+        return TestSupport.evaluator(config, functions);
+    }
+
+    @Test
+    public void testSameResultsAsInterpreter() throws EvaluationException {
+        Random random = new Random(42);
+        long[] interesting = {0, 1, -1, 2, 10, 1000, Long.MAX_VALUE, Long.MIN_VALUE, 3037000500L};
+        for (String expression : EXPRESSIONS) {
+            CompiledExpression compiled = evaluator(true).compile(expression);
+            CompiledExpression interpreted = evaluator(false).compile(expression);
+            assertTrue(expression + " was not compiled to method handles", compiled.isCompiledToMethodHandles());
+            assertFalse(expression + " was unexpectedly compiled to method handles",
+                    interpreted.isCompiledToMethodHandles());
+
+            Map<String, String> bindings = new HashMap<String, String>();
+            for (int i = 0; i < 500; i++) {
+                long x = i % 2 == 0 ? interesting[random.nextInt(interesting.length)] : random.nextInt(2001) - 1000;
+                long y = i % 3 == 0 ? interesting[random.nextInt(interesting.length)] : random.nextInt(2001) - 1000;
+                bindings.put("x", String.valueOf(x));
+                bindings.put("y", i % 50 == 0 ? "2.5" : String.valueOf(y));
+                assertEquals(expression + " with " + bindings + " had unexpected result",
+                        evaluate(interpreted, bindings), evaluate(compiled, bindings));
+            }
+        }
+    }
+
+    @Test
+    public void testUnsupportedExpressions() throws EvaluationException {
+        ExpressionEvaluator evaluator = evaluator(true, new TestSupport.NegateFunction());
+        assertFalse("user function was compiled to method handles",
+                evaluator.compile("add(neg(x), 1)").isCompiledToMethodHandles());
+        assertFalse("decimal literal was compiled to method handles",
+                evaluator.compile("add(x, 1.5)").isCompiledToMethodHandles());
+        // the result of a let whose body is a variable keeps the text of the literal
+        CompiledExpression compiled = evaluator.compile("let(a, x, a)");
+        assertFalse("let of a variable was compiled to method handles", compiled.isCompiledToMethodHandles());
+    }
+
+    @Test
+    public void testDeepExpressionNotCompiled() throws EvaluationException {
+        int depth = MethodHandleProgram.MAX_DEPTH * 2;
+        StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            expression.append("add(1, ");
+        }
+        expression.append('x');
+        for (int i = 0; i < depth; i++) {
+            expression.append(')');
+        }
+
+        Map<String, String> bindings = new HashMap<String, String>();
+        bindings.put("x", "0");
+        CompiledExpression compiled = evaluator(true).compile(expression.toString());
+        assertFalse("deep expression was compiled to method handles", compiled.isCompiledToMethodHandles());
+        assertEquals("deep expression had unexpected result", String.valueOf(depth), compiled.evaluate(bindings));
+    }
+
+    @Test
+    public void testUnboundVariable() {
+        try {
+            evaluator(true).compile("add(x, 1)").evaluate();
+            fail("unbound variable should fail");
+        } catch (EvaluationException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().contains("x"));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import com.mflintoff.calculator.function.Function;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class OptimizerTest {
+
+    /**
+     * A function which returns a different result on each call.
+     */
+    private static class CountFunction implements Function {
+        private int count = 0;
+
+        public String getName() {
+            return "count";
+        }
+
+        public String execute(List<String> arguments) {
+            return String.valueOf(++count);
+        }
+
+        public int getMinNumberOfArgsSupported() {
+            return 0;
+        }
+
+        public int getMaxNumberOfArgsSupported() {
+            return 0;
+        }
+    }
+
+    private static CompiledExpression compile(String expression) throws EvaluationException {
+        return new ExpressionEvaluator().compile(expression);
+    }
+
+    @Test
+    public void testConstantFolding() throws EvaluationException {
+        CompiledExpression compiled = compile("let(a, 5, let(b, mult(a, 10), add(b, a)))");
+        assertEquals("constant expression was not folded", "55", compiled.toString());
+        assertEquals("folded expression had unexpected result", "55", compiled.evaluate());
+
+        assertEquals("division result form was not preserved", "1E+2", compile("div(1000, 10)").toString());
+    }
+
+    @Test
+    public void testPartialFolding() throws EvaluationException {
+        CompiledExpression compiled = compile("let(a, add(1, 2), mult(a, x))");
+        assertEquals("constant subexpression was not folded", "mult(3,x)", compiled.toString());
+        assertEquals("partially folded expression had unexpected result", "12",
+                compiled.evaluate(Collections.singletonMap("x", "4")));
+    }
+
+    @Test
+    public void testFailingCallNotFolded() throws EvaluationException {
+        CompiledExpression compiled = compile("add(1, div(1, 0))");
+        assertEquals("failing call was folded", "add(1,div(1,0))", compiled.toString());
+        try {
+            compiled.evaluate();
+            fail("expected an EvaluationException");
+        } catch (EvaluationException e) {
+            assertTrue("unexpected message: " + e.getMessage(), e.getMessage().contains("div"));
+        }
+    }
+
+    @Test
+    public void testUnusedLetRemoved() throws EvaluationException {
+        assertEquals("unused let was not removed", "add(x,1)", compile("let(a, y, add(x, 1))").toString());
+        // the value of an unused let is still evaluated if it may fail
+        assertEquals("unused let with a call was removed", "let(a,div(x,0),1)",
+                compile("let(a, div(x, 0), 1)").toString());
+    }
+
+    @Test
+    public void testCommonSubexpressions() throws EvaluationException {
+        Map<String, String> bindings = new HashMap<String, String>();
+        bindings.put("x", "4");
+        bindings.put("y", "5");
+        CompiledExpression compiled = compile("add(mult(x, y), mult(x, y), let(x, 2, mult(x, y)))");
+        FunctionCallNode root = (FunctionCallNode) compiled.getRoot();
+        assertSame("repeated subexpressions were not shared", root.getArguments().get(0), root.getArguments().get(1));
+        assertEquals("shared subexpressions had unexpected result", "50",
+                compiled.evaluate(bindings));
+
+        // the same slot is reused by sibling lets, but their variables are different
+        assertEquals("subexpressions of different lets were shared", "41",
+                compile("add(let(a, x, mult(a, a)), let(a, y, mult(a, a)))").evaluate(bindings));
+    }
+
+    @Test
+    public void testImpureFunctionsNotOptimized() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.registerFunction(new CountFunction());
+        CompiledExpression compiled = evaluator.compile("add(count(), count())");
+        assertEquals("impure function calls were merged", "3", compiled.evaluate());
+        assertEquals("impure function was not called on each evaluation", "7", compiled.evaluate());
+    }
+
+    @Test
+    public void testOptimizationDisabled() throws EvaluationException {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setOptimize(false);
+        CompiledExpression compiled = new ExpressionEvaluator(config).compile("add(1, 2)");
+        assertEquals("expression was optimized", "add(1,2)", compiled.toString());
+        assertEquals("unoptimized expression had unexpected result", "3", compiled.evaluate());
+    }
+}
@@ -0,0 +1,156 @@
+package com.mflintoff.calculator.expression;
+
+import com.mflintoff.calculator.CompiledExpression;
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import com.mflintoff.calculator.TestSupport;
+import com.mflintoff.calculator.function.NumericMode;
+import com.mflintoff.calculator.function.Value;
+import com.mflintoff.calculator.metrics.EvaluationMetrics;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.mflintoff.calculator.TestSupport.evaluate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class ParallelProgramTest {
+
+    private static final String[] ARGUMENTS = {"x", "y", "mult(x, y)", "div(x, 3)", "sub(y, 2.50)", "1E+2",
+            "9223372036854775807", "let(a, add(x, y), mult(a, a))", "div(1000, 10)", "-7"};
+
+    private static ExpressionEvaluator evaluator(int parallelWidth) {
+        return evaluator(parallelWidth, false);
+    }
+
+    private static ExpressionEvaluator evaluator(int parallelWidth, boolean metricsEnabled) {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setParallelWidth(parallelWidth);
+        config.setParallelCost(0);
+        config.setMetricsEnabled(metricsEnabled);
+        return TestSupport.evaluator(config);
+    }
+
+    private static String wideCall(String function, Random random, int width) {
+        // starting with a variable, so that the call isn't folded into a constant
+        StringBuilder expression = new StringBuilder(function).append("(x");
+        for (int i = 1; i < width; i++) {
+            expression.append(", ").append(ARGUMENTS[random.nextInt(ARGUMENTS.length)]);
+        }
+        return expression.append(')').toString();
+    }
+
+    @Test
+    public void testSameResultsAsSequential() {
+        Random random = new Random(42);
+        String[] values = {"0", "1", "-3", "7", "0.5", "12345678901", "z"};
+        ExpressionEvaluator parallel = evaluator(2);
+        ExpressionEvaluator sequential = evaluator(0);
+        for (int n = 0; n < 200; n++) {
+            int width = 2 + random.nextInt(n % 5 == 0 ? 2000 : 20);
+            String expression = wideCall(n % 2 == 0 ? "add" : "mult", random, width);
+            CompiledExpression compiled;
+            CompiledExpression expected;
+            try {
+                compiled = parallel.compile(expression);
+                expected = sequential.compile(expression);
+            } catch (EvaluationException e) {
+                throw new AssertionError(expression + " failed to compile", e);
+            }
+            assertTrue(expression + " was not evaluated in parallel", compiled.isParallel());
+            assertFalse(expression + " was unexpectedly evaluated in parallel", expected.isParallel());
+
+            Map<String, String> bindings = new HashMap<String, String>();
+            for (int i = 0; i < 5; i++) {
+                bindings.put("x", values[random.nextInt(values.length)]);
+                bindings.put("y", values[random.nextInt(values.length)]);
+                assertEquals(expression + " with " + bindings + " had unexpected result",
+                        evaluate(expected, bindings), evaluate(compiled, bindings));
+            }
+        }
+    }
+
+    @Test
+    public void testSequentialCalls() throws EvaluationException {
+        ExpressionEvaluator evaluator = evaluator(3);
+        assertFalse("narrow call was evaluated in parallel", evaluator.compile("add(x, y)").isParallel());
+        assertFalse("non associative call was evaluated in parallel",
+                evaluator.compile("sub(x, y, 1, 2)").isParallel());
+        assertFalse("nested call was evaluated in parallel",
+                evaluator.compile("let(a, mult(x, y), add(a, y, 1))").isParallel());
+        assertFalse("double call was evaluated in parallel",
+                evaluator.compile("add(x, y, 1, 2)", NumericMode.DOUBLE).isParallel());
+
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setParallelWidth(2);
+        assertFalse("cheap call was evaluated in parallel",
+                new ExpressionEvaluator(config).compile("add(x, y, mult(x, y))").isParallel());
+    }
+
+    @Test
+    public void testFailedCallsRecordedOnce() throws EvaluationException {
+        String expression = wideCall("add", new Random(3), 500);
+        Map<String, String> bindings = TestSupport.bindings("x", "1", "y", "z");
+        ExpressionEvaluator parallel = evaluator(2, true);
+        ExpressionEvaluator sequential = evaluator(0, true);
+        CompiledExpression compiled = parallel.compile(expression);
+        assertTrue(expression + " was not evaluated in parallel", compiled.isParallel());
+        assertEquals("unexpected error", evaluate(sequential.compile(expression), bindings),
+                evaluate(compiled, bindings));
+
+        // only the calls of the sequential evaluation which reported the error are recorded
+        EvaluationMetrics expected = sequential.getMetrics();
+        EvaluationMetrics actual = parallel.getMetrics();
+        for (String function : new String[] {"add", "sub", "mult", "div"}) {
+            assertEquals("unexpected " + function + " calls", expected.function(function).getCalls(),
+                    actual.function(function).getCalls());
+            assertEquals("unexpected " + function + " errors", expected.function(function).getErrors(),
+                    actual.function(function).getErrors());
+        }
+        assertEquals("unexpected number of failed evaluations", 1, actual.getErrors());
+
+        bindings.put("y", "2");
+        actual.reset();
+        evaluate(compiled, bindings);
+        assertEquals("calls evaluated in parallel should not be recorded", 0, actual.function("add").getCalls());
+        assertEquals("unexpected number of evaluations", 1, actual.getEvaluations());
+    }
+
+    @Test
+    public void testChunks() throws EvaluationException {
+        Node root = evaluator(0).compile(wideCall("add", new Random(1), 1000)).getRoot();
+        ParallelProgram program = ParallelProgram.compile(root, 1, 2, 2, 0);
+        assertEquals("unexpected number of chunks",
+                ParallelProgram.CHUNKS_PER_THREAD * ForkJoinPool.commonPool().getParallelism(), program.getNumChunks());
+
+        root = evaluator(0).compile("mult(x, y, 2)").getRoot();
+        program = ParallelProgram.compile(root, 0, 2, 2, 0);
+        assertEquals("each argument should have a chunk", 3, program.getNumChunks());
+    }
+
+    @Test
+    public void testOwnPool() throws EvaluationException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CompiledExpression compiled = evaluator(0).compile(wideCall("add", new Random(7), 5000));
+            Node root = compiled.getRoot();
+            ParallelProgram program = ParallelProgram.compile(root, 1, 2, 2, 0, pool);
+            assertEquals("unexpected number of chunks", 4 * ParallelProgram.CHUNKS_PER_THREAD, program.getNumChunks());
+            Value[] freeValues = {Value.parse("0.25"), null};
+            long[] freeLongs = {0, 3};
+            assertEquals("unexpected result", Program.compile(root, 1, 2).execute(freeValues, freeLongs).toString(),
+                    program.execute(freeValues, freeLongs).toString());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
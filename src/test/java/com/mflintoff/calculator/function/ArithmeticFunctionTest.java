@@ -0,0 +1,221 @@
+package com.mflintoff.calculator.function;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the long fast path of the arithmetic functions with the original BigDecimal only implementation.
+ *
+ * @author Malcolm Flintoff
+ */
+public class ArithmeticFunctionTest {
+
+    private static final String[] INTERESTING_ARGUMENTS = {"0", "1", "-1", "10", "100", "3", "7", "-20", "2.5",
+            "1E+2", "0.10", "9223372036854775807", "-9223372036854775808", "4611686018427387904",
+            "99999999999999999999"};
+
+    /**
+     * The original implementation of each function, which combined every argument as a BigDecimal.
+     */
+    private static String reference(String functionName, List<String> arguments) {
+        BigDecimal result = functionName.equals("add") ? new BigDecimal(0) : null;
+        for (String argument : arguments) {
+            BigDecimal number = new BigDecimal(argument);
+            if (result == null) {
+                result = number;
+            } else if (functionName.equals("add")) {
+                result = result.add(number);
+            } else if (functionName.equals("sub")) {
+                result = result.subtract(number);
+            } else if (functionName.equals("mult")) {
+                result = result.multiply(number);
+            } else {
+                try {
+                    result = result.divide(number, 8, RoundingMode.HALF_UP);
+                } catch (ArithmeticException ae) {
+                    return "error";
+                }
+            }
+        }
+        return functionName.equals("div") ? result.stripTrailingZeros().toString() : result.toString();
+    }
+
+    /**
+     * Each function combining every argument as a BigDecimal with a precision: quotients are rounded as they're
+     * calculated, and other results when the function returns.
+     */
+    private static String reference(String functionName, List<String> arguments, MathContext mathContext) {
+        BigDecimal result = functionName.equals("add") ? new BigDecimal(0) : null;
+        for (String argument : arguments) {
+            BigDecimal number = new BigDecimal(argument);
+            if (result == null) {
+                result = number;
+            } else if (functionName.equals("add")) {
+                result = result.add(number);
+            } else if (functionName.equals("sub")) {
+                result = result.subtract(number);
+            } else if (functionName.equals("mult")) {
+                result = result.multiply(number);
+            } else {
+                try {
+                    result = result.divide(number, mathContext);
+                } catch (ArithmeticException ae) {
+                    return "error";
+                }
+            }
+        }
+        result = result.round(mathContext);
+        return functionName.equals("div") ? result.stripTrailingZeros().toString() : result.toString();
+    }
+
+    private static List<String> randomArguments(Random random) {
+        List<String> arguments = new ArrayList<String>();
+        int numArgs = 2 + random.nextInt(3);
+        for (int i = 0; i < numArgs; i++) {
+            if (random.nextBoolean()) {
+                arguments.add(INTERESTING_ARGUMENTS[random.nextInt(INTERESTING_ARGUMENTS.length)]);
+            } else {
+                arguments.add(String.valueOf(random.nextInt(2001) - 1000));
+            }
+        }
+        return arguments;
+    }
+
+    private static String execute(ArithmeticFunction function, List<String> arguments) {
+        try {
+            return function.execute(Value.parseAll(arguments)).toString();
+        } catch (FunctionExecutionException e) {
+            return "error";
+        }
+    }
+
+    private static String accumulate(ArithmeticFunction function, List<String> arguments) {
+        AccumulatingFunction.Accumulator accumulator = function.newAccumulator();
+        try {
+            for (Value argument : Value.parseAll(arguments)) {
+                accumulator.add(argument);
+            }
+            return accumulator.result().toString();
+        } catch (FunctionExecutionException e) {
+            return "error";
+        }
+    }
+
+    @Test
+    public void testMatchesBigDecimal() {
+        ArithmeticFunction[] functions = {new AddFunction(), new SubtractFunction(), new MultiplyFunction(),
+                new DivideFunction()};
+        Random random = new Random(42);
+        for (int n = 0; n < 20000; n++) {
+            List<String> arguments = randomArguments(random);
+            for (ArithmeticFunction function : functions) {
+                assertEquals(function.getName() + arguments + " had unexpected result",
+                        reference(function.getName(), arguments), execute(function, arguments));
+            }
+        }
+    }
+
+    @Test
+    public void testPrecisionMatchesBigDecimal() {
+        for (int precision : new int[] {3, 18, 19}) {
+            MathContext mathContext = new MathContext(precision, RoundingMode.HALF_EVEN);
+            NumericMode mode = NumericMode.precision(mathContext);
+            ArithmeticFunction[] functions = {new AddFunction(mode), new SubtractFunction(mode),
+                    new MultiplyFunction(mode), new DivideFunction(mode)};
+            Random random = new Random(precision);
+            for (int n = 0; n < 5000; n++) {
+                List<String> arguments = randomArguments(random);
+                for (ArithmeticFunction function : functions) {
+                    assertEquals(function.getName() + arguments + " had unexpected result to " + mathContext,
+                            reference(function.getName(), arguments, mathContext), execute(function, arguments));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPrecisionRoundsExactQuotients() {
+        // 1050 / 10 is exactly 105, but to 2 digits it's 1.1E+2, so the result doesn't depend on how it's written
+        DivideFunction divide = new DivideFunction(NumericMode.precision(new MathContext(2)));
+        String[][] argumentLists = {{"1050", "10", "5"}, {"1050.0", "10", "5"}, {"1050", "10.0", "5"}};
+        for (String[] argumentList : argumentLists) {
+            List<String> arguments = Arrays.asList(argumentList);
+            assertEquals("div" + arguments + " had unexpected result", "22", execute(divide, arguments));
+            assertEquals("div" + arguments + " had unexpected accumulated result", "22",
+                    accumulate(divide, arguments));
+        }
+    }
+
+    @Test
+    public void testDoubleMode() throws FunctionExecutionException {
+        Value result = new AddFunction(NumericMode.DOUBLE).execute(new Value[] {Value.parse("0.1"), Value.parse("0.2")});
+        assertTrue("expected a double", result.isDouble());
+        assertEquals("double addition had unexpected result", 0.1 + 0.2, result.toDouble(), 0);
+
+        // longs are combined exactly until they overflow, and the rest as doubles
+        result = new MultiplyFunction(NumericMode.DOUBLE).execute(
+                new Value[] {Value.of(Long.MAX_VALUE), Value.of(2), Value.of(0)});
+        assertEquals("overflowed multiplication had unexpected result", "0.0", result.toString());
+        result = new SubtractFunction(NumericMode.DOUBLE).execute(new Value[] {Value.of(Long.MAX_VALUE), Value.of(-1)});
+        assertEquals("overflowed subtraction had unexpected result", "9.223372036854776E18", result.toString());
+
+        DivideFunction divide = new DivideFunction(NumericMode.DOUBLE);
+        assertEquals("exact division had unexpected result", "10",
+                divide.execute(new Value[] {Value.of(100), Value.of(10)}).toString());
+        assertEquals("inexact division had unexpected result", "3.5",
+                divide.execute(new Value[] {Value.of(7), Value.of(2)}).toString());
+        assertEquals("division by zero had unexpected result", "-Infinity",
+                divide.execute(new Value[] {Value.parse("-1.5"), Value.of(0)}).toString());
+    }
+
+    @Test
+    public void testWithNumericMode() {
+        AddFunction add = new AddFunction();
+        assertEquals("function in the same mode should be reused", add, add.withNumericMode(NumericMode.DEFAULT));
+        assertEquals("function had unexpected mode", NumericMode.DOUBLE,
+                add.withNumericMode(NumericMode.DOUBLE).getNumericMode());
+    }
+
+    @Test
+    public void testOverflowPromotesToBigDecimal() throws FunctionExecutionException {
+        Value result = new MultiplyFunction().execute(
+                new Value[] {Value.of(Long.MAX_VALUE), Value.of(2), Value.of(0)});
+        assertEquals("overflowed multiplication had unexpected result", "0", result.toString());
+        result = new AddFunction().execute(new Value[] {Value.of(Long.MAX_VALUE), Value.of(1)});
+        assertEquals("overflowed addition had unexpected result", "9223372036854775808", result.toString());
+    }
+
+    @Test
+    public void testExactDivisionStaysLong() throws FunctionExecutionException {
+        Value result = new DivideFunction().execute(new Value[] {Value.of(84), Value.of(2), Value.of(3)});
+        assertEquals("exact division had unexpected result", "14", result.toString());
+        assertEquals("exact division should not be promoted", true, result.isLong());
+    }
+
+    @Test
+    public void testAccumulatorMatchesExecute() {
+        Random random = new Random(11);
+        NumericMode[] modes = {NumericMode.DEFAULT, NumericMode.DOUBLE, NumericMode.parse("precision=5"),
+                NumericMode.parse("scale=2")};
+        for (NumericMode mode : modes) {
+            ArithmeticFunction[] functions = {new AddFunction(mode), new SubtractFunction(mode),
+                    new MultiplyFunction(mode), new DivideFunction(mode)};
+            for (int i = 0; i < 2000; i++) {
+                ArithmeticFunction function = functions[random.nextInt(functions.length)];
+                List<String> arguments = randomArguments(random);
+                assertEquals(function.getName() + arguments + " in " + mode + " had unexpected result",
+                        execute(function, arguments), accumulate(function, arguments));
+            }
+        }
+    }
+}
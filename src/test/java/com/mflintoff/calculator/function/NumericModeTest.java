@@ -0,0 +1,50 @@
+package com.mflintoff.calculator.function;
+
+import org.junit.Test;
+
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class NumericModeTest {
+
+    @Test
+    public void testParse() {
+        assertEquals("unexpected double mode", NumericMode.DOUBLE, NumericMode.parse("DOUBLE"));
+        assertEquals("unexpected scale mode", NumericMode.scale(2, RoundingMode.HALF_UP), NumericMode.parse("scale=2"));
+        assertEquals("unexpected scale mode with rounding", NumericMode.scale(2, RoundingMode.HALF_EVEN),
+                NumericMode.parse("scale=2, half_even"));
+        assertEquals("unexpected precision mode", NumericMode.precision(MathContext.DECIMAL64),
+                NumericMode.parse("precision=16"));
+        assertEquals("default mode should be parsed from its string form", NumericMode.DEFAULT,
+                NumericMode.parse(NumericMode.DEFAULT.toString()));
+        NumericMode mode = NumericMode.precision(new MathContext(5, RoundingMode.DOWN));
+        assertEquals("precision mode should be parsed from its string form", mode, NumericMode.parse(mode.toString()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidRounding() {
+        NumericMode.parse("scale=2,NEAREST");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidMode() {
+        NumericMode.parse("float");
+    }
+
+    @Test
+    public void testExactForLongs() {
+        assertTrue("default mode rounded longs", NumericMode.DEFAULT.isExactForLongs());
+        assertTrue("double mode rounded longs", NumericMode.DOUBLE.isExactForLongs());
+        assertTrue("unlimited precision rounded longs", NumericMode.precision(MathContext.UNLIMITED).isExactForLongs());
+        assertTrue("precision of 19 digits rounded longs", NumericMode.precision(new MathContext(19)).isExactForLongs());
+        assertFalse("precision of 18 digits didn't round longs",
+                NumericMode.precision(new MathContext(18)).isExactForLongs());
+    }
+}
@@ -0,0 +1,55 @@
+package com.mflintoff.calculator.function;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class StringFunctionAdapterTest {
+
+    /**
+     * A function which only implements the string based execute method.
+     */
+    private static class MaxFunction implements Function {
+        public String getName() {
+            return "max";
+        }
+
+        public String execute(List<String> arguments) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (String argument : arguments) {
+                max = Math.max(max, Double.parseDouble(argument));
+            }
+            return String.valueOf((long) max);
+        }
+
+        public int getMinNumberOfArgsSupported() {
+            return 1;
+        }
+
+        public int getMaxNumberOfArgsSupported() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    @Test
+    public void testAdaptedFunction() throws FunctionExecutionException {
+        ValueFunction function = StringFunctionAdapter.adapt(new MaxFunction());
+        Value result = function.execute(new Value[] {Value.parse("3"), Value.parse("10"), Value.parse("7")});
+        assertEquals("adapted function had unexpected result", "10", result.toString());
+    }
+
+    @Test
+    public void testStringFunctionInExpression() throws EvaluationException {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.registerFunction(new MaxFunction());
+        assertEquals("expression with string function had unexpected result", "21",
+                evaluator.evaluate("add(max(3, mult(2, 5)), div(22, 2))"));
+    }
+}
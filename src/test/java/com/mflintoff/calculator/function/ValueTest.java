@@ -0,0 +1,50 @@
+package com.mflintoff.calculator.function;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class ValueTest {
+
+    @Test
+    public void testParseKeepsOriginalText() throws FunctionExecutionException {
+        Value value = Value.parse("007");
+        assertTrue("expected a number", value.isNumber());
+        assertEquals("unexpected number", new BigDecimal(7), value.toBigDecimal());
+        assertEquals("unexpected string form", "007", value.toString());
+    }
+
+    @Test
+    public void testNumberRoundTrip() {
+        BigDecimal number = new BigDecimal("1E+2");
+        assertEquals("unexpected string form", number.toString(), Value.of(number).toString());
+    }
+
+    @Test(expected = FunctionExecutionException.class)
+    public void testText() throws FunctionExecutionException {
+        Value value = Value.parse("a");
+        assertFalse("expected text", value.isNumber());
+        value.toBigDecimal();
+    }
+
+    @Test
+    public void testDouble() throws FunctionExecutionException {
+        Value value = Value.of(2.5);
+        assertTrue("expected a number", value.isNumber());
+        assertEquals("unexpected number", new BigDecimal("2.5"), value.toBigDecimal());
+        assertEquals("unexpected string form", "2.5", value.toString());
+        assertEquals("unexpected double of decimal", 0.1, Value.parse("0.1").toDouble(), 0);
+    }
+
+    @Test(expected = FunctionExecutionException.class)
+    public void testInfiniteDoubleIsNotDecimal() throws FunctionExecutionException {
+        Value.of(Double.POSITIVE_INFINITY).toBigDecimal();
+    }
+}
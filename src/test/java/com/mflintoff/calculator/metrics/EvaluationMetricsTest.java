@@ -0,0 +1,104 @@
+package com.mflintoff.calculator.metrics;
+
+import com.mflintoff.calculator.EvaluationException;
+import com.mflintoff.calculator.EvaluatorConfig;
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class EvaluationMetricsTest {
+
+    private static ExpressionEvaluator createEvaluator() {
+        EvaluatorConfig config = new EvaluatorConfig();
+        config.setMetricsEnabled(true);
+        return new ExpressionEvaluator(config);
+    }
+
+    @Test
+    public void testMetricsDisabledByDefault() {
+        assertNull("metrics should be disabled by default", new ExpressionEvaluator().getMetrics());
+    }
+
+    @Test
+    public void testFunctionCalls() throws EvaluationException {
+        ExpressionEvaluator evaluator = createEvaluator();
+        for (int i = 0; i < 100; i++) {
+            evaluator.compile("add(x, mult(x, 2))").evaluate(Collections.singletonMap("x", Integer.toString(i)));
+        }
+        for (int i = 0; i < 10; i++) {
+            try {
+                evaluator.compile("div(x, 0)").evaluate(Collections.singletonMap("x", "1"));
+                fail("division by zero should fail");
+            } catch (EvaluationException e) {
+                // expected
+            }
+        }
+
+        EvaluationMetrics metrics = evaluator.getMetrics();
+        assertEquals("unexpected number of evaluations", 110, metrics.getEvaluations());
+        assertEquals("unexpected number of failed evaluations", 10, metrics.getErrors());
+        assertEquals("unexpected number of parses", 110, metrics.getParses());
+        assertEquals("unexpected add calls", 100, metrics.function("add").getCalls());
+        assertEquals("unexpected mult calls", 100, metrics.function("mult").getCalls());
+        assertEquals("unexpected div calls", 10, metrics.function("div").getCalls());
+        assertEquals("unexpected div errors", 10, metrics.function("div").getErrors());
+        assertEquals("unexpected add errors", 0, metrics.function("add").getErrors());
+        assertTrue("no add calls were timed", metrics.function("add").getSampledCalls() > 0
+                || metrics.function("mult").getSampledCalls() > 0);
+
+        metrics.reset();
+        assertEquals("evaluations weren't reset", 0, metrics.getEvaluations());
+        assertEquals("function calls weren't reset", 0, metrics.function("add").getCalls());
+    }
+
+    @Test
+    public void testDepthAndSize() throws EvaluationException {
+        ExpressionEvaluator evaluator = createEvaluator();
+        evaluator.evaluate("let(a, 5, let(b, mult(a, 10), add(b, a)))");
+        EvaluationMetrics metrics = evaluator.getMetrics();
+        assertEquals("unexpected depth", 3, metrics.getMaxDepth());
+        assertEquals("unexpected size", 9, metrics.getMaxSize());
+    }
+
+    @Test
+    public void testRegister() throws EvaluationException, JMException {
+        ExpressionEvaluator evaluator = createEvaluator();
+        EvaluationMetrics metrics = evaluator.getMetrics();
+        evaluator.compile("add(x, 2)").evaluate(Collections.singletonMap("x", "1"));
+        metrics.register("test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName evaluatorName = new ObjectName(EvaluationMetrics.DOMAIN + ":type=Evaluator,name=test");
+            ObjectName addName = new ObjectName(EvaluationMetrics.DOMAIN + ":type=Function,evaluator=test,name=add");
+            ObjectName subName = new ObjectName(EvaluationMetrics.DOMAIN + ":type=Function,evaluator=test,name=sub");
+            assertTrue("evaluator metrics weren't registered", server.isRegistered(evaluatorName));
+            assertTrue("function metrics weren't registered", server.isRegistered(addName));
+            assertFalse("unused function was registered", server.isRegistered(subName));
+
+            evaluator.compile("sub(x, 1)").evaluate(Collections.singletonMap("x", "3"));
+            assertTrue("function first used after registration wasn't registered", server.isRegistered(subName));
+            assertEquals("unexpected calls read over JMX", 1L, server.getAttribute(subName, "Calls"));
+            assertEquals("unexpected evaluations read over JMX", 2L, server.getAttribute(evaluatorName, "Evaluations"));
+
+            metrics.unregister();
+            assertFalse("evaluator metrics weren't unregistered", server.isRegistered(evaluatorName));
+            assertFalse("function metrics weren't unregistered", server.isRegistered(subName));
+        } finally {
+            metrics.unregister();
+        }
+    }
+}
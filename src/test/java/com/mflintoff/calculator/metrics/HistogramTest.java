@@ -0,0 +1,54 @@
+package com.mflintoff.calculator.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketBounds() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue("value " + value + " is above its bucket", value <= Histogram.highestValueOf(bucket));
+            assertTrue("value " + value + " is below its bucket",
+                    bucket == 0 || value > Histogram.highestValueOf(bucket - 1));
+            assertTrue("bucket of value " + value + " is too wide",
+                    Histogram.highestValueOf(bucket) - value <= value / Histogram.SUB_BUCKETS);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals("unexpected count", 1000, histogram.getCount());
+        assertEquals("unexpected mean", 500.5, histogram.getMean(), 0);
+        assertEquals("unexpected max", 1000, histogram.getMax());
+
+        long median = histogram.getPercentile(50);
+        assertTrue("median " + median + " is out of bounds", median >= 500 && median <= 500 + 500 / Histogram.SUB_BUCKETS);
+        long p99 = histogram.getPercentile(99);
+        assertTrue("99th percentile " + p99 + " is out of bounds", p99 >= 990 && p99 <= 1000);
+        assertEquals("100th percentile should be the max", 1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(42);
+        histogram.record(-1);
+        assertEquals("negative value should be recorded as 0", 0, histogram.getPercentile(50));
+        histogram.reset();
+        assertEquals("count wasn't reset", 0, histogram.getCount());
+        assertEquals("max wasn't reset", 0, histogram.getMax());
+        assertEquals("empty histogram should have no percentiles", 0, histogram.getPercentile(99));
+    }
+}
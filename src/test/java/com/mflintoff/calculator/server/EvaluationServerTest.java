@@ -0,0 +1,97 @@
+package com.mflintoff.calculator.server;
+
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class EvaluationServerTest {
+
+    private EvaluationServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new EvaluationServer(new ExpressionEvaluator(),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String post(String body, int expectedStatus) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + EvaluationServer.PATH);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream output = connection.getOutputStream();
+        output.write(body.getBytes(StandardCharsets.UTF_8));
+        output.close();
+
+        assertEquals("unexpected status", expectedStatus, connection.getResponseCode());
+        InputStream input = expectedStatus < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+            response.write(buffer, 0, read);
+        }
+        input.close();
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSingleExpression() throws IOException {
+        assertEquals("unexpected response", "{\"result\":\"55\"}",
+                post("{\"expression\": \"let(a, 5, let(b, mult(a, 10), add(b, a)))\"}", 200));
+        assertEquals("unexpected response with variables", "{\"result\":\"7.5\"}",
+                post("{\"expression\": \"mult(x, y)\", \"variables\": {\"x\": 3, \"y\": \"2.5\"}}", 200));
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        String response = post("{\"expressions\": [\"add(1, 2)\", \"div(1, 0)\", \"sub(x, 1)\"], "
+                + "\"variables\": {\"x\": 10}}", 200);
+        assertTrue("unexpected response: " + response, response.matches(
+                "\\{\"results\":\\[\\{\"result\":\"3\"\\},\\{\"error\":\"[^\"]*div[^\"]*\"\\},\\{\"result\":\"9\"\\}\\]\\}"));
+    }
+
+    @Test
+    public void testInvalidRequests() throws IOException {
+        assertTrue("missing expression was accepted", post("{\"expr\": \"add(1, 2)\"}", 400).startsWith("{\"error\":"));
+        assertTrue("malformed JSON was accepted", post("{\"expression\": ", 400).startsWith("{\"error\":"));
+    }
+
+    @Test
+    public void testWarmUp() throws IOException {
+        server.warmUp();
+        assertEquals("unexpected response after warm up", "{\"result\":\"3\"}",
+                post("{\"expression\": \"add(1, 2)\"}", 200));
+    }
+
+    @Test
+    public void testJson() {
+        Object value = Json.read(" {\"a\": [1, -2.5e3, \"x\\\"\\u0041\"], \"b\": {}, \"c\": [true, false, null]} ");
+        assertEquals("unexpected JSON value", "{a=[1, -2.5e3, x\"A], b={}, c=[true, false, null]}", value.toString());
+        assertEquals("unexpected JSON string", "\"a\\\"b\\\\c\\n\\u0001\"",
+                Json.appendString(new StringBuilder(), "a\"b\\c\n\u0001").toString());
+    }
+}
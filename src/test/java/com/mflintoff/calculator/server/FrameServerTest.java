@@ -0,0 +1,225 @@
+package com.mflintoff.calculator.server;
+
+import com.mflintoff.calculator.ExpressionEvaluator;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Malcolm Flintoff
+ */
+public class FrameServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FrameServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private SocketChannel connect(SocketAddress address) throws IOException {
+        server = new FrameServer(new ExpressionEvaluator(), address, 2);
+        server.start();
+        return SocketChannel.open(server.getAddress());
+    }
+
+    private SocketChannel connect() throws IOException {
+        return connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    private static void putRequest(ByteBuffer buffer, int requestId, String expression, String... variables) {
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.putInt(requestId);
+        byte[] text = expression.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(text.length).put(text);
+        for (String variable : variables) {
+            byte[] bytes = variable.getBytes(StandardCharsets.UTF_8);
+            buffer.putShort((short) bytes.length).put(bytes);
+        }
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    private static void send(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(SocketChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads responses, keyed by request ID, as the status followed by the result.
+     */
+    private static Map<Integer, String> readResponses(SocketChannel channel, int count) throws IOException {
+        Map<Integer, String> responses = new HashMap<Integer, String>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = readFully(channel, readFully(channel, 4).getInt());
+            int requestId = frame.getInt();
+            byte status = frame.get();
+            responses.put(requestId, status + " " + StandardCharsets.UTF_8.decode(frame));
+        }
+        return responses;
+    }
+
+    @Test
+    public void testSingleRequest() throws IOException {
+        SocketChannel channel = connect();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        putRequest(buffer, 7, "let(a, 5, let(b, mult(a, 10), add(b, a)))");
+        send(channel, buffer);
+        assertEquals("unexpected response", "0 55", readResponses(channel, 1).get(7));
+
+        buffer.clear();
+        putRequest(buffer, 8, "mult(x, y)", "x", "3", "y", "2.5");
+        send(channel, buffer);
+        assertEquals("unexpected response with variables", "0 7.5", readResponses(channel, 1).get(8));
+        channel.close();
+    }
+
+    @Test
+    public void testPipelining() throws IOException {
+        SocketChannel channel = connect();
+        int count = 5000;
+        ByteBuffer buffer = ByteBuffer.allocate(count * 64);
+        for (int i = 0; i < count; i++) {
+            putRequest(buffer, i, i % 10 == 0 ? "div(x, 0)" : "add(x, " + (i % 7) + ")", "x", Integer.toString(i));
+        }
+        send(channel, buffer);
+
+        Map<Integer, String> responses = readResponses(channel, count);
+        assertEquals("unexpected number of responses", count, responses.size());
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                assertTrue("unexpected response " + i + ": " + responses.get(i), responses.get(i).startsWith("1 "));
+            } else {
+                assertEquals("unexpected response " + i, "0 " + (i + i % 7), responses.get(i));
+            }
+        }
+        channel.close();
+    }
+
+    @Test
+    public void testHalfClose() throws IOException {
+        SocketChannel channel = connect();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        putRequest(buffer, 1, "add(1, 2)");
+        putRequest(buffer, 2, "sub(1, 2)");
+        send(channel, buffer);
+        channel.shutdownOutput();
+
+        Map<Integer, String> responses = readResponses(channel, 2);
+        assertEquals("unexpected response 1", "0 3", responses.get(1));
+        assertEquals("unexpected response 2", "0 -1", responses.get(2));
+        assertEquals("connection wasn't closed after the last response", -1, channel.read(ByteBuffer.allocate(1)));
+        channel.close();
+    }
+
+    @Test
+    public void testInvalidRequests() throws IOException {
+        SocketChannel channel = connect();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        putRequest(buffer, 1, "add(1, 2)", "x");
+        // an expression length beyond the end of the frame
+        buffer.putInt(8).putInt(2).putInt(100);
+        putRequest(buffer, 3, "foo(1)");
+        send(channel, buffer);
+
+        Map<Integer, String> responses = readResponses(channel, 3);
+        assertTrue("truncated variables were accepted", responses.get(1).startsWith("2 "));
+        assertTrue("truncated expression was accepted", responses.get(2).startsWith("2 "));
+        assertTrue("unknown function was accepted", responses.get(3).startsWith("1 "));
+
+        // a frame length which can't be skipped closes the connection
+        buffer.clear();
+        buffer.putInt(-1);
+        send(channel, buffer);
+        assertEquals("connection wasn't closed", -1, channel.read(ByteBuffer.allocate(1)));
+        channel.close();
+    }
+
+    @Test
+    public void testFrameLargerThanBuffer() throws IOException {
+        SocketChannel channel = connect();
+        int numArgs = FrameServer.BUFFER_SIZE;
+        StringBuilder expression = new StringBuilder("add(1");
+        for (int i = 1; i < numArgs; i++) {
+            expression.append(",1");
+        }
+        expression.append(')');
+        ByteBuffer buffer = ByteBuffer.allocate(3 * numArgs);
+        putRequest(buffer, 1, expression.toString());
+        putRequest(buffer, 2, "add(1, 2)");
+        assertTrue("frame isn't larger than the buffer", buffer.position() > FrameServer.BUFFER_SIZE + 64);
+        send(channel, buffer);
+
+        Map<Integer, String> responses = readResponses(channel, 2);
+        assertEquals("unexpected response to the large frame", "0 " + numArgs, responses.get(1));
+        assertEquals("unexpected response after the large frame", "0 3", responses.get(2));
+        channel.close();
+    }
+
+    @Test
+    public void testFrameTooLarge() throws IOException {
+        SocketChannel channel = connect();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        // the rest of the frame is never sent, so the length must be rejected as soon as it's read
+        buffer.putInt(FrameServer.MAX_FRAME_SIZE + 1).putInt(1).putInt(9).put("add(1, 2)".getBytes("UTF-8"));
+        send(channel, buffer);
+        assertEquals("connection wasn't closed", -1, channel.read(ByteBuffer.allocate(1)));
+        channel.close();
+    }
+
+    @Test
+    public void testUnixDomainSocket() throws IOException {
+        SocketAddress address;
+        try {
+            address = FrameServer.unixDomainSocketAddress(folder.getRoot() + "/calculator.sock");
+        } catch (UnsupportedOperationException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        SocketChannel channel = connect(address);
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        putRequest(buffer, 1, "add(1, 2)");
+        send(channel, buffer);
+        assertEquals("unexpected response", "0 3", readResponses(channel, 1).get(1));
+        channel.close();
+
+        server.stop();
+        server = null;
+        assertFalse("socket file wasn't deleted", new File(folder.getRoot(), "calculator.sock").exists());
+    }
+}
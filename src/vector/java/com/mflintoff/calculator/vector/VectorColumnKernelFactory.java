@@ -0,0 +1,176 @@
+package com.mflintoff.calculator.vector;
+
+import com.mflintoff.calculator.expression.ColumnKernel;
+import com.mflintoff.calculator.expression.ColumnProgram;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+/**
+ * <p>Creates {@link ColumnKernel}s which evaluate each instruction of a {@link ColumnProgram} over a block of rows
+ * with the Vector API, using the widest vectors the CPU supports. Rows left over at the end of a block are evaluated
+ * one at a time.</p>
+ *
+ * <p>Overflow is detected per lane: an add or sub overflows if the sign of the result is inconsistent with the signs
+ * of its operands, and a mult is only trusted if both operands fit in an int, since the Vector API has no high
+ * multiply. Lanes which overflow are flagged as inexact, for the caller to evaluate exactly.</p>
+ *
+ * <p>This class is only built by the vector profile, and is loaded by
+ * {@link com.mflintoff.calculator.expression.ColumnKernels} when available.</p>
+ *
+ * @author Malcolm Flintoff
+ */
+public class VectorColumnKernelFactory implements ColumnKernel.Factory {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /**
+     * The number of rows evaluated per instruction at a time, which is the length of each register.
+     */
+    static final int BLOCK_SIZE = 1024;
+
+    public ColumnKernel create(ColumnProgram program) {
+        return new VectorColumnKernel(program);
+    }
+
+    private static class VectorColumnKernel implements ColumnKernel {
+        private final ColumnProgram program;
+
+        VectorColumnKernel(ColumnProgram program) {
+            this.program = program;
+        }
+
+        public void evaluate(long[][] columns, int offset, int length, long[] results, boolean[] inexact) {
+            int size = program.size();
+            long[][] registers = new long[size][BLOCK_SIZE];
+            // constants are filled into their own registers, so that every operand is an array
+            long[][] constants = new long[size * 2][];
+
+            for (int start = 0; start < length; start += BLOCK_SIZE) {
+                int blockLength = Math.min(BLOCK_SIZE, length - start);
+                for (int instruction = 0; instruction < size; instruction++) {
+                    long[] left = operand(instruction, 0, columns, registers, constants);
+                    int leftBase = baseOf(instruction, 0, offset + start);
+                    long[] right = operand(instruction, 1, columns, registers, constants);
+                    int rightBase = baseOf(instruction, 1, offset + start);
+
+                    // the last instruction produces the result
+                    boolean last = instruction == size - 1;
+                    long[] out = last ? results : registers[instruction];
+                    int outBase = last ? start : 0;
+
+                    switch (program.getOperation(instruction)) {
+                        case ColumnProgram.ADD:
+                            add(left, leftBase, right, rightBase, out, outBase, inexact, start, blockLength);
+                            break;
+                        case ColumnProgram.SUB:
+                            subtract(left, leftBase, right, rightBase, out, outBase, inexact, start, blockLength);
+                            break;
+                        case ColumnProgram.MUL:
+                            multiply(left, leftBase, right, rightBase, out, outBase, inexact, start, blockLength);
+                            break;
+                        default:
+                            throw new IllegalStateException("unknown operation " + program.getOperation(instruction));
+                    }
+                }
+            }
+        }
+
+        private long[] operand(int instruction, int operand, long[][] columns, long[][] registers,
+                               long[][] constants) {
+            int index = program.getOperand(instruction, operand);
+            switch (program.getOperandKind(instruction, operand)) {
+                case ColumnProgram.COLUMN:
+                    return columns[index];
+                case ColumnProgram.REGISTER:
+                    return registers[index];
+                default:
+                    int slot = instruction * 2 + operand;
+                    if (constants[slot] == null) {
+                        constants[slot] = new long[BLOCK_SIZE];
+                        Arrays.fill(constants[slot], program.getConstant(index));
+                    }
+                    return constants[slot];
+            }
+        }
+
+        private int baseOf(int instruction, int operand, int row) {
+            return program.getOperandKind(instruction, operand) == ColumnProgram.COLUMN ? row : 0;
+        }
+    }
+
+    private static void add(long[] a, int aBase, long[] b, int bBase, long[] out, int outBase, boolean[] inexact,
+                            int inexactBase, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, aBase + i);
+            LongVector y = LongVector.fromArray(SPECIES, b, bBase + i);
+            LongVector r = x.add(y);
+            r.intoArray(out, outBase + i);
+            flag(x.lanewise(VectorOperators.XOR, r).and(y.lanewise(VectorOperators.XOR, r))
+                    .compare(VectorOperators.LT, 0), inexact, inexactBase + i);
+        }
+        for (; i < length; i++) {
+            long x = a[aBase + i];
+            long y = b[bBase + i];
+            long r = x + y;
+            out[outBase + i] = r;
+            if (((x ^ r) & (y ^ r)) < 0) {
+                inexact[inexactBase + i] = true;
+            }
+        }
+    }
+
+    private static void subtract(long[] a, int aBase, long[] b, int bBase, long[] out, int outBase,
+                                 boolean[] inexact, int inexactBase, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, aBase + i);
+            LongVector y = LongVector.fromArray(SPECIES, b, bBase + i);
+            LongVector r = x.sub(y);
+            r.intoArray(out, outBase + i);
+            flag(x.lanewise(VectorOperators.XOR, y).and(x.lanewise(VectorOperators.XOR, r))
+                    .compare(VectorOperators.LT, 0), inexact, inexactBase + i);
+        }
+        for (; i < length; i++) {
+            long x = a[aBase + i];
+            long y = b[bBase + i];
+            long r = x - y;
+            out[outBase + i] = r;
+            if (((x ^ y) & (x ^ r)) < 0) {
+                inexact[inexactBase + i] = true;
+            }
+        }
+    }
+
+    private static void multiply(long[] a, int aBase, long[] b, int bBase, long[] out, int outBase,
+                                 boolean[] inexact, int inexactBase, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            LongVector x = LongVector.fromArray(SPECIES, a, aBase + i);
+            LongVector y = LongVector.fromArray(SPECIES, b, bBase + i);
+            x.mul(y).intoArray(out, outBase + i);
+            flag(outsideInt(x).or(outsideInt(y)), inexact, inexactBase + i);
+        }
+        for (; i < length; i++) {
+            try {
+                out[outBase + i] = Math.multiplyExact(a[aBase + i], b[bBase + i]);
+            } catch (ArithmeticException ae) {
+                inexact[inexactBase + i] = true;
+            }
+        }
+    }
+
+    private static VectorMask<Long> outsideInt(LongVector x) {
+        return x.compare(VectorOperators.LT, Integer.MIN_VALUE).or(x.compare(VectorOperators.GT, Integer.MAX_VALUE));
+    }
+
+    private static void flag(VectorMask<Long> overflow, boolean[] inexact, int index) {
+        if (overflow.anyTrue()) {
+            overflow.or(VectorMask.fromArray(SPECIES, inexact, index)).intoArray(inexact, index);
+        }
+    }
+}